@@ -14,7 +14,9 @@ import javafx.scene.control.TextField;
 import javafx.scene.layout.Pane;
 import javafx.stage.WindowEvent;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,12 +27,23 @@ import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.*;
  * It handles the connection to the server and the sending and receiving of messages between clients.
  */
 public class ChatWindowController implements ClientConnectionObserver {
+    /**
+     * System property with the path of the trust store holding the certificate of the server, to connect using TLS.
+     */
+    private static final String TRUSTSTORE_PROPERTY = "multichat.tls.truststore";
+
     /**
      * A pattern to extract the username and message from a string. If the string starts with "@username", it is
      * assumed that the message is directed to the specified user.
      */
     private final Pattern messagePattern = Pattern.compile("^(?:@(.\\S*))?\\s*(.*)$");
 
+    /**
+     * TLS context for encrypted connections, created on first use. Kept for the lifetime of the window, so
+     * reconnects can resume the TLS session.
+     */
+    private SSLContext sslContext;
+
     /**
      * The connection handler for this client.
      */
@@ -239,6 +252,9 @@ public class ChatWindowController implements ClientConnectionObserver {
     /**
      * Starts a new client connection handler with the specified username, server address, and server port.
      * Creates a new thread for the connection handler and registers a window close handler.
+     * If the system property {@value TRUSTSTORE_PROPERTY} is set, the connection is encrypted using TLS. The password
+     * of the trust store, if any, is taken from the environment variable
+     * {@value NetworkHandler#TLS_PASSWORD_VARIABLE}.
      *
      * @throws IOException if an I/O error occurs when opening the connection
      */
@@ -247,9 +263,15 @@ public class ChatWindowController implements ClientConnectionObserver {
         String userName = userNameField.getText();
         String serverAddress = serverAddressField.getText();
         int serverPort = Integer.parseInt(serverPortField.getText());
+        String trustStore = System.getProperty(TRUSTSTORE_PROPERTY);
+        if (trustStore != null && sslContext == null) {
+            String password = System.getenv(NetworkHandler.TLS_PASSWORD_VARIABLE);
+            sslContext = NetworkHandler.createClientSslContext(Path.of(trustStore),
+                password == null ? null : password.toCharArray());
+        }
         connectionHandler = new ClientConnectionHandler(
-            NetworkHandler.openConnection(serverAddress, serverPort), userName);
-        connectionHandler.addObserver(observer);
+            NetworkHandler.openConnection(serverAddress, serverPort, sslContext), userName);
+        connectionHandler.addObserver(observer, Platform::runLater);
         new Thread(connectionHandler).start();
 
         // register window close handler
@@ -277,11 +299,14 @@ public class ChatWindowController implements ClientConnectionObserver {
 
     /**
      * Toggles the connection status of the client. If the client is not connected, initiates a connection.
+     * If the client is waiting for a (re)connect confirmation, the attempt is aborted.
      * Otherwise, terminates the connection.
      */
     @FXML
     private void toggleConnection() {
-        if (connectionHandler == null || connectionHandler.getState() != CONNECTED) {
+        if (connectionHandler != null && connectionHandler.getState() == CONFIRM_CONNECT) {
+            connectionHandler.setState(DISCONNECTED);
+        } else if (connectionHandler == null || connectionHandler.getState() != CONNECTED) {
             connect();
         } else {
             disconnect();
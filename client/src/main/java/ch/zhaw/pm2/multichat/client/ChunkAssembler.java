@@ -0,0 +1,111 @@
+package ch.zhaw.pm2.multichat.client;
+
+import ch.zhaw.pm2.multichat.protocol.ChatProtocolException;
+import ch.zhaw.pm2.multichat.protocol.ChunkHeader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class reassembles large payloads received in chunks.
+ * <p>
+ * The chunks of a transfer are appended as they arrive, so no chunk frames have to be kept. To bound the memory used
+ * for incomplete transfers, at most {@code maxTransfers} transfers are assembled at the same time and each transfer is
+ * limited to {@link ChunkHeader#MAX_TRANSFER_SIZE} characters. Transfers are identified by their sender and id, as
+ * the ids are only unique per sender.
+ * <p>
+ * The assembler is not thread safe, it is used by the receiving thread of the connection handler only.
+ */
+class ChunkAssembler {
+    /**
+     * A transfer being assembled.
+     */
+    private static class Transfer {
+        private final int count;
+        private final StringBuilder payload;
+        private int nextIndex;
+
+        private Transfer(int count, int chunkSize) {
+            this.count = count;
+            this.payload = new StringBuilder(chunkSize);
+        }
+    }
+
+    /**
+     * Maximum number of transfers assembled at the same time.
+     */
+    private final int maxTransfers;
+
+    /**
+     * The transfers being assembled, by sender and transfer id.
+     */
+    private final Map<String, Transfer> transfers = new HashMap<>();
+
+    /**
+     * Creates a new assembler.
+     *
+     * @param maxTransfers the maximum number of transfers assembled at the same time
+     */
+    ChunkAssembler(int maxTransfers) {
+        this.maxTransfers = maxTransfers;
+    }
+
+    /**
+     * Adds a received chunk to its transfer.
+     *
+     * @param sender  the sender of the chunk
+     * @param payload the chunk of the payload, null for a cancel chunk
+     * @param chunk   the header of the chunk
+     * @return the complete payload if the chunk completed the transfer, null otherwise
+     * @throws ChatProtocolException if the chunk does not fit the transfer or a limit is exceeded, the transfer is
+     *                               discarded in that case
+     */
+    String add(String sender, String payload, ChunkHeader chunk) throws ChatProtocolException {
+        String key = sender + "/" + chunk.transferId();
+        if (chunk.isCancel()) {
+            transfers.remove(key);
+            return null;
+        }
+        Transfer transfer = transfers.get(key);
+        if (transfer == null) {
+            if (chunk.index() != 0) {
+                throw new ChatProtocolException("Received chunk of unknown transfer from " + sender);
+            }
+            if (transfers.size() >= maxTransfers) {
+                throw new ChatProtocolException("Too many incoming transfers, discarded message from " + sender);
+            }
+            transfer = new Transfer(chunk.count(), payload == null ? 0 : payload.length());
+            transfers.put(key, transfer);
+        }
+        if (payload == null || chunk.index() != transfer.nextIndex || chunk.count() != transfer.count
+            || transfer.payload.length() + payload.length() > ChunkHeader.MAX_TRANSFER_SIZE) {
+            transfers.remove(key);
+            throw new ChatProtocolException("Incomplete message from " + sender + " discarded");
+        }
+        transfer.payload.append(payload);
+        transfer.nextIndex++;
+        if (!chunk.isLast()) {
+            return null;
+        }
+        transfers.remove(key);
+        return transfer.payload.toString();
+    }
+
+    /**
+     * Checks if the given transfer of a sender is being assembled.
+     *
+     * @param sender     the sender of the transfer
+     * @param transferId the id of the transfer
+     * @return true if the transfer is incomplete, false otherwise
+     */
+    boolean isPending(String sender, long transferId) {
+        return transfers.containsKey(sender + "/" + transferId);
+    }
+
+    /**
+     * Discards all incomplete transfers, e.g. because a new session has been started.
+     */
+    void clear() {
+        transfers.clear();
+    }
+}
@@ -2,22 +2,185 @@ package ch.zhaw.pm2.multichat.client;
 
 import ch.zhaw.pm2.multichat.protocol.*;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static ch.zhaw.pm2.multichat.protocol.Configuration.DataType;
 import static ch.zhaw.pm2.multichat.protocol.Configuration.DataType.*;
 import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.*;
 
 /**
- * This class handles the communication with the server
+ * This class handles the communication with the server.
+ * <p>
+ * If the connection to the server is lost while connected, the handler reconnects automatically with exponential
+ * backoff and resumes the session with the resume token issued by the server and the sequence number of the last
+ * received message, so the server only sends the messages missed in between.
+ * <p>
+ * With reliable delivery enabled, received messages are acknowledged cumulatively in batches, either after
+ * {@value #ACK_BATCH_SIZE} messages or {@value #ACK_DELAY_MILLIS} ms after the first unacknowledged message, so the
+ * server can release them from its retransmit window.
+ * <p>
+ * Messages longer than the negotiated chunk size are sent in chunks on a background thread. As the send lock is fair,
+ * other messages are sent between the chunks, so chat messages are not delayed by large messages. Received chunks are
+ * reassembled incrementally by a {@link ChunkAssembler}.
+ * <p>
+ * If supported by the server, the handler keeps the list of online users (the roster), starting with the snapshot
+ * received after the confirmation and updated by the deltas published by the server.
+ * <p>
+ * A sample of the sent messages (system property {@value #TRACE_SAMPLING_PROPERTY}, e.g. 0.01 for 1%) is traced: the
+ * message carries the timestamps of its way through the server (see {@link MessageTrace}), and the receiving clients
+ * record the latencies of the hops in their {@link LatencyHistogram}.
+ * <p>
+ * If the server keeps the message history, {@link #searchHistory(HistoryQuery)} searches the messages the user has
+ * sent or received. The pages of results are passed to the observers.
  */
 public class ClientConnectionHandler extends ConnectionHandler implements Runnable {
     /**
-     * A list of observers that will be notified of state changes, messages, errors, and other events
+     * Delay before the first reconnect attempt.
+     */
+    private static final long INITIAL_RECONNECT_DELAY_MILLIS = 250;
+
+    /**
+     * Upper limit of the delay between two reconnect attempts.
+     */
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 10_000;
+
+    /**
+     * Number of reconnect attempts before the connection is given up.
+     */
+    private static final int MAX_RECONNECT_ATTEMPTS = 10;
+
+    /**
+     * Number of received messages after which an acknowledge is sent immediately.
+     */
+    private static final int ACK_BATCH_SIZE = 32;
+
+    /**
+     * Maximum delay of an acknowledge after a message has been received.
+     */
+    private static final long ACK_DELAY_MILLIS = 100;
+
+    /**
+     * Scheduler for delayed acknowledges, shared by all handlers.
+     */
+    private static final ScheduledExecutorService ackScheduler = Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+            Thread thread = new Thread(runnable, "client-ack-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /**
+     * Maximum number of incoming chunked transfers assembled at the same time.
+     */
+    private static final int MAX_INCOMING_TRANSFERS = 16;
+
+    /**
+     * Interval to check for completed transfers in {@link #awaitTransfers()}.
+     */
+    private static final long TRANSFER_POLL_MILLIS = 10;
+
+    /**
+     * System property with the fraction of the sent messages to trace (0 - 1, default 0).
+     */
+    public static final String TRACE_SAMPLING_PROPERTY = "multichat.trace.sampling";
+
+    /**
+     * Fraction of the sent messages to trace.
+     */
+    private static final double TRACE_SAMPLING = Double.parseDouble(System.getProperty(TRACE_SAMPLING_PROPERTY, "0"));
+
+    /**
+     * Executor sending the chunks of large messages, shared by all handlers.
+     */
+    private static final ExecutorService transferExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "client-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Counter to generate the ids of history queries.
+     */
+    private final AtomicLong queryCounter = new AtomicLong();
+
+    /**
+     * Counter to generate the ids of outgoing transfers.
+     */
+    private final AtomicLong transferCounter = new AtomicLong();
+
+    /**
+     * The outgoing transfers in progress, by transfer id. The flag is set to cancel the transfer.
+     */
+    private final Map<Long, AtomicBoolean> outgoingTransfers = new ConcurrentHashMap<>();
+
+    /**
+     * Reassembles the chunks of incoming transfers.
+     */
+    private final ChunkAssembler chunkAssembler = new ChunkAssembler(MAX_INCOMING_TRANSFERS);
+
+    /**
+     * The users currently online, sorted by name. Replaced with every roster update.
+     */
+    private volatile Set<String> roster = Set.of();
+
+    /**
+     * The latencies of the traced messages received.
+     */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * The event bus notifying the observers of state changes, messages, errors, and other events
      * during the client-server communication.
      */
-    private final List<ClientConnectionObserver> observers;
+    private final ClientEventBus eventBus = new ClientEventBus();
+
+    /**
+     * The resume token issued by the server for the current session, null if not connected yet.
+     */
+    private volatile String resumeToken;
+
+    /**
+     * The sequence number of the last message received in the current session.
+     */
+    private volatile long lastSequence = NetworkMessage.NO_SEQUENCE;
+
+    /**
+     * Indicates if the handler should reconnect automatically when the connection is lost.
+     */
+    private volatile boolean autoReconnect = true;
+
+    /**
+     * Set, when the connection has been lost and a reconnect should be attempted.
+     */
+    private volatile boolean reconnectPending;
+
+    /**
+     * Indicates if received messages are acknowledged to the server (reliable delivery).
+     */
+    private volatile boolean reliableDelivery;
+
+    /**
+     * The sequence number of the last acknowledged message.
+     */
+    private volatile long lastAcknowledged = NetworkMessage.NO_SEQUENCE;
+
+    /**
+     * Set while a delayed acknowledge is scheduled.
+     */
+    private final AtomicBoolean acknowledgeScheduled = new AtomicBoolean(false);
 
     /**
      * Constructs a new ClientConnectionHandler.
@@ -29,29 +192,113 @@ public class ClientConnectionHandler extends ConnectionHandler implements Runnab
                                    String userName) {
         super(connection);
         this.userName = (userName == null || userName.isBlank()) ? USER_NONE : userName;
-        this.observers = new ArrayList<>();
     }
 
     /**
-     * Adds a new observer to the list of observers that will be notified of state changes,
-     * messages, errors, and other events during the client-server communication.
+     * Enables or disables the automatic reconnect when the connection to the server is lost (enabled by default).
+     *
+     * @param autoReconnect true to reconnect automatically, false otherwise
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * Enables or disables reliable delivery, i.e. the acknowledgement of received messages (disabled by default).
+     * Takes effect with the next connect request, as the server has to support it as well.
+     *
+     * @param reliableDelivery true to acknowledge received messages, false otherwise
+     */
+    public void setReliableDelivery(boolean reliableDelivery) {
+        this.reliableDelivery = reliableDelivery;
+    }
+
+    /**
+     * Adds a new observer that will be notified of state changes, messages, errors, and other events during the
+     * client-server communication. The events are delivered asynchronously on a dispatcher thread.
      *
      * @param observer The ClientConnectionObserver instance to be added to the list of observers.
      */
     public void addObserver(ClientConnectionObserver observer) {
-        observers.add(observer);
+        eventBus.subscribe(observer);
+    }
+
+    /**
+     * Adds a new observer that will be notified of state changes, messages, errors, and other events during the
+     * client-server communication. The events are delivered in batches on the given executor.
+     *
+     * @param observer The ClientConnectionObserver instance to be added to the list of observers.
+     * @param executor The executor to deliver the events on (e.g. {@code Platform::runLater}).
+     */
+    public void addObserver(ClientConnectionObserver observer, Executor executor) {
+        eventBus.subscribe(observer, executor);
+    }
+
+    /**
+     * Removes the given observer, it will not be notified of any further events.
+     *
+     * @param observer The ClientConnectionObserver instance to be removed.
+     */
+    public void removeObserver(ClientConnectionObserver observer) {
+        eventBus.unsubscribe(observer);
+    }
+
+    /**
+     * Returns the users currently online, as far as published by the server.
+     *
+     * @return the names of the online users sorted by name, empty if the server does not publish the roster
+     */
+    public Set<String> getRoster() {
+        return roster;
     }
 
     /**
-     * Sets the current protocol state.
+     * Returns the latencies of the traced messages received, by hop.
+     *
+     * @return the latency histogram of this handler
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Sets the current protocol state, if the transition from the current state is legal (see
+     * {@link ProtocolStateMachine}), and notifies the observers. Illegal transitions are ignored.
      *
      * @param newProtocolState the new protocol state
      */
     public void setState(Configuration.ProtocolState newProtocolState) {
-        this.protocolState = newProtocolState;
-        for (ClientConnectionObserver observer : observers) {
-            observer.stateChanged(newProtocolState);
+        try {
+            protocolState.transitionTo(newProtocolState);
+        } catch (ChatProtocolException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        publishState();
+    }
+
+    /**
+     * Changes the protocol state, if it is still the expected one, and notifies the observers.
+     *
+     * @param expected         the state the caller has seen
+     * @param newProtocolState the new protocol state
+     * @return true if the state has been changed, false if another thread changed it in the meantime
+     */
+    private boolean changeState(Configuration.ProtocolState expected, Configuration.ProtocolState newProtocolState) {
+        if (!protocolState.compareAndSet(expected, newProtocolState)) {
+            return false;
         }
+        publishState();
+        return true;
+    }
+
+    /**
+     * Notifies the observers about a state change. They receive the state current at the time of the notification,
+     * so observers of concurrent transitions always end up with the latest state, whatever the order of publishing.
+     * The notification is coalesced with one still pending, but never dropped.
+     */
+    private void publishState() {
+        eventBus.publishLatest("state", observer -> observer.stateChanged(protocolState.get()));
     }
 
     /**
@@ -69,9 +316,12 @@ public class ClientConnectionHandler extends ConnectionHandler implements Runnab
      * @throws ChatProtocolException if the current protocol state is not NEW
      */
     public void connect() throws ChatProtocolException {
-        if (protocolState != NEW) throw new ChatProtocolException("Illegal state for connect: " + protocolState);
-        this.sendData(userName, USER_NONE, CONNECT, null);
-        this.setState(CONFIRM_CONNECT);
+        // the state is changed first, as the confirmation may be received before the send returns
+        if (!changeState(NEW, CONFIRM_CONNECT)) {
+            throw new ChatProtocolException("Illegal state for connect: " + protocolState);
+        }
+        this.sendData(new NetworkMessage(userName, USER_NONE, CONNECT, null, null, NetworkMessage.NO_SEQUENCE,
+            offeredCapabilities().encode()));
     }
 
     /**
@@ -80,22 +330,184 @@ public class ClientConnectionHandler extends ConnectionHandler implements Runnab
      * @throws ChatProtocolException if the current protocol state is not NEW or CONNECTED
      */
     public void disconnect() throws ChatProtocolException {
-        if (protocolState != NEW && protocolState != CONNECTED)
+        Configuration.ProtocolState current = protocolState.get();
+        if ((current != NEW && current != CONNECTED) || !changeState(current, CONFIRM_DISCONNECT)) {
             throw new ChatProtocolException("Illegal state for disconnect: " + protocolState);
+        }
         this.sendData(userName, USER_NONE, DISCONNECT, null);
-        this.setState(CONFIRM_DISCONNECT);
     }
 
     /**
      * Sends a message to the specified receiver.
+     * Messages longer than the negotiated chunk size are sent in chunks in the background (see
+     * {@link #sendLarge(String, String)}).
      *
      * @param receiver the receiver of the message
      * @param message  the message to send
-     * @throws ChatProtocolException if the current protocol state is not CONNECTED
+     * @throws ChatProtocolException if the current protocol state is not CONNECTED or the message is too large
      */
     public void message(String receiver, String message) throws ChatProtocolException {
-        if (protocolState != CONNECTED) throw new ChatProtocolException("Illegal state for message: " + protocolState);
-        this.sendData(userName, receiver, MESSAGE, message);
+        protocolState.require(CONNECTED, "message");
+        if (message != null && capabilities.chunkSize() > 0 && message.length() > capabilities.chunkSize()) {
+            sendLarge(receiver, message);
+            return;
+        }
+        if (message != null && message.length() > capabilities.maxFrameSize()) {
+            throw new ChatProtocolException("Message exceeds maximum size of " + capabilities.maxFrameSize());
+        }
+        MessageTrace trace = TRACE_SAMPLING > 0 && ThreadLocalRandom.current().nextDouble() < TRACE_SAMPLING
+            ? MessageTrace.start() : null;
+        this.sendData(new NetworkMessage(userName, receiver, MESSAGE, message, NetworkMessage.NO_SEQUENCE, trace));
+    }
+
+    /**
+     * Sends an ephemeral event (e.g. a typing indicator) to the specified receiver. Events are neither acknowledged
+     * nor stored by the server, and may be coalesced or dropped. If the server does not support events, the event is
+     * discarded.
+     *
+     * @param receiver the receiver of the event
+     * @param payload  the event
+     * @throws ChatProtocolException if the current protocol state is not CONNECTED or the event is too large
+     */
+    public void sendEvent(String receiver, String payload) throws ChatProtocolException {
+        protocolState.require(CONNECTED, "event");
+        if (payload != null && payload.length() > MAX_EVENT_SIZE) {
+            throw new ChatProtocolException("Event exceeds maximum size of " + MAX_EVENT_SIZE);
+        }
+        if (capabilities.events()) {
+            this.sendData(userName, receiver, EVENT, payload);
+        }
+    }
+
+    /**
+     * Searches the message history of the server. The pages of results are passed to the observers with
+     * {@link ClientConnectionObserver#historyReceived(HistoryPage)}; further pages are requested with the query returned
+     * and {@link HistoryQuery#before(long)}.
+     *
+     * @param query the query, its id is replaced with a new one unless it requests a further page
+     * @return the query sent, with the id of the pages
+     * @throws ChatProtocolException if the current protocol state is not CONNECTED, the server does not keep the
+     *                               message history or a term is longer than {@link HistoryQuery#MAX_TERM_LENGTH}
+     */
+    public HistoryQuery searchHistory(HistoryQuery query) throws ChatProtocolException {
+        protocolState.require(CONNECTED, "history search");
+        if (!capabilities.history()) {
+            throw new ChatProtocolException("Message history not supported by server");
+        }
+        for (String term : query.terms()) {
+            if (term.length() > HistoryQuery.MAX_TERM_LENGTH) {
+                throw new ChatProtocolException("History query term exceeds maximum length of "
+                    + HistoryQuery.MAX_TERM_LENGTH);
+            }
+        }
+        HistoryQuery sent = query.before() > 0 ? query : new HistoryQuery(queryCounter.incrementAndGet(),
+            query.terms(), query.sender(), query.since(), query.until(), 0, query.limit());
+        this.sendData(userName, USER_NONE, HISTORY, sent.encode());
+        return sent;
+    }
+
+    /**
+     * Sends a large message in chunks on a background thread. Other messages are sent between the chunks.
+     * The transfer is aborted, if the connection is lost before all chunks are sent.
+     *
+     * @param receiver the receiver of the message
+     * @param message  the message to send
+     * @return the id of the transfer, to cancel it with {@link #cancelTransfer(long)}
+     * @throws ChatProtocolException if the current protocol state is not CONNECTED, chunked transfer has not been
+     *                               negotiated or the message is empty or exceeds the maximum transfer size
+     */
+    public long sendLarge(String receiver, String message) throws ChatProtocolException {
+        protocolState.require(CONNECTED, "message");
+        if (message == null || message.isEmpty()) {
+            throw new ChatProtocolException("Large message is empty");
+        }
+        int chunkSize = capabilities.chunkSize();
+        if (chunkSize == 0) {
+            throw new ChatProtocolException("Large messages are not supported by the server");
+        }
+        if (message.length() > ChunkHeader.MAX_TRANSFER_SIZE) {
+            throw new ChatProtocolException("Message exceeds maximum size of " + ChunkHeader.MAX_TRANSFER_SIZE);
+        }
+        long transferId = transferCounter.incrementAndGet();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        outgoingTransfers.put(transferId, cancelled);
+        NetworkHandler.NetworkConnection<NetworkMessage> transferConnection = connection;
+        transferExecutor.execute(() ->
+            sendChunks(transferId, receiver, message, chunkSize, cancelled, transferConnection));
+        return transferId;
+    }
+
+    /**
+     * Cancels an outgoing transfer. The receivers discard the chunks received so far.
+     *
+     * @param transferId the id of the transfer returned by {@link #sendLarge(String, String)}
+     * @return true if the transfer was in progress, false if it has already been completed
+     */
+    public boolean cancelTransfer(long transferId) {
+        AtomicBoolean cancelled = outgoingTransfers.get(transferId);
+        return cancelled != null && !cancelled.getAndSet(true);
+    }
+
+    /**
+     * Waits until all outgoing transfers are completed, cancelled or aborted.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void awaitTransfers() throws InterruptedException {
+        while (!outgoingTransfers.isEmpty()) {
+            Thread.sleep(TRANSFER_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Sends the chunks of a transfer, until all chunks are sent, the transfer is cancelled or the connection is lost.
+     * A chunk is only read from the message when it is sent.
+     *
+     * @param transferId         the id of the transfer
+     * @param receiver           the receiver of the message
+     * @param message            the message to send
+     * @param chunkSize          the size of the chunks
+     * @param cancelled          the flag to cancel the transfer
+     * @param transferConnection the connection the transfer has been started on
+     */
+    private void sendChunks(long transferId, String receiver, String message, int chunkSize,
+                            AtomicBoolean cancelled, NetworkHandler.NetworkConnection<NetworkMessage> transferConnection) {
+        int count = (message.length() + chunkSize - 1) / chunkSize;
+        try {
+            for (int index = 0; index < count; index++) {
+                if (!protocolState.is(CONNECTED) || connection != transferConnection) {
+                    eventBus.publish(observer -> observer.addError("Large message to " + receiver
+                        + " aborted, connection lost"));
+                    return;
+                }
+                if (cancelled.get()) {
+                    if (index > 0) {
+                        this.sendData(new NetworkMessage(userName, receiver, null, NetworkMessage.NO_SEQUENCE,
+                            ChunkHeader.cancel(transferId)));
+                    }
+                    eventBus.publish(observer -> observer.addInfo("Large message to " + receiver + " cancelled"));
+                    return;
+                }
+                String chunk = message.substring(index * chunkSize, Math.min(message.length(), (index + 1) * chunkSize));
+                this.sendData(new NetworkMessage(userName, receiver, chunk, NetworkMessage.NO_SEQUENCE,
+                    new ChunkHeader(transferId, index, count)));
+            }
+        } finally {
+            outgoingTransfers.remove(transferId);
+        }
+    }
+
+    /**
+     * Returns the capabilities offered to the server in the CONNECT request.
+     * Acknowledgements are only offered, if reliable delivery is enabled.
+     *
+     * @return the offered capabilities
+     */
+    private Capabilities offeredCapabilities() {
+        Capabilities supported = Capabilities.SUPPORTED;
+        return new Capabilities(supported.version(), supported.codecs(), supported.compressions(),
+            supported.batching(), reliableDelivery, supported.maxFrameSize(), supported.chunkSize(),
+            supported.roster(), supported.events(), supported.history());
     }
 
     /**
@@ -105,15 +517,53 @@ public class ClientConnectionHandler extends ConnectionHandler implements Runnab
     @Override
     public void run() {
         System.out.println("Starting Connection Handler");
-        startReceiving();
+        do {
+            startReceiving();
+        } while (reconnectPending && reconnect());
         System.out.println("Ended Connection Handler");
     }
 
+    /**
+     * Tries to reconnect to the server with exponential backoff and resumes the session.
+     * Gives up, if the maximum number of attempts is reached or the handler has been disconnected in the meantime.
+     *
+     * @return true if a new connection has been opened and the resume request has been sent, false otherwise
+     */
+    private boolean reconnect() {
+        reconnectPending = false;
+        long delay = INITIAL_RECONNECT_DELAY_MILLIS;
+        for (int attempt = 1; attempt <= MAX_RECONNECT_ATTEMPTS && protocolState.is(CONFIRM_CONNECT); attempt++) {
+            try {
+                Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                System.out.println("Reconnect attempt " + attempt);
+                NetworkHandler.NetworkConnection<NetworkMessage> newConnection = connection.reopen();
+                if (!protocolState.is(CONFIRM_CONNECT)) {
+                    newConnection.close();
+                    return false;
+                }
+                this.connection = newConnection;
+                this.sendData(new NetworkMessage(userName, USER_NONE, CONNECT, null, resumeToken, lastSequence,
+                    offeredCapabilities().encode()));
+                return true;
+            } catch (IOException e) {
+                System.err.println("Reconnect failed: " + e.getMessage());
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (changeState(CONFIRM_CONNECT, DISCONNECTED)) {
+            eventBus.publish(observer -> observer.addError("Connection to server lost"));
+        }
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    protected void handleConnect(String sender) {
+    protected void handleConnect(String sender, String resumeToken, long lastSequence, Capabilities offered) {
         System.err.println("Illegal connect request from server");
     }
 
@@ -121,23 +571,36 @@ public class ClientConnectionHandler extends ConnectionHandler implements Runnab
      * {@inheritDoc}
      */
     @Override
-    protected void handleConfirm(String receiver, String payload) {
-        for (ClientConnectionObserver observer : observers) {
-            if (protocolState == CONFIRM_CONNECT) {
-                this.userName = receiver;
-                observer.setUserName(userName);
-                observer.setServerPort(connection.getRemotePort());
-                observer.setServerAddress(connection.getRemoteHost());
-                observer.addInfo(payload);
-                System.out.println("CONFIRM: " + payload);
-                this.setState(CONNECTED);
-            } else if (protocolState == CONFIRM_DISCONNECT) {
+    protected void handleConfirm(String receiver, String payload, String resumeToken, Capabilities chosen) {
+        Configuration.ProtocolState current = protocolState.get();
+        if (current == CONFIRM_CONNECT && resumeToken != null && !resumeToken.equals(this.resumeToken)) {
+            this.resumeToken = resumeToken;
+            this.lastSequence = NetworkMessage.NO_SEQUENCE;
+            this.lastAcknowledged = NetworkMessage.NO_SEQUENCE;
+        }
+        if (current == CONFIRM_CONNECT) {
+            // chunks are not replayed, so transfers interrupted by the reconnect can not be completed
+            chunkAssembler.clear();
+            this.capabilities = chosen;
+            this.userName = receiver;
+            String confirmedUserName = userName;
+            int serverPort = connection.getRemotePort();
+            String serverHost = connection.getRemoteHost();
+            eventBus.publish(observer -> {
+                observer.setUserName(confirmedUserName);
+                observer.setServerPort(serverPort);
+                observer.setServerAddress(serverHost);
                 observer.addInfo(payload);
-                System.out.println("CONFIRM: " + payload);
-                this.setState(DISCONNECTED);
-            } else {
-                System.err.println("Got unexpected confirm message: " + payload);
+            });
+            System.out.println("CONFIRM: " + payload);
+            if (!changeState(CONFIRM_CONNECT, CONNECTED)) {
+                System.err.println("Connect aborted before confirmation: " + protocolState);
             }
+        } else if (current == CONFIRM_DISCONNECT && changeState(CONFIRM_DISCONNECT, DISCONNECTED)) {
+            eventBus.publish(observer -> observer.addInfo(payload));
+            System.out.println("CONFIRM: " + payload);
+        } else {
+            System.err.println("Got unexpected confirm message: " + payload);
         }
     }
 
@@ -146,40 +609,162 @@ public class ClientConnectionHandler extends ConnectionHandler implements Runnab
      */
     @Override
     protected void handleDisconnect(String payload) {
-        if (protocolState == DISCONNECTED) {
+        if (protocolState.is(DISCONNECTED)) {
             System.out.println("DISCONNECT: Already in disconnected: " + payload);
             return;
         }
-        for (ClientConnectionObserver observer : observers) {
-            observer.addInfo(payload);
-        }
+        eventBus.publish(observer -> observer.addInfo(payload));
         System.out.println("DISCONNECT: " + payload);
         this.setState(DISCONNECTED);
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The latencies of traced messages are recorded in the {@link LatencyHistogram}.
      */
     @Override
-    protected void handleMessage(String sender, String receiver, String payload) {
-        if (protocolState != CONNECTED) {
+    protected void handleMessage(String sender, String receiver, String payload, long sequence, MessageTrace trace) {
+        if (!protocolState.is(CONNECTED)) {
             System.out.println("MESSAGE: Illegal state " + protocolState + " for message: " + payload);
             return;
         }
-        for (ClientConnectionObserver observer : observers) {
-            observer.addMessage(sender, receiver, payload);
+        if (trace != null) {
+            latencies.record(trace, MessageTrace.now());
         }
+        received(sequence);
+        eventBus.publish(observer -> observer.addMessage(sender, receiver, payload));
         System.out.println("MESSAGE: From " + sender + " to " + receiver + ": " + payload);
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The chunk is appended to its transfer. The message is passed to the observers as soon as it is complete.
      */
     @Override
-    protected void handleError(String sender, String payload) {
-        for (ClientConnectionObserver observer : observers) {
-            observer.addError(payload);
+    protected void handleChunk(String sender, String receiver, String payload, ChunkHeader chunk, long sequence) {
+        if (!protocolState.is(CONNECTED)) {
+            System.out.println("CHUNK: Illegal state " + protocolState + " for chunk of " + sender);
+            return;
+        }
+        received(sequence);
+        if (chunk.isCancel() && chunkAssembler.isPending(sender, chunk.transferId())) {
+            eventBus.publish(observer -> observer.addInfo("Large message from " + sender + " cancelled"));
+        }
+        try {
+            String message = chunkAssembler.add(sender, payload, chunk);
+            if (message != null) {
+                eventBus.publish(observer -> observer.addMessage(sender, receiver, message));
+                System.out.println("MESSAGE: From " + sender + " to " + receiver + ": " + message.length()
+                    + " characters in " + chunk.count() + " chunks");
+            }
+        } catch (ChatProtocolException e) {
+            eventBus.publish(observer -> observer.addError(e.getMessage()));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The event is passed to the observers, it is not acknowledged.
+     */
+    @Override
+    protected void handleEvent(String sender, String receiver, String payload) {
+        if (!protocolState.is(CONNECTED)) {
+            return;
+        }
+        eventBus.publish(observer -> observer.eventReceived(sender, receiver, payload));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The page of results is passed to the observers.
+     */
+    @Override
+    protected void handleHistory(String payload) throws ChatProtocolException {
+        if (!protocolState.is(CONNECTED)) {
+            System.out.println("HISTORY: Illegal state " + protocolState + " for history page");
+            return;
+        }
+        HistoryPage page = HistoryPage.parse(payload);
+        eventBus.publish(observer -> observer.historyReceived(page));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A snapshot replaces the roster, a delta is applied to it. The observers are notified with the new roster.
+     */
+    @Override
+    protected void handleRoster(RosterUpdate update) {
+        if (!protocolState.is(CONNECTED)) {
+            System.out.println("ROSTER: Illegal state " + protocolState + " for roster update");
+            return;
+        }
+        Set<String> users = new TreeSet<>(update.snapshot() ? Set.of() : roster);
+        users.addAll(update.joined());
+        update.left().forEach(users::remove);
+        Set<String> newRoster = Collections.unmodifiableSet(users);
+        this.roster = newRoster;
+        eventBus.publishLatest("roster", observer -> observer.rosterChanged(newRoster));
+    }
+
+    /**
+     * Records the sequence number of a received message or chunk and schedules its acknowledgement.
+     *
+     * @param sequence the sequence number, {@link NetworkMessage#NO_SEQUENCE} if none
+     */
+    private void received(long sequence) {
+        if (sequence > lastSequence) {
+            lastSequence = sequence;
+            if (capabilities.acknowledgements()) {
+                scheduleAcknowledge();
+            }
+        }
+    }
+
+    /**
+     * Sends an acknowledge immediately, if a batch of messages is unacknowledged, otherwise schedules a delayed
+     * acknowledge, if none is scheduled yet.
+     */
+    private void scheduleAcknowledge() {
+        if (lastSequence - lastAcknowledged >= ACK_BATCH_SIZE) {
+            sendAcknowledge();
+        } else if (acknowledgeScheduled.compareAndSet(false, true)) {
+            ackScheduler.schedule(() -> {
+                acknowledgeScheduled.set(false);
+                sendAcknowledge();
+            }, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Acknowledges all messages received so far, if not acknowledged yet.
+     */
+    private synchronized void sendAcknowledge() {
+        long sequence = lastSequence;
+        if (sequence > lastAcknowledged && protocolState.is(CONNECTED)) {
+            lastAcknowledged = sequence;
+            this.sendData(new NetworkMessage(userName, USER_NONE, ACK, null, null, sequence));
         }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void handleAcknowledge(long sequence) {
+        System.err.println("Illegal acknowledge request from server");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void handleError(String sender, String payload) {
+        eventBus.publish(observer -> observer.addError(payload));
         System.out.println("ERROR: " + payload);
     }
 
@@ -193,12 +778,22 @@ public class ClientConnectionHandler extends ConnectionHandler implements Runnab
 
     /**
      * {@inheritDoc}
+     * <p>
+     * If connected, a reconnect is scheduled (see {@link #run()}), otherwise the state changes to DISCONNECTED and the
+     * observers are informed about the lost connection.
      */
     @Override
     protected void onInterrupted() {
-        for (ClientConnectionObserver observer : observers) {
-            observer.addError("Connection to server lost");
-            observer.stateChanged(DISCONNECTED);
+        if (autoReconnect && resumeToken != null && changeState(CONNECTED, CONFIRM_CONNECT)) {
+            eventBus.publish(observer -> observer.addInfo("Connection to server lost, reconnecting..."));
+            reconnectPending = true;
+            return;
+        }
+        eventBus.publish(observer -> observer.addError("Connection to server lost"));
+        if (!protocolState.is(DISCONNECTED)) {
+            setState(DISCONNECTED);
+        } else {
+            publishState();
         }
     }
 }
@@ -1,6 +1,10 @@
 package ch.zhaw.pm2.multichat.client;
 
 import ch.zhaw.pm2.multichat.protocol.Configuration;
+import ch.zhaw.pm2.multichat.protocol.HistoryPage;
+import ch.zhaw.pm2.multichat.protocol.HistoryQuery;
+
+import java.util.Set;
 
 /**
  * ClientConnectionObserver is an interface that defines the methods to be implemented by classes
@@ -60,6 +64,36 @@ public interface ClientConnectionObserver {
      */
     void addError(String error);
 
+    /**
+     * Called when the list of online users has changed. Only called if the server publishes the roster, so observers
+     * not displaying it do not have to implement it.
+     *
+     * @param users The names of the online users, sorted by name.
+     */
+    default void rosterChanged(Set<String> users) {
+    }
+
+    /**
+     * Called when an ephemeral event (e.g. a typing indicator) has been received. Only called if the server supports
+     * events, so observers not displaying them do not have to implement it.
+     *
+     * @param sender   The sender of the event.
+     * @param receiver The receiver of the event.
+     * @param event    The content of the event.
+     */
+    default void eventReceived(String sender, String receiver, String event) {
+    }
+
+    /**
+     * Called when a page of results of a search in the message history has been received. Only called after
+     * {@link ClientConnectionHandler#searchHistory(HistoryQuery)}, so observers not searching do not have to
+     * implement it.
+     *
+     * @param page The page of results.
+     */
+    default void historyReceived(HistoryPage page) {
+    }
+
     /**
      * Writes a message to the message area, including sender, receiver, and the message content.
      *
@@ -0,0 +1,222 @@
+package ch.zhaw.pm2.multichat.client;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * This class distributes the events of a {@link ClientConnectionHandler} to its {@link ClientConnectionObserver}s.
+ * <p>
+ * Each event is published exactly once and queued for every subscriber. The queue of a subscriber is drained in
+ * batches on the executor of the subscription, one batch at a time, so the events are delivered in order, but never
+ * on the thread publishing them. A slow subscriber therefore does not slow down the network receive thread or other
+ * subscribers. Subscribing and unsubscribing is thread safe and may happen while events are published.
+ * <p>
+ * The queue of a subscriber holds at most {@code multichat.events.pending} events (default 10000). While it is full,
+ * new events are dropped for this subscriber, so a subscriber that cannot keep up (e.g. the JavaFX application thread
+ * during a flood of messages) loses messages, infos, errors and typing events, and instead receives one error with
+ * the number of dropped events once it has caught up. Events published with a key ({@link #publishLatest}) are never
+ * dropped but coalesced: only the latest event per key is delivered, at the position of the first one not yet
+ * delivered, so the subscriber still ends up with the current state and roster.
+ */
+public class ClientEventBus {
+    /**
+     * Maximum number of events queued per subscriber.
+     */
+    static final int MAX_PENDING_EVENTS = Math.max(1, Integer.getInteger("multichat.events.pending", 10_000));
+
+    /**
+     * Default executor for subscriptions without own executor. Uses daemon threads, so it does not keep the
+     * application alive.
+     */
+    private static final ExecutorService defaultExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "client-event-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The current subscriptions.
+     */
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Subscribes the given observer. The events are delivered on a dispatcher thread of the event bus.
+     *
+     * @param observer the observer to subscribe
+     */
+    public void subscribe(ClientConnectionObserver observer) {
+        subscribe(observer, defaultExecutor);
+    }
+
+    /**
+     * Subscribes the given observer. The events are delivered in batches on the given executor
+     * (e.g. {@code Platform::runLater} to receive all events on the JavaFX application thread).
+     *
+     * @param observer the observer to subscribe
+     * @param executor the executor to deliver the events on
+     */
+    public void subscribe(ClientConnectionObserver observer, Executor executor) {
+        Objects.requireNonNull(observer, "Observer must not be null");
+        Objects.requireNonNull(executor, "Executor must not be null");
+        subscriptions.add(new Subscription(observer, executor));
+    }
+
+    /**
+     * Unsubscribes the given observer. Events already queued for the observer are discarded.
+     *
+     * @param observer the observer to unsubscribe
+     */
+    public void unsubscribe(ClientConnectionObserver observer) {
+        subscriptions.removeIf(subscription -> {
+            if (subscription.observer == observer) {
+                subscription.pendingEvents.clear();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Publishes an event to all subscribers. The method returns immediately, the event is delivered asynchronously.
+     *
+     * @param event the event, applied to each subscribed observer
+     */
+    public void publish(Consumer<ClientConnectionObserver> event) {
+        for (Subscription subscription : subscriptions) {
+            subscription.enqueue(event);
+        }
+    }
+
+    /**
+     * Publishes an event to all subscribers, replacing an event with the same key still queued for a subscriber. Such
+     * events are not dropped when the queue of a subscriber is full.
+     *
+     * @param key   the key of the event, e.g. the kind of state it reports
+     * @param event the event, applied to each subscribed observer
+     */
+    public void publishLatest(Object key, Consumer<ClientConnectionObserver> event) {
+        for (Subscription subscription : subscriptions) {
+            subscription.enqueueLatest(key, event);
+        }
+    }
+
+    /**
+     * Subscription of an observer with its queue of pending events.
+     */
+    private static class Subscription {
+        private final ClientConnectionObserver observer;
+        private final Executor executor;
+        private final Queue<Consumer<ClientConnectionObserver>> pendingEvents = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Number of events in {@link #pendingEvents}, without the placeholders of the keyed events.
+         */
+        private final AtomicInteger pendingCount = new AtomicInteger();
+
+        /**
+         * The latest keyed events not delivered yet; each one has a placeholder in {@link #pendingEvents}.
+         */
+        private final Map<Object, Consumer<ClientConnectionObserver>> latestEvents = new ConcurrentHashMap<>();
+
+        /**
+         * Number of events dropped since the last report to the observer.
+         */
+        private final AtomicInteger droppedCount = new AtomicInteger();
+
+        /**
+         * Set while a batch is scheduled or running on the executor.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private Subscription(ClientConnectionObserver observer, Executor executor) {
+            this.observer = observer;
+            this.executor = executor;
+        }
+
+        /**
+         * Queues the event and schedules a batch, if none is scheduled yet.
+         *
+         * @param event the event to queue
+         */
+        private void enqueue(Consumer<ClientConnectionObserver> event) {
+            if (pendingCount.incrementAndGet() > MAX_PENDING_EVENTS) {
+                pendingCount.decrementAndGet();
+                droppedCount.incrementAndGet();
+                return;
+            }
+            pendingEvents.add(observer -> {
+                pendingCount.decrementAndGet();
+                event.accept(observer);
+            });
+            schedule();
+        }
+
+        /**
+         * Stores the keyed event and queues a placeholder for it, if no event with the same key is queued yet.
+         *
+         * @param key   the key of the event
+         * @param event the event to queue
+         */
+        private void enqueueLatest(Object key, Consumer<ClientConnectionObserver> event) {
+            if (latestEvents.put(key, event) == null) {
+                pendingEvents.add(observer -> {
+                    Consumer<ClientConnectionObserver> latest = latestEvents.remove(key);
+                    if (latest != null) {
+                        latest.accept(observer);
+                    }
+                });
+                schedule();
+            }
+        }
+
+        /**
+         * Schedules a batch, if none is scheduled yet.
+         */
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        /**
+         * Delivers all pending events. Events queued while draining are delivered in the same batch.
+         */
+        private void drain() {
+            do {
+                Consumer<ClientConnectionObserver> event;
+                while ((event = pendingEvents.poll()) != null) {
+                    deliver(event);
+                }
+                int dropped = droppedCount.getAndSet(0);
+                if (dropped > 0) {
+                    deliver(observer -> observer.addError(dropped + " events dropped, the client could not keep up"));
+                }
+                scheduled.set(false);
+            } while ((!pendingEvents.isEmpty() || droppedCount.get() > 0) && scheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * Delivers an event to the observer, reporting but not propagating its errors.
+         *
+         * @param event the event to deliver
+         */
+        private void deliver(Consumer<ClientConnectionObserver> event) {
+            try {
+                event.accept(observer);
+            } catch (RuntimeException e) {
+                System.err.println("Error while delivering event: " + e.getMessage());
+            }
+        }
+    }
+}
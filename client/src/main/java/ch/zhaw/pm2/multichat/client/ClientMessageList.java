@@ -4,13 +4,13 @@ import ch.zhaw.pm2.multichat.protocol.Configuration;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 
 import static ch.zhaw.pm2.multichat.protocol.Configuration.MessageType;
 
 /**
  * This class represents a list of messages to be displayed in the chat window of the client application. It
- * contains methods to add messages to the list and to filter the list based on a user-defined string.
+ * contains methods to add messages to the list and to filter the list based on a user-defined query
+ * (see {@link MessageFilter}).
  */
 public class ClientMessageList {
     /**
@@ -38,6 +38,16 @@ public class ClientMessageList {
      */
     private final ClientConnectionObserver observer;
 
+    /**
+     * The query of the last applied filter.
+     */
+    private String filterQuery = "";
+
+    /**
+     * The compiled filter of the last applied query, reused as long as the query does not change.
+     */
+    private MessageFilter filter = MessageFilter.ACCEPT_ALL;
+
     /**
      * Constructor for the ClientMessageList class.
      *
@@ -63,26 +73,33 @@ public class ClientMessageList {
     }
 
     /**
-     * Writes the filtered messages to the GUI's message area based on the user-defined filter.
+     * Writes the filtered messages to the GUI's message area based on the user-defined filter query.
+     * If the query is not valid, an error is written to the message area instead.
      *
-     * @param filter the user-defined filter string.
+     * @param query the user-defined filter query.
      */
-    public void writeFilteredMessages(String filter) {
-        boolean showAll = filter == null || filter.isBlank();
+    public void writeFilteredMessages(String query) {
+        String normalizedQuery = query == null ? "" : query.strip();
+        if (!normalizedQuery.equals(filterQuery)) {
+            try {
+                filter = MessageFilter.compile(normalizedQuery);
+                filterQuery = normalizedQuery;
+            } catch (IllegalArgumentException e) {
+                observer.clearMessageArea();
+                observer.writeError("Invalid filter: " + e.getMessage());
+                return;
+            }
+        }
+        boolean showAll = filter.acceptsAll();
         observer.clearMessageArea();
-        for (int i = 0; i < senderList.size(); i++) {
-            String sender = Objects.requireNonNullElse(senderList.get(i), "");
-            String receiver = Objects.requireNonNullElse(receiverList.get(i), "");
-            String message = Objects.requireNonNull(messageList.get(i), "");
-            if (showAll ||
-                sender.contains(filter) ||
-                receiver.contains(filter) ||
-                message.contains(filter)) {
-                switch (typeList.get(i)) {
+        for (int i = 0; i < typeList.size(); i++) {
+            MessageType type = typeList.get(i);
+            if (showAll || filter.matches(type, senderList.get(i), receiverList.get(i), messageList.get(i))) {
+                switch (type) {
                     case MESSAGE -> observer.writeMessage(senderList.get(i), receiverList.get(i), messageList.get(i));
                     case ERROR -> observer.writeError(messageList.get(i));
                     case INFO -> observer.writeInfo(messageList.get(i));
-                    default -> observer.writeError("Unexpected message type: " + typeList.get(i));
+                    default -> observer.writeError("Unexpected message type: " + type);
                 }
             }
         }
@@ -0,0 +1,470 @@
+package ch.zhaw.pm2.multichat.client;
+
+import ch.zhaw.pm2.multichat.protocol.ChatProtocolException;
+import ch.zhaw.pm2.multichat.protocol.Configuration;
+import ch.zhaw.pm2.multichat.protocol.ConnectionHandler;
+import ch.zhaw.pm2.multichat.protocol.HistoryPage;
+import ch.zhaw.pm2.multichat.protocol.HistoryQuery;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+import ch.zhaw.pm2.multichat.protocol.SocketProfile;
+
+import javax.net.ssl.SSLContext;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.*;
+
+/**
+ * The {@code HeadlessClient} class is a client without user interface, e.g. for bots and scripts.
+ * <p>
+ * It reads messages line by line from stdin or a file and sends them to the server, using the same format as the
+ * chat window ({@code @user message} for a direct message, otherwise the message is sent to all users).
+ * Received traffic is written to stdout as one tab separated record per line:
+ * {@code <TYPE>\t<sender>\t<receiver>\t<message>}. Tabs, line breaks and backslashes within the fields are escaped.
+ * All diagnostic output is redirected to stderr, so stdout only contains records.
+ * <p>
+ * A line {@code /history [from:<user>] [since:<date|instant>] [until:<date|instant>] [limit:<n>] <words>} searches the
+ * message history of the server (if kept) and writes the first page of results newest first as records
+ * {@code HISTORY\t<time>\t<sender>\t<receiver>\t<message>}. Dates ({@code 2026-10-18}) are taken in the local time
+ * zone, instants in ISO format ({@code 2026-10-18T12:00:00Z}).
+ * <p>
+ * Usage: {@code HeadlessClient [--host <host>] [--port <port>] [--user <name>] [--rate <messages/s>]
+ * [--file <path>] [--listen] [--reliable] [--profile <profile>] [--truststore <path>]}
+ * <ul>
+ *     <li>{@code --rate} limits the number of sent messages per second (default: 0, unlimited)</li>
+ *     <li>{@code --profile} tunes the socket for latency or throughput (see {@link SocketProfile}, default: the
+ *     system property {@value SocketProfile#PROPERTY} or {@code interactive})</li>
+ *     <li>{@code --reliable} acknowledges the received messages to the server (reliable delivery)</li>
+ *     <li>{@code --truststore} connects using TLS, trusting the certificate of the server in the given trust store
+ *     (password, if any, in the environment variable {@value NetworkHandler#TLS_PASSWORD_VARIABLE})</li>
+ *     <li>{@code --listen} keeps receiving after the input ended, until the server closes the connection</li>
+ * </ul>
+ */
+public class HeadlessClient implements ClientConnectionObserver {
+    /**
+     * Maximum time to wait for the confirmation of a connect or disconnect request.
+     */
+    private static final long CONFIRM_TIMEOUT_SECONDS = 10;
+
+    /**
+     * A pattern to extract the username and message from a string (same format as in the chat window).
+     */
+    private final Pattern messagePattern = Pattern.compile("^(?:@(.\\S*))?\\s*(.*)$");
+
+    /**
+     * The stream to write the received records to.
+     */
+    private final PrintStream records;
+
+    /**
+     * Released as soon the connection is confirmed by the server.
+     */
+    private final CountDownLatch connected = new CountDownLatch(1);
+
+    /**
+     * Released as soon the connection is closed.
+     */
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+
+    /**
+     * The command prefix of a search in the message history.
+     */
+    private static final String HISTORY_COMMAND = "/history";
+
+    /**
+     * The pages of history results received, taken by the thread sending the queries.
+     */
+    private final BlockingQueue<HistoryPage> historyPages = new LinkedBlockingQueue<>();
+
+    /**
+     * Indicates if the received messages are acknowledged to the server.
+     */
+    private final boolean reliable;
+
+    /**
+     * Constructs a new HeadlessClient writing the received records to the given stream.
+     *
+     * @param records  the stream to write the received records to
+     * @param reliable true to acknowledge the received messages to the server, false otherwise
+     */
+    public HeadlessClient(PrintStream records, boolean reliable) {
+        this.records = records;
+        this.reliable = reliable;
+    }
+
+    /**
+     * Starts the headless client with the given command line arguments.
+     *
+     * @param args command line arguments (see class documentation)
+     */
+    public static void main(String[] args) {
+        PrintStream records = new PrintStream(System.out, true, StandardCharsets.UTF_8);
+        System.setOut(System.err);
+        String host = NetworkHandler.DEFAULT_ADDRESS.getHostAddress();
+        int port = NetworkHandler.DEFAULT_PORT;
+        String userName = null;
+        String file = null;
+        double rate = 0;
+        boolean listen = false;
+        boolean reliable = false;
+        String trustStore = null;
+        SocketProfile profile;
+        try {
+            profile = SocketProfile.configured();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host" -> host = args[++i];
+                    case "--port" -> port = Integer.parseInt(args[++i]);
+                    case "--user" -> userName = args[++i];
+                    case "--rate" -> rate = Double.parseDouble(args[++i]);
+                    case "--file" -> file = args[++i];
+                    case "--listen" -> listen = true;
+                    case "--reliable" -> reliable = true;
+                    case "--profile" -> profile = SocketProfile.parse(args[++i]);
+                    case "--truststore" -> trustStore = args[++i];
+                    default -> throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Illegal arguments: [--host <host>] [--port <port>] [--user <name>] "
+                + "[--rate <messages/s>] [--file <path>] [--listen] [--reliable] [--profile <profile>] "
+                + "[--truststore <path>]");
+            return;
+        }
+        HeadlessClient client = new HeadlessClient(records, reliable);
+        try (BufferedReader input = file == null
+            ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+            : new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String password = System.getenv(NetworkHandler.TLS_PASSWORD_VARIABLE);
+            SSLContext sslContext = trustStore == null ? null : NetworkHandler.createClientSslContext(Path.of(trustStore),
+                password == null ? null : password.toCharArray());
+            client.run(NetworkHandler.openConnection(InetAddress.getByName(host), port, sslContext, profile), userName,
+                input, rate, listen);
+        } catch (IOException | ChatProtocolException e) {
+            System.err.println("Error running headless client. " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Connects to the server, sends all messages read from the input and disconnects again.
+     *
+     * @param connection the connection to the server
+     * @param userName   the requested username, or null to let the server choose one
+     * @param input      the input to read messages from, one message per line
+     * @param rate       the maximum number of messages per second, 0 or less for unlimited
+     * @param listen     true to keep receiving after the input ended, until the server closes the connection
+     * @throws IOException           if the input could not be read
+     * @throws ChatProtocolException if the server did not confirm the connection
+     * @throws InterruptedException  if the thread is interrupted while waiting
+     */
+    public void run(NetworkHandler.NetworkConnection<NetworkMessage> connection, String userName,
+                    BufferedReader input, double rate, boolean listen)
+        throws IOException, ChatProtocolException, InterruptedException {
+        ClientConnectionHandler connectionHandler = new ClientConnectionHandler(connection, userName);
+        connectionHandler.setReliableDelivery(reliable);
+        connectionHandler.addObserver(this);
+        new Thread(connectionHandler, "headless-receiver").start();
+        try {
+            connectionHandler.connect();
+            if (!connected.await(CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                || connectionHandler.getState() != CONNECTED) {
+                throw new ChatProtocolException("Connection not confirmed by server");
+            }
+            sendMessages(connectionHandler, input, rate);
+            connectionHandler.awaitTransfers();
+            if (listen) {
+                disconnected.await();
+            } else if (connectionHandler.getState() == CONNECTED) {
+                connectionHandler.disconnect();
+                disconnected.await(CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } finally {
+            connectionHandler.terminate();
+            LatencyHistogram latencies = connectionHandler.getLatencies();
+            if (latencies.getCount(LatencyHistogram.Hop.TOTAL) > 0) {
+                System.err.print("Latencies of traced messages:" + System.lineSeparator() + latencies);
+            }
+        }
+    }
+
+    /**
+     * Sends the messages read from the input, paced to the given rate.
+     *
+     * @param connectionHandler the connection handler to send the messages with
+     * @param input             the input to read messages from, one message per line
+     * @param rate              the maximum number of messages per second, 0 or less for unlimited
+     * @throws IOException           if the input could not be read
+     * @throws ChatProtocolException if the connection is no longer available
+     */
+    private void sendMessages(ClientConnectionHandler connectionHandler, BufferedReader input, double rate)
+        throws IOException, ChatProtocolException {
+        long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        long nextSend = System.nanoTime();
+        String line;
+        while ((line = input.readLine()) != null && connectionHandler.getState() == CONNECTED) {
+            if (line.strip().equals(HISTORY_COMMAND) || line.strip().startsWith(HISTORY_COMMAND + " ")) {
+                searchHistory(connectionHandler, line.strip().substring(HISTORY_COMMAND.length()));
+                continue;
+            }
+            Matcher matcher = messagePattern.matcher(line.strip());
+            if (line.isBlank() || !matcher.find()) {
+                continue;
+            }
+            String receiver = matcher.group(1);
+            if (receiver == null || receiver.isBlank()) receiver = ConnectionHandler.USER_ALL;
+            if (intervalNanos > 0) {
+                long delay = nextSend - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+                nextSend = Math.max(nextSend, System.nanoTime() - intervalNanos) + intervalNanos;
+            }
+            connectionHandler.message(receiver, matcher.group(2));
+        }
+    }
+
+    /**
+     * Searches the message history and waits for the first page of results, which is written by
+     * {@link #historyReceived(HistoryPage)}. Malformed queries and missing results are reported on stderr.
+     *
+     * @param connectionHandler the connection handler to send the query with
+     * @param command           the query after the command prefix
+     * @throws ChatProtocolException if the connection is no longer available
+     */
+    private void searchHistory(ClientConnectionHandler connectionHandler, String command)
+        throws ChatProtocolException {
+        String sender = null;
+        long since = 0;
+        long until = 0;
+        int limit = HistoryQuery.DEFAULT_LIMIT;
+        StringBuilder words = new StringBuilder();
+        List<String> terms;
+        try {
+            for (String token : command.strip().split("\\s+")) {
+                if (token.startsWith("from:")) {
+                    sender = token.substring(5);
+                } else if (token.startsWith("since:")) {
+                    since = parseTime(token.substring(6), false);
+                } else if (token.startsWith("until:")) {
+                    until = parseTime(token.substring(6), true);
+                } else if (token.startsWith("limit:")) {
+                    limit = Integer.parseInt(token.substring(6));
+                } else {
+                    words.append(token).append(' ');
+                }
+            }
+            terms = HistoryQuery.parseTerms(words.toString());
+        } catch (DateTimeParseException | NumberFormatException | ChatProtocolException e) {
+            System.err.println("Illegal history query: " + e.getMessage());
+            return;
+        }
+        HistoryQuery query = connectionHandler.searchHistory(new HistoryQuery(0, terms, sender, since, until, 0,
+            limit));
+        try {
+            HistoryPage page;
+            do {
+                page = historyPages.poll(CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } while (page != null && page.queryId() != query.id());
+            if (page == null) {
+                System.err.println("No history results received");
+            } else if (page.next() != 0) {
+                System.err.println("More history results before message " + page.next());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parses a date in the local time zone or an instant in ISO format.
+     *
+     * @param text  the date or instant
+     * @param until true to take the end of a date, false to take its start
+     * @return the time in milliseconds since the epoch
+     * @throws DateTimeParseException if the text is neither a date nor an instant
+     */
+    private static long parseTime(String text, boolean until) {
+        if (text.contains("T")) {
+            return Instant.parse(text).toEpochMilli();
+        }
+        LocalDate date = LocalDate.parse(text);
+        if (until) {
+            return date.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() - 1;
+        }
+        return date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Writes a record to the output stream.
+     *
+     * @param type     the type of the record
+     * @param sender   the sender, may be null
+     * @param receiver the receiver, may be null
+     * @param message  the message content, may be null
+     */
+    private void writeRecord(Configuration.MessageType type, String sender, String receiver, String message) {
+        records.println(type + "\t" + escape(sender) + "\t" + escape(receiver) + "\t" + escape(message));
+    }
+
+    /**
+     * Escapes tabs, line breaks and backslashes, so the value fits into a single field of a record.
+     *
+     * @param value the value to escape, may be null
+     * @return the escaped value, an empty string for null
+     */
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> escaped.append("\\\\");
+                case '\t' -> escaped.append("\\t");
+                case '\n' -> escaped.append("\\n");
+                case '\r' -> escaped.append("\\r");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stateChanged(Configuration.ProtocolState newProtocolState) {
+        if (newProtocolState == CONNECTED) {
+            connected.countDown();
+        } else if (newProtocolState == DISCONNECTED) {
+            connected.countDown();
+            disconnected.countDown();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUserName(String userName) {
+        System.err.println("Connected as " + userName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setServerPort(int port) {
+        // not displayed in headless mode
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setServerAddress(String address) {
+        // not displayed in headless mode
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addInfo(String info) {
+        writeInfo(info);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addMessage(String sender, String receiver, String message) {
+        writeMessage(sender, receiver, message);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addError(String error) {
+        writeError(error);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rosterChanged(Set<String> users) {
+        System.err.println("Online users: " + users.size());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The messages are written as HISTORY records, including the time they have been routed.
+     */
+    @Override
+    public void historyReceived(HistoryPage page) {
+        for (HistoryPage.Entry entry : page.messages()) {
+            records.println("HISTORY\t" + Instant.ofEpochMilli(entry.time()) + "\t" + escape(entry.sender()) + "\t"
+                + escape(entry.receiver()) + "\t" + escape(entry.payload()));
+        }
+        historyPages.add(page);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeMessage(String sender, String receiver, String message) {
+        writeRecord(Configuration.MessageType.MESSAGE, sender, receiver, message);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeInfo(String message) {
+        writeRecord(Configuration.MessageType.INFO, null, null, message);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeError(String message) {
+        writeRecord(Configuration.MessageType.ERROR, null, null, message);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearMessageArea() {
+        // records are streamed and can not be cleared
+    }
+}
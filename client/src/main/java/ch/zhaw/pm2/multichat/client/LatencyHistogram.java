@@ -0,0 +1,143 @@
+package ch.zhaw.pm2.multichat.client;
+
+import ch.zhaw.pm2.multichat.protocol.MessageTrace;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records the latencies of the traced messages received by a client, broken down by hop.
+ * <p>
+ * The durations are counted in buckets of increasing width: each power of two (in microseconds) is split into eight
+ * buckets, so a percentile is reported with an error of at most 12.5%. Recording is lock free and allocation free and
+ * may happen concurrently with reading. Negative durations (clocks of sender, server and receiver out of sync) are
+ * counted as 0.
+ */
+public class LatencyHistogram {
+    /**
+     * The hops of a message from the sending to the receiving client.
+     */
+    public enum Hop {
+        /** From the sending client to the server receiving the message. */
+        UPSTREAM,
+        /** From receiving the message on the server to routing it to the session of the receiver. */
+        ROUTING,
+        /** From routing the message to writing it to the connection of the receiver (outbound queue). */
+        QUEUE,
+        /** From writing the message on the server to receiving it on the client. */
+        DOWNSTREAM,
+        /** From the sending to the receiving client. */
+        TOTAL
+    }
+
+    /**
+     * Number of buckets per power of two, as power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets per hop, covering durations up to 2^63 microseconds.
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(Hop.values().length * BUCKETS);
+
+    /**
+     * Records the hops of a received message.
+     *
+     * @param trace      the trace of the message
+     * @param receivedAt the time the message has been received in microseconds since the epoch
+     */
+    public void record(MessageTrace trace, long receivedAt) {
+        record(Hop.UPSTREAM, trace.clientSend(), trace.serverReceive());
+        record(Hop.ROUTING, trace.serverReceive(), trace.serverRoute());
+        record(Hop.QUEUE, trace.serverRoute(), trace.serverWrite());
+        record(Hop.DOWNSTREAM, trace.serverWrite(), receivedAt);
+        record(Hop.TOTAL, trace.clientSend(), receivedAt);
+    }
+
+    /**
+     * Records the duration of a hop, if both timestamps have been taken.
+     */
+    private void record(Hop hop, long from, long to) {
+        if (from != 0 && to != 0) {
+            counts.incrementAndGet(hop.ordinal() * BUCKETS + bucketOf(Math.max(0, to - from)));
+        }
+    }
+
+    /**
+     * Returns the number of recorded durations of a hop.
+     *
+     * @param hop the hop
+     * @return the number of recorded durations
+     */
+    public long getCount(Hop hop) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(hop.ordinal() * BUCKETS + i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns a percentile of the recorded durations of a hop.
+     *
+     * @param hop        the hop
+     * @param percentile the percentile (0 - 100)
+     * @return the upper bound of the bucket containing the percentile in microseconds, 0 if nothing is recorded
+     */
+    public long getPercentile(Hop hop, double percentile) {
+        long count = getCount(hop);
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(hop.ordinal() * BUCKETS + i);
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    /**
+     * Returns a summary of the percentiles of all hops, one line per hop.
+     *
+     * @return the summary
+     */
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        for (Hop hop : Hop.values()) {
+            summary.append(String.format("%-10s count=%d p50=%dus p90=%dus p99=%dus max=%dus%n", hop, getCount(hop),
+                getPercentile(hop, 50), getPercentile(hop, 90), getPercentile(hop, 99), getPercentile(hop, 100)));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Returns the bucket of a duration.
+     */
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest duration counted in a bucket.
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+    }
+}
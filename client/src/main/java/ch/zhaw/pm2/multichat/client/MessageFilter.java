@@ -0,0 +1,286 @@
+package ch.zhaw.pm2.multichat.client;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static ch.zhaw.pm2.multichat.protocol.Configuration.MessageType;
+
+/**
+ * This class represents a compiled filter query for the message history of the client.
+ * <p>
+ * A query consists of terms which are combined with {@code AND} (default if no operator is given) and {@code OR}
+ * ({@code AND} binds stronger than {@code OR}). A term is either a plain word, which is matched against sender,
+ * receiver and message, or a field term of the form {@code field:value} with one of the following fields:
+ * <ul>
+ *     <li>{@code from:} substring of the sender</li>
+ *     <li>{@code to:} substring of the receiver (e.g. {@code to:*} for messages sent to all users)</li>
+ *     <li>{@code type:} message type ({@code MESSAGE}, {@code INFO} or {@code ERROR})</li>
+ *     <li>{@code text:} substring of the message content</li>
+ * </ul>
+ * Values containing spaces can be quoted, e.g. {@code text:"deploy done"}. Any other word followed by a colon is plain
+ * text, so {@code Re: deploy} or {@code http://host} are searched as before.
+ * <p>
+ * A query without any field terms, operators or quotes is matched as a whole against sender, receiver and message,
+ * as before the query syntax was introduced, so {@code hello world} matches the phrase.
+ * <p>
+ * The query is compiled once into a list of clauses, where each clause holds its conditions ordered by evaluation
+ * cost, so the cheap type check and the short sender/receiver columns are checked before the message content.
+ */
+public final class MessageFilter {
+    /**
+     * Filter which accepts every message.
+     */
+    public static final MessageFilter ACCEPT_ALL = new MessageFilter(List.of(List.of()));
+
+    /**
+     * The names of the fields of a field term (lower case).
+     */
+    private static final Set<String> FIELD_NAMES = Set.of("from", "to", "type", "text");
+
+    /**
+     * The clauses of the query in disjunctive normal form. A message matches, if all conditions of any clause match.
+     */
+    private final List<List<Condition>> clauses;
+
+    /**
+     * Private constructor: use {@link MessageFilter#compile(String)} to create an instance.
+     *
+     * @param clauses the compiled clauses of the query
+     */
+    private MessageFilter(List<List<Condition>> clauses) {
+        this.clauses = clauses;
+    }
+
+    /**
+     * Compiles the given query into a filter.
+     *
+     * @param query the filter query, a blank or null query accepts all messages
+     * @return the compiled filter
+     * @throws IllegalArgumentException if the query is not valid
+     */
+    public static MessageFilter compile(String query) {
+        if (query == null || query.isBlank()) {
+            return ACCEPT_ALL;
+        }
+        List<Token> tokens = tokenize(query);
+        if (tokens.stream().noneMatch(Token::isSyntax)) {
+            return new MessageFilter(List.of(List.of(new Condition(Field.ANY, null, query))));
+        }
+        List<List<Condition>> clauses = new ArrayList<>();
+        List<Condition> clause = new ArrayList<>();
+        boolean expectTerm = true;
+        for (Token token : tokens) {
+            if (token.isOperator("OR")) {
+                if (expectTerm) throw new IllegalArgumentException("Missing filter term before OR");
+                clause.sort(Comparator.comparingInt(Condition::cost));
+                clauses.add(List.copyOf(clause));
+                clause = new ArrayList<>();
+                expectTerm = true;
+            } else if (token.isOperator("AND")) {
+                if (expectTerm) throw new IllegalArgumentException("Missing filter term before AND");
+                expectTerm = true;
+            } else {
+                clause.add(parseTerm(token));
+                expectTerm = false;
+            }
+        }
+        if (expectTerm) {
+            throw new IllegalArgumentException("Missing filter term at end of query");
+        }
+        clause.sort(Comparator.comparingInt(Condition::cost));
+        clauses.add(List.copyOf(clause));
+        return new MessageFilter(List.copyOf(clauses));
+    }
+
+    /**
+     * Checks if the filter accepts every message, so the evaluation can be skipped.
+     *
+     * @return true if every message is accepted, false otherwise
+     */
+    public boolean acceptsAll() {
+        return this == ACCEPT_ALL;
+    }
+
+    /**
+     * Checks if the given message matches the filter.
+     *
+     * @param type     the type of the message
+     * @param sender   the sender of the message, may be null
+     * @param receiver the receiver of the message, may be null
+     * @param message  the content of the message, may be null
+     * @return true if the message matches the filter, false otherwise
+     */
+    public boolean matches(MessageType type, String sender, String receiver, String message) {
+        for (List<Condition> clause : clauses) {
+            boolean matching = true;
+            for (Condition condition : clause) {
+                if (!condition.matches(type, sender, receiver, message)) {
+                    matching = false;
+                    break;
+                }
+            }
+            if (matching) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a single term of the query into a condition.
+     *
+     * @param token the term to parse
+     * @return the condition for the term
+     * @throws IllegalArgumentException if the term uses an unknown message type
+     */
+    private static Condition parseTerm(Token token) {
+        String term = token.text();
+        int separator = token.fieldSeparator();
+        if (separator < 0) {
+            return new Condition(Field.ANY, null, term);
+        }
+        String fieldName = term.substring(0, separator).toLowerCase(Locale.ROOT);
+        String value = term.substring(separator + 1);
+        return switch (fieldName) {
+            case "from" -> new Condition(Field.FROM, null, value);
+            case "to" -> new Condition(Field.TO, null, value);
+            case "text" -> new Condition(Field.TEXT, null, value);
+            case "type" -> {
+                try {
+                    yield new Condition(Field.TYPE, MessageType.valueOf(value.toUpperCase(Locale.ROOT)), value);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown message type in filter: " + value);
+                }
+            }
+            default -> throw new IllegalStateException("Unexpected filter field: " + fieldName);
+        };
+    }
+
+    /**
+     * Splits the query into terms. Whitespace separates terms, except within double quotes.
+     *
+     * @param query the query to split
+     * @return the list of terms with quotes removed
+     * @throws IllegalArgumentException if a quote is not closed
+     */
+    private static List<Token> tokenize(String query) {
+        List<Token> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean hasToken = false;
+        int quoteStart = -1;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                hasToken = true;
+                if (quoteStart < 0) {
+                    quoteStart = current.length();
+                }
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (hasToken) {
+                    tokens.add(new Token(current.toString(), quoteStart));
+                    current.setLength(0);
+                    hasToken = false;
+                    quoteStart = -1;
+                }
+            } else {
+                current.append(c);
+                hasToken = true;
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Missing closing quote in filter");
+        }
+        if (hasToken) {
+            tokens.add(new Token(current.toString(), quoteStart));
+        }
+        return tokens;
+    }
+
+    /**
+     * A term or operator of the query.
+     *
+     * @param text       the text with quotes removed
+     * @param quoteStart the position in the text, where the first quoted part starts, -1 if nothing is quoted
+     */
+    private record Token(String text, int quoteStart) {
+        /**
+         * Checks if the token is the given operator (only if not quoted).
+         */
+        boolean isOperator(String operator) {
+            return quoteStart < 0 && operator.equals(text);
+        }
+
+        /**
+         * Returns the position of the colon separating a known field name (not quoted) from the value.
+         *
+         * @return the position of the separator, -1 if the token is no field term
+         */
+        int fieldSeparator() {
+            int separator = text.indexOf(':');
+            if (separator <= 0 || (quoteStart >= 0 && quoteStart <= separator)) {
+                return -1;
+            }
+            return FIELD_NAMES.contains(text.substring(0, separator).toLowerCase(Locale.ROOT)) ? separator : -1;
+        }
+
+        /**
+         * Checks if the token uses the query syntax: an operator, a field term or a quote.
+         */
+        boolean isSyntax() {
+            return isOperator("AND") || isOperator("OR") || quoteStart >= 0 || fieldSeparator() >= 0;
+        }
+    }
+
+    /**
+     * This enum describes the fields a condition can check, ordered by their evaluation cost.
+     */
+    private enum Field {
+        TYPE, FROM, TO, TEXT, ANY
+    }
+
+    /**
+     * A single condition of a clause.
+     *
+     * @param field the field to check
+     * @param type  the expected message type, only used for {@link Field#TYPE}
+     * @param value the expected substring
+     */
+    private record Condition(Field field, MessageType type, String value) {
+        /**
+         * Returns the relative evaluation cost of this condition.
+         *
+         * @return the evaluation cost
+         */
+        int cost() {
+            return field.ordinal();
+        }
+
+        /**
+         * Checks if the given message matches this condition.
+         *
+         * @param messageType the type of the message
+         * @param sender      the sender of the message, may be null
+         * @param receiver    the receiver of the message, may be null
+         * @param message     the content of the message, may be null
+         * @return true if the condition matches, false otherwise
+         */
+        boolean matches(MessageType messageType, String sender, String receiver, String message) {
+            return switch (field) {
+                case TYPE -> messageType == type;
+                case FROM -> contains(sender);
+                case TO -> contains(receiver);
+                case TEXT -> contains(message);
+                case ANY -> contains(sender) || contains(receiver) || contains(message);
+            };
+        }
+
+        private boolean contains(String column) {
+            return column != null && column.contains(value);
+        }
+    }
+}
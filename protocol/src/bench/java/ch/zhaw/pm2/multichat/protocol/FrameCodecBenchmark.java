@@ -0,0 +1,102 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * This benchmark measures the memory allocated per frame by the {@link FrameCodec}, compared to a new object stream
+ * per frame as the connections used before, and the size of the frames with and without a {@link MessageTrace}.
+ * <p>
+ * The allocation is read from the thread MXBean after a warm-up of the same number of frames. The encoder gets two
+ * alternating messages, so each frame is serialized (the codec reuses the bytes of a message sent again).
+ * <p>
+ * Usage: {@code FrameCodecBenchmark [<frames>]} (default 200000).
+ */
+public final class FrameCodecBenchmark {
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private FrameCodecBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the number of frames
+     * @throws Exception if a frame can not be encoded or decoded
+     */
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        NetworkMessage[] messages = {
+            new NetworkMessage("alice", "*", Configuration.DataType.MESSAGE,
+                "hello world, this is a typical chat line", null, 42),
+            new NetworkMessage("alice", "*", Configuration.DataType.MESSAGE,
+                "hello world, this is another chat line", null, 43)
+        };
+
+        OutputStream sink = new BufferedOutputStream(OutputStream.nullOutputStream(), 8192);
+        System.out.printf("encode, stream per frame: %d bytes/frame%n", allocated(frames, i -> {
+            ObjectOutputStream out = new ObjectOutputStream(sink);
+            out.writeObject(messages[i % 2]);
+            out.flush();
+        }));
+        System.out.printf("encode, FrameCodec:       %d bytes/frame%n", allocated(frames,
+            i -> FrameCodec.write(messages[i % 2], sink)));
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            FrameCodec.write(messages[i % 2], encoded);
+        }
+        byte[] thousandFrames = encoded.toByteArray();
+        InputStream[] in = new InputStream[1];
+        System.out.printf("decode, stream per frame: %d bytes/frame%n", allocated(frames, i -> {
+            if (i % 1000 == 0) {
+                in[0] = new BufferedInputStream(new ByteArrayInputStream(thousandFrames), 8192);
+            }
+            new ObjectInputStream(in[0]).readObject();
+        }));
+        System.out.printf("decode, FrameCodec:       %d bytes/frame%n", allocated(frames, i -> {
+            if (i % 1000 == 0) {
+                in[0] = new BufferedInputStream(new ByteArrayInputStream(thousandFrames), 8192);
+            }
+            FrameCodec.read(in[0]);
+        }));
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        System.out.printf("frame size: untraced %d bytes, traced %d bytes%n",
+            FrameCodec.write(new NetworkMessage("alice", "*", Configuration.DataType.MESSAGE, "hello world", null, 42),
+                frame),
+            FrameCodec.write(new NetworkMessage("alice", "*", Configuration.DataType.MESSAGE, "hello world", 42,
+                MessageTrace.start()), frame));
+    }
+
+    /**
+     * An operation on the i-th frame.
+     */
+    private interface FrameOperation {
+        void run(int index) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * Runs an operation on the given number of frames twice and returns the bytes allocated per frame in the second
+     * run.
+     */
+    private static long allocated(int frames, FrameOperation operation) throws IOException, ClassNotFoundException {
+        for (int i = 0; i < frames; i++) {
+            operation.run(i);
+        }
+        long start = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < frames; i++) {
+            operation.run(i);
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - start) / frames;
+    }
+}
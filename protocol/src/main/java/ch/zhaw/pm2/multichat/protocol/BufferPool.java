@@ -0,0 +1,163 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A striped pool of byte buffers of a fixed size, used for the receive buffers of the connections.
+ * <p>
+ * Buffers are leased by an owner (e.g. a connection) and returned with {@link Lease#release()}. To reduce contention,
+ * the pool is split into stripes and each thread uses the stripe selected by its id. If the stripe is empty, a new
+ * buffer is allocated; if it is full, a returned buffer is left to the garbage collector. So the pool never blocks and
+ * holds at most {@code stripes * buffersPerStripe} idle buffers.
+ * <p>
+ * With the system property {@code multichat.buffers.leakDetection=true} (meant for tests), the pool records where each
+ * lease has been taken and reports leases, whose owner has been garbage collected without releasing the buffer,
+ * to stderr. The number of detected leaks is available with {@link #getLeakCount()}.
+ */
+public final class BufferPool {
+    /**
+     * Size of the buffers of the default pool.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Indicates if leak detection is enabled.
+     */
+    private static final boolean LEAK_DETECTION = Boolean.getBoolean("multichat.buffers.leakDetection");
+
+    /**
+     * Cleaner notified when the owner of a lease becomes unreachable, only used with leak detection.
+     */
+    private static final Cleaner leakDetector = LEAK_DETECTION ? Cleaner.create() : null;
+
+    /**
+     * The pool used for the buffers of the connections.
+     */
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE,
+        Runtime.getRuntime().availableProcessors() * 2, 64);
+
+    private final int bufferSize;
+    private final List<ArrayBlockingQueue<byte[]>> stripes;
+    private final AtomicInteger leakCount = new AtomicInteger();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param bufferSize       the size of the buffers in bytes
+     * @param stripes          the number of stripes
+     * @param buffersPerStripe the maximum number of idle buffers per stripe
+     */
+    public BufferPool(int bufferSize, int stripes, int buffersPerStripe) {
+        this.bufferSize = bufferSize;
+        List<ArrayBlockingQueue<byte[]>> queues = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, stripes); i++) {
+            queues.add(new ArrayBlockingQueue<>(buffersPerStripe));
+        }
+        this.stripes = List.copyOf(queues);
+    }
+
+    /**
+     * Returns the pool used for the buffers of the connections.
+     *
+     * @return the default pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Leases a buffer from the pool. The content of the buffer is undefined.
+     *
+     * @param owner the object using the buffer, to detect leaks if the owner is garbage collected
+     * @return the lease of the buffer
+     */
+    public Lease lease(Object owner) {
+        byte[] buffer = stripe().poll();
+        return new Lease(buffer != null ? buffer : new byte[bufferSize], owner);
+    }
+
+    /**
+     * Returns the number of leases, which have not been released before their owner has been garbage collected.
+     * Only counted with leak detection enabled.
+     *
+     * @return the number of detected leaks
+     */
+    public int getLeakCount() {
+        return leakCount.get();
+    }
+
+    private ArrayBlockingQueue<byte[]> stripe() {
+        return stripes.get((int) (Thread.currentThread().getId() % stripes.size()));
+    }
+
+    /**
+     * The lease of a buffer. A lease must be released exactly once, after the buffer is no longer used.
+     * Releasing it again has no effect.
+     */
+    public final class Lease {
+        private final byte[] buffer;
+        private final LeakState leakState;
+        private final Cleaner.Cleanable cleanable;
+
+        private Lease(byte[] buffer, Object owner) {
+            this.buffer = buffer;
+            if (LEAK_DETECTION) {
+                leakState = new LeakState(new Throwable("Buffer leased here"), leakCount);
+                cleanable = leakDetector.register(owner, leakState);
+            } else {
+                leakState = new LeakState(null, null);
+                cleanable = null;
+            }
+        }
+
+        /**
+         * Returns the leased buffer.
+         *
+         * @return the buffer
+         */
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        /**
+         * Returns the buffer to the pool.
+         */
+        public void release() {
+            if (leakState.released.compareAndSet(false, true)) {
+                if (cleanable != null) {
+                    cleanable.clean();
+                }
+                stripe().offer(buffer);
+            }
+        }
+    }
+
+    /**
+     * State of a lease checked when its owner is garbage collected. Must not reference the owner or the lease.
+     */
+    private static final class LeakState implements Runnable {
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final Throwable origin;
+        private final AtomicInteger leakCount;
+
+        private LeakState(Throwable origin, AtomicInteger leakCount) {
+            this.origin = origin;
+            this.leakCount = leakCount;
+        }
+
+        @Override
+        public void run() {
+            if (!released.get()) {
+                leakCount.incrementAndGet();
+                System.err.println("LEAK: buffer not released before its owner was garbage collected. "
+                    + Arrays.toString(origin.getStackTrace()));
+            }
+        }
+    }
+}
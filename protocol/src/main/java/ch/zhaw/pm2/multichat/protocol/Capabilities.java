@@ -0,0 +1,203 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This record describes the capabilities of a peer, which are negotiated in the CONNECT handshake.
+ * <p>
+ * The client advertises its capabilities in the CONNECT request, ordered by preference. The server chooses the first
+ * option of each list that it supports as well and returns the chosen settings in the CONFIRM reply.
+ * Peers not sending any capabilities (older versions) are treated as {@link #LEGACY}.
+ * <p>
+ * The capabilities are transmitted in a compact text form, e.g. {@code version=2;codecs=java;compression=none;
+ * batching=false;ack=true;maxFrameSize=65536;chunkSize=8192;roster=true;events=true;history=true} (without line
+ * break).
+ * Unknown keys are ignored, so newer peers can add capabilities without breaking older ones.
+ *
+ * @param version          the protocol version
+ * @param codecs           the supported codecs to encode frames, ordered by preference
+ * @param compressions     the supported payload compressions, ordered by preference
+ * @param batching         true if multiple frames may be combined
+ * @param acknowledgements true if received messages can be acknowledged (reliable delivery)
+ * @param maxFrameSize     the maximum payload size in characters
+ * @param chunkSize        the size of the chunks large payloads are split into, 0 if chunked transfer is not supported
+ * @param roster           true if the peer receives the list of online users (see {@link RosterUpdate})
+ * @param events           true if the peer sends and receives ephemeral events (e.g. typing indicators)
+ * @param history          true if the peer searches (client) or keeps (server) the message history, see
+ *                         {@link HistoryQuery}
+ */
+public record Capabilities(int version, List<String> codecs, List<String> compressions, boolean batching,
+                           boolean acknowledgements, int maxFrameSize, int chunkSize, boolean roster,
+                           boolean events, boolean history) {
+    /**
+     * Protocol version of peers without capability negotiation.
+     */
+    public static final int LEGACY_VERSION = 1;
+
+    /**
+     * Protocol version of this implementation.
+     */
+    public static final int CURRENT_VERSION = 2;
+
+    /**
+     * Codec using Java object serialization.
+     */
+    public static final String CODEC_JAVA = "java";
+
+    /**
+     * No compression of the payload.
+     */
+    public static final String COMPRESSION_NONE = "none";
+
+    /**
+     * Default maximum payload size in characters.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+    /**
+     * Default size of the chunks of large payloads in characters.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Capabilities of peers without capability negotiation.
+     */
+    public static final Capabilities LEGACY = new Capabilities(LEGACY_VERSION, List.of(CODEC_JAVA),
+        List.of(COMPRESSION_NONE), false, false, Integer.MAX_VALUE, 0, false, false, false);
+
+    /**
+     * Capabilities supported by this implementation. The message history is only offered by servers keeping it.
+     */
+    public static final Capabilities SUPPORTED = new Capabilities(CURRENT_VERSION, List.of(CODEC_JAVA),
+        List.of(COMPRESSION_NONE), false, true, DEFAULT_MAX_FRAME_SIZE, DEFAULT_CHUNK_SIZE, true, true, true);
+
+    /**
+     * Creates new capabilities with immutable copies of the given lists.
+     */
+    public Capabilities {
+        codecs = List.copyOf(codecs);
+        compressions = List.copyOf(compressions);
+    }
+
+    /**
+     * Parses the text form of capabilities. Unknown keys and malformed entries are ignored, missing keys are taken
+     * from {@link #LEGACY}.
+     *
+     * @param text the text form, null or blank for a peer without capability negotiation
+     * @return the parsed capabilities
+     */
+    public static Capabilities parse(String text) {
+        if (text == null || text.isBlank()) {
+            return LEGACY;
+        }
+        int version = LEGACY.version;
+        List<String> codecs = LEGACY.codecs;
+        List<String> compressions = LEGACY.compressions;
+        boolean batching = LEGACY.batching;
+        boolean acknowledgements = LEGACY.acknowledgements;
+        int maxFrameSize = LEGACY.maxFrameSize;
+        int chunkSize = LEGACY.chunkSize;
+        boolean roster = LEGACY.roster;
+        boolean events = LEGACY.events;
+        boolean history = LEGACY.history;
+        for (String entry : text.split(";")) {
+            int separator = entry.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String value = entry.substring(separator + 1).strip();
+            try {
+                switch (entry.substring(0, separator).strip()) {
+                    case "version" -> version = Integer.parseInt(value);
+                    case "codecs" -> codecs = splitList(value);
+                    case "compression" -> compressions = splitList(value);
+                    case "batching" -> batching = Boolean.parseBoolean(value);
+                    case "ack" -> acknowledgements = Boolean.parseBoolean(value);
+                    case "maxFrameSize" -> maxFrameSize = Integer.parseInt(value);
+                    case "chunkSize" -> chunkSize = Integer.parseInt(value);
+                    case "roster" -> roster = Boolean.parseBoolean(value);
+                    case "events" -> events = Boolean.parseBoolean(value);
+                    case "history" -> history = Boolean.parseBoolean(value);
+                    default -> { /* unknown capability of a newer peer */ }
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring malformed capability: " + entry);
+            }
+        }
+        return new Capabilities(version, codecs, compressions, batching, acknowledgements, maxFrameSize, chunkSize,
+            roster, events, history);
+    }
+
+    /**
+     * Chooses the settings for a connection, based on the capabilities offered by the remote peer and the
+     * capabilities of this peer. For each list, the first option offered by the remote peer that is supported by this
+     * peer is chosen. Chunked transfer is only enabled if supported by both peers, with the smaller chunk size.
+     * Peers of the {@link #LEGACY_VERSION} do not negotiate and keep the {@link #LEGACY} settings, in particular the
+     * unlimited frame size, as they can not split large messages into chunks.
+     *
+     * @param offered the capabilities offered by the remote peer
+     * @return the chosen settings, with exactly one codec and compression
+     */
+    public Capabilities negotiate(Capabilities offered) {
+        if (offered.version <= LEGACY_VERSION) {
+            return LEGACY;
+        }
+        return new Capabilities(
+            Math.min(version, offered.version),
+            List.of(choose(offered.codecs, codecs, CODEC_JAVA)),
+            List.of(choose(offered.compressions, compressions, COMPRESSION_NONE)),
+            batching && offered.batching,
+            acknowledgements && offered.acknowledgements,
+            Math.min(maxFrameSize, offered.maxFrameSize),
+            chunkSize > 0 && offered.chunkSize > 0 ? Math.min(chunkSize, offered.chunkSize) : 0,
+            roster && offered.roster,
+            events && offered.events,
+            history && offered.history);
+    }
+
+    /**
+     * Returns a copy of these capabilities with the given support of the message history.
+     *
+     * @param history true if the message history is supported
+     * @return the changed capabilities
+     */
+    public Capabilities withHistory(boolean history) {
+        return new Capabilities(version, codecs, compressions, batching, acknowledgements, maxFrameSize, chunkSize,
+            roster, events, history);
+    }
+
+    /**
+     * Returns the text form of the capabilities.
+     *
+     * @return the text form, to be parsed with {@link #parse(String)}
+     */
+    public String encode() {
+        return "version=" + version
+            + ";codecs=" + String.join(",", codecs)
+            + ";compression=" + String.join(",", compressions)
+            + ";batching=" + batching
+            + ";ack=" + acknowledgements
+            + ";maxFrameSize=" + maxFrameSize
+            + ";chunkSize=" + chunkSize
+            + ";roster=" + roster
+            + ";events=" + events
+            + ";history=" + history;
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> list = new ArrayList<>();
+        Arrays.stream(value.split(",")).map(String::strip).filter(item -> !item.isEmpty()).forEach(list::add);
+        return list;
+    }
+
+    private static String choose(List<String> offered, List<String> supported, String fallback) {
+        for (String option : offered) {
+            if (supported.contains(option)) {
+                return option;
+            }
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,56 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.Serializable;
+
+/**
+ * This record describes a chunk of a large payload, which is transferred in several CHUNK frames.
+ * <p>
+ * Large payloads are split into chunks of the size negotiated in the handshake ({@link Capabilities#chunkSize()}).
+ * The chunks are sent as separate frames, so other frames of the connection can be sent in between and neither the
+ * server nor the sender has to hold the frames of the whole payload. The receiver appends the chunks in order of their
+ * index until the last chunk completes the payload. A transfer can be cancelled by the sender (or by the server, if
+ * the sender is gone) with a chunk of index {@link #CANCEL_INDEX}.
+ *
+ * @param transferId the id of the transfer, unique per sender
+ * @param index      the index of the chunk within the transfer, starting at 0, or {@link #CANCEL_INDEX}
+ * @param count      the total number of chunks of the transfer
+ */
+public record ChunkHeader(long transferId, int index, int count) implements Serializable {
+    /**
+     * Index of a chunk cancelling the transfer.
+     */
+    public static final int CANCEL_INDEX = -1;
+
+    /**
+     * Maximum size of a payload transferred in chunks, in characters.
+     */
+    public static final int MAX_TRANSFER_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Creates the header of a chunk cancelling the given transfer.
+     *
+     * @param transferId the id of the transfer to cancel
+     * @return the header of the cancel chunk
+     */
+    public static ChunkHeader cancel(long transferId) {
+        return new ChunkHeader(transferId, CANCEL_INDEX, 0);
+    }
+
+    /**
+     * Checks if this chunk cancels the transfer.
+     *
+     * @return true if the transfer is cancelled, false otherwise
+     */
+    public boolean isCancel() {
+        return index == CANCEL_INDEX;
+    }
+
+    /**
+     * Checks if this chunk completes the transfer.
+     *
+     * @return true if this is the last chunk, false otherwise
+     */
+    public boolean isLast() {
+        return index == count - 1;
+    }
+}
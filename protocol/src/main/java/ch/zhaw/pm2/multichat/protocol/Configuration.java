@@ -15,7 +15,12 @@ public class Configuration {
         CONFIRM("CONFIRM"),
         DISCONNECT("DISCONNECT"),
         MESSAGE("MESSAGE"),
-        ERROR("ERROR");
+        ERROR("ERROR"),
+        ACK("ACK"),
+        CHUNK("CHUNK"),
+        ROSTER("ROSTER"),
+        EVENT("EVENT"),
+        HISTORY("HISTORY");
 
         private final String chatProtocolText;
 
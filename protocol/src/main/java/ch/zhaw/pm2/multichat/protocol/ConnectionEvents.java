@@ -0,0 +1,79 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * This class holds the JDK Flight Recorder events of the connection handlers, emitted by clients and server.
+ * <p>
+ * The events are disabled by default. While disabled, creating and committing an event costs a check of a flag, the
+ * fields are only filled in if the event is going to be recorded. They are enabled with a recording settings file,
+ * e.g. <code>multichat.jfc</code> in the server directory.
+ */
+final class ConnectionEvents {
+    /**
+     * The category of all events of the chat.
+     */
+    static final String CATEGORY = "MultiChat";
+
+    private ConnectionEvents() {
+    }
+
+    /**
+     * A frame written to a connection, including the time waiting for other threads sending on the same connection.
+     */
+    @Name("ch.zhaw.pm2.multichat.Send")
+    @Label("Send Frame")
+    @Category({CATEGORY, "Connection"})
+    @Description("A frame written to a connection")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Send extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Type")
+        String type;
+
+        @Label("Receiver")
+        String receiver;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Lock Wait")
+        @Description("Time waiting for other threads sending on the same connection")
+        @Timespan
+        long lockWait;
+    }
+
+    /**
+     * A connection terminated without a disconnect request, covering the handling of the interruption.
+     */
+    @Name("ch.zhaw.pm2.multichat.Interrupted")
+    @Label("Connection Interrupted")
+    @Category({CATEGORY, "Connection"})
+    @Description("A connection terminated without a disconnect request")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Interrupted extends Event {
+        @Label("User")
+        String user;
+
+        @Label("State")
+        @Description("The protocol state when the connection terminated")
+        String state;
+
+        @Label("Terminated By")
+        @Description("Whether the connection has been terminated locally or by the remote peer")
+        String terminatedBy;
+    }
+}
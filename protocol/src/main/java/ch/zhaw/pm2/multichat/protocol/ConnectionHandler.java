@@ -3,9 +3,10 @@ package ch.zhaw.pm2.multichat.protocol;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static ch.zhaw.pm2.multichat.protocol.Configuration.DataType.ERROR;
-import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.NEW;
 
 /**
  * The ConnectionHandler abstract class provides a base implementation for handling network connections with the server.
@@ -18,14 +19,36 @@ public abstract class ConnectionHandler {
     public static final String USER_ALL = "*";
 
     /**
-     * The network connection for this connection handler.
+     * The separator of the usernames in a receiver list, to send one message to several users (e.g. "alice,bob").
      */
-    protected final NetworkHandler.NetworkConnection<NetworkMessage> connection;
+    public static final String RECEIVER_SEPARATOR = ",";
 
     /**
-     * The current protocol state of this connection handler.
+     * The maximum payload size of an ephemeral event in characters.
      */
-    protected Configuration.ProtocolState protocolState = NEW;
+    public static final int MAX_EVENT_SIZE = 256;
+
+    /**
+     * The network connection for this connection handler. May be replaced when a lost connection is re-established.
+     */
+    protected volatile NetworkHandler.NetworkConnection<NetworkMessage> connection;
+
+    /**
+     * Lock to make sure only one thread at a time is sending data, as {@link NetworkHandler.NetworkConnection} is not
+     * thread safe. The lock is fair, so a thread sending a large payload in chunks lets other threads send their
+     * frames between two chunks.
+     */
+    private final Lock sendLock = new ReentrantLock(true);
+
+    /**
+     * The current protocol state of this connection handler, changed by the handler and the thread of the user.
+     */
+    protected final ProtocolStateMachine protocolState = new ProtocolStateMachine();
+
+    /**
+     * The settings negotiated for this connection in the CONNECT handshake.
+     */
+    protected volatile Capabilities capabilities = Capabilities.LEGACY;
 
     /**
      * The default username.
@@ -52,7 +75,16 @@ public abstract class ConnectionHandler {
      * @return the current protocol state of this connection handler
      */
     public Configuration.ProtocolState getState() {
-        return protocolState;
+        return protocolState.get();
+    }
+
+    /**
+     * Returns the settings negotiated for this connection.
+     *
+     * @return the negotiated settings, {@link Capabilities#LEGACY} if not negotiated (yet)
+     */
+    public Capabilities getCapabilities() {
+        return capabilities;
     }
 
     /**
@@ -77,11 +109,11 @@ public abstract class ConnectionHandler {
             }
         } catch (SocketException e) {
             System.out.println("Connection terminated locally");
-            onInterrupted();
+            interrupted("local");
             System.out.println("Unregistered because connection terminated" + e.getMessage());
         } catch (EOFException e) {
             System.out.println("Connection terminated by remote peer");
-            onInterrupted();
+            interrupted("remote");
             System.out.println("Unregistered because connection terminated" + e.getMessage());
         } catch (IOException e) {
             System.err.println("Communication error: " + e.getMessage());
@@ -91,6 +123,24 @@ public abstract class ConnectionHandler {
         System.out.println("Ended Connection Handler for " + userName);
     }
 
+    /**
+     * Handles the interruption of the connection and records it as flight recorder event.
+     *
+     * @param terminatedBy "local" or "remote", depending on the side terminating the connection
+     */
+    private void interrupted(String terminatedBy) {
+        ConnectionEvents.Interrupted event = new ConnectionEvents.Interrupted();
+        event.begin();
+        Configuration.ProtocolState state = protocolState.get();
+        onInterrupted();
+        if (event.shouldCommit()) {
+            event.user = userName;
+            event.state = state.name();
+            event.terminatedBy = terminatedBy;
+            event.commit();
+        }
+    }
+
     /**
      * Stop receiving packages from the network connection, by closing the connection.
      */
@@ -129,9 +179,40 @@ public abstract class ConnectionHandler {
      * @param payload  The message payload
      */
     protected void sendData(String sender, String receiver, Configuration.DataType type, String payload) {
-        if (connection.isAvailable()) {
+        sendData(new NetworkMessage(sender, receiver, type, payload));
+    }
+
+    /**
+     * This method sends the given NetworkMessage to the connected NetworkConnection if it is available.
+     * Concurrent calls are serialized, so messages from different threads do not interleave.
+     * Each frame written is recorded as flight recorder event, if enabled.
+     *
+     * @param message The message to send
+     */
+    protected void sendData(NetworkMessage message) {
+        NetworkHandler.NetworkConnection<NetworkMessage> currentConnection = connection;
+        if (currentConnection.isAvailable()) {
+            ConnectionEvents.Send event = new ConnectionEvents.Send();
+            event.begin();
+            long waitStart = event.isEnabled() ? System.nanoTime() : 0;
             try {
-                connection.send(new NetworkMessage(sender, receiver, type, payload));
+                long lockWait;
+                int size;
+                sendLock.lock();
+                try {
+                    lockWait = event.isEnabled() ? System.nanoTime() - waitStart : 0;
+                    size = currentConnection.send(message);
+                } finally {
+                    sendLock.unlock();
+                }
+                if (event.shouldCommit()) {
+                    event.user = userName;
+                    event.type = message.getType().name();
+                    event.receiver = message.getReceiver();
+                    event.size = size;
+                    event.lockWait = lockWait;
+                    event.commit();
+                }
             } catch (SocketException e) {
                 System.err.println("Connection closed: " + e.getMessage());
             } catch (EOFException e) {
@@ -145,18 +226,24 @@ public abstract class ConnectionHandler {
     /**
      * Handle the CONNECT request received from a client.
      *
-     * @param sender The sender of the CONNECT request
+     * @param sender       The sender of the CONNECT request
+     * @param resumeToken  The resume token of the session to resume, null for a new session
+     * @param lastSequence The last sequence number received by the client in the session to resume
+     * @param offered      The capabilities offered by the client
      * @throws ChatProtocolException if an error occurs while handling the request
      */
-    protected abstract void handleConnect(String sender) throws ChatProtocolException;
+    protected abstract void handleConnect(String sender, String resumeToken, long lastSequence,
+                                          Capabilities offered) throws ChatProtocolException;
 
     /**
      * Handle the CONFIRM request received from a client.
      *
-     * @param receiver The receiver of the CONFIRM request
-     * @param payload  The payload of the CONFIRM request
+     * @param receiver    The receiver of the CONFIRM request
+     * @param payload     The payload of the CONFIRM request
+     * @param resumeToken The resume token issued for the session, may be null
+     * @param chosen      The settings chosen by the server
      */
-    protected abstract void handleConfirm(String receiver, String payload);
+    protected abstract void handleConfirm(String receiver, String payload, String resumeToken, Capabilities chosen);
 
     /**
      * Handle the DISCONNECT request received from a client.
@@ -172,9 +259,61 @@ public abstract class ConnectionHandler {
      * @param sender   The sender of the MESSAGE request
      * @param receiver The receiver of the MESSAGE request
      * @param payload  The payload of the MESSAGE request
+     * @param sequence The sequence number assigned to the message, {@link NetworkMessage#NO_SEQUENCE} if none
+     * @param trace    The trace of the message, null if the message is not traced
+     * @throws ChatProtocolException if an error occurs while handling the request
+     */
+    protected abstract void handleMessage(String sender, String receiver, String payload, long sequence,
+                                          MessageTrace trace) throws ChatProtocolException;
+
+    /**
+     * Handle the CHUNK request, containing a chunk of a large payload.
+     *
+     * @param sender   The sender of the CHUNK request
+     * @param receiver The receiver of the CHUNK request
+     * @param payload  The chunk of the payload, null for a cancel chunk
+     * @param chunk    The header describing the chunk
+     * @param sequence The sequence number assigned to the chunk, {@link NetworkMessage#NO_SEQUENCE} if none
+     * @throws ChatProtocolException if an error occurs while handling the request
+     */
+    protected abstract void handleChunk(String sender, String receiver, String payload, ChunkHeader chunk,
+                                        long sequence) throws ChatProtocolException;
+
+    /**
+     * Handle the EVENT request, containing an ephemeral event (e.g. a typing indicator). Events are not sequenced,
+     * acknowledged or stored, and may be coalesced or dropped on the way.
+     *
+     * @param sender   The sender of the EVENT request
+     * @param receiver The receiver of the EVENT request
+     * @param payload  The payload of the EVENT request
      * @throws ChatProtocolException if an error occurs while handling the request
      */
-    protected abstract void handleMessage(String sender, String receiver, String payload) throws ChatProtocolException;
+    protected abstract void handleEvent(String sender, String receiver, String payload) throws ChatProtocolException;
+
+    /**
+     * Handle the HISTORY request, containing a search in the message history (client to server) or a page of its
+     * results (server to client).
+     *
+     * @param payload The payload of the HISTORY request, a {@link HistoryQuery} or {@link HistoryPage} in text form
+     * @throws ChatProtocolException if an error occurs while handling the request
+     */
+    protected abstract void handleHistory(String payload) throws ChatProtocolException;
+
+    /**
+     * Handle the ROSTER request, containing an update of the list of online users.
+     *
+     * @param update The update of the roster
+     * @throws ChatProtocolException if an error occurs while handling the request
+     */
+    protected abstract void handleRoster(RosterUpdate update) throws ChatProtocolException;
+
+    /**
+     * Handle the ACK request received from a client, which acknowledges all messages up to the given sequence number.
+     *
+     * @param sequence The sequence number of the last message received
+     * @throws ChatProtocolException if an error occurs while handling the request
+     */
+    protected abstract void handleAcknowledge(long sequence) throws ChatProtocolException;
 
     /**
      * Handle the ERROR request received from a client.
@@ -205,11 +344,25 @@ public abstract class ConnectionHandler {
      */
     private void handleRequest(NetworkMessage data) throws ChatProtocolException {
         switch (data.getType()) {
-            case CONNECT -> handleConnect(data.getSender());
-            case CONFIRM -> handleConfirm(data.getReceiver(), data.getPayload());
+            case CONNECT -> handleConnect(data.getSender(), data.getResumeToken(), data.getSequence(),
+                Capabilities.parse(data.getCapabilities()));
+            case CONFIRM -> handleConfirm(data.getReceiver(), data.getPayload(), data.getResumeToken(),
+                Capabilities.parse(data.getCapabilities()));
             case DISCONNECT -> handleDisconnect(data.getPayload());
-            case MESSAGE -> handleMessage(data.getSender(), data.getReceiver(), data.getPayload());
+            case MESSAGE -> handleMessage(data.getSender(), data.getReceiver(), data.getPayload(), data.getSequence(),
+                data.getTrace());
             case ERROR -> handleError(data.getSender(), data.getPayload());
+            case ACK -> handleAcknowledge(data.getSequence());
+            case CHUNK -> {
+                if (data.getChunk() == null) {
+                    throw new ChatProtocolException("Missing header of chunk");
+                }
+                handleChunk(data.getSender(), data.getReceiver(), data.getPayload(), data.getChunk(),
+                    data.getSequence());
+            }
+            case ROSTER -> handleRoster(RosterUpdate.parse(data.getPayload()));
+            case EVENT -> handleEvent(data.getSender(), data.getReceiver(), data.getPayload());
+            case HISTORY -> handleHistory(data.getPayload());
             default -> handleDefault(data.getType());
         }
     }
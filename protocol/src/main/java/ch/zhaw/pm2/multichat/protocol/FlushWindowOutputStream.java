@@ -0,0 +1,178 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class collects the frames written to a socket within a flush window and writes them at once (micro-batching).
+ * <p>
+ * A flush after a frame does not write it, but schedules the write at the end of the window, unless a write is
+ * already scheduled. All frames written until then are sent with a single write. If {@value #BUFFER_SIZE} bytes are
+ * pending before the window ends, they are written immediately. The scheduled writes are started by a shared timer
+ * and run on a pool of threads, so a client not reading its frames only blocks the writes of its own connection.
+ * <p>
+ * If a scheduled write fails, the error is thrown on the next write or flush of the connection.
+ */
+final class FlushWindowOutputStream extends OutputStream {
+    /**
+     * Maximum number of bytes collected before they are written, the maximum size of a TLS record.
+     */
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Maximum time to write the pending frames when the connection is closed.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "flush-window-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ExecutorService flushers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "flush-window");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OutputStream out;
+    private final long windowNanos;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Guards the buffer and the state of the stream. Held while writing to the socket.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private int count;
+    private boolean flushScheduled;
+    private IOException failure;
+
+    /**
+     * Creates a stream collecting the frames within the given window.
+     *
+     * @param out         the output stream of the socket
+     * @param windowNanos the flush window in nanoseconds
+     */
+    FlushWindowOutputStream(OutputStream out, long windowNanos) {
+        this.out = out;
+        this.windowNanos = windowNanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            if (count + length > buffer.length) {
+                writePending();
+                if (length >= buffer.length) {
+                    out.write(bytes, offset, length);
+                    out.flush();
+                    return;
+                }
+            }
+            System.arraycopy(bytes, offset, buffer, count, length);
+            count += length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules the pending bytes to be written at the end of the flush window.
+     *
+     * @throws IOException if a previous scheduled write has failed
+     */
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            if (count > 0 && !flushScheduled) {
+                flushScheduled = true;
+                timer.schedule(() -> flushers.execute(this::flushWindow), windowNanos, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending bytes before the socket is closed. If another thread is writing or the bytes can not be
+     * written within {@value #CLOSE_TIMEOUT_MILLIS} ms (e.g. the client does not read), they are discarded.
+     *
+     * @param socket the socket, closed after the timeout to interrupt the write
+     */
+    void flushBeforeClose(Closeable socket) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (count > 0 && failure == null) {
+                ScheduledFuture<?> timeout = timer.schedule(() -> {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // closed anyway
+                    }
+                }, CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                try {
+                    writePending();
+                } catch (IOException e) {
+                    // the connection is closed anyway
+                } finally {
+                    timeout.cancel(false);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending bytes at the end of the flush window, called by a flusher thread.
+     */
+    private void flushWindow() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            if (failure == null) {
+                writePending();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending bytes to the socket. Called while holding the lock.
+     */
+    private void writePending() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+            out.flush();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
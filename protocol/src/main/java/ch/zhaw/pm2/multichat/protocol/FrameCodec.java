@@ -0,0 +1,239 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+
+/**
+ * This class encodes and decodes the frames of a connection, reusing the object streams and buffers of the thread.
+ * <p>
+ * On the wire, every frame is a complete serialization stream: the stream header followed by the object, including
+ * the descriptors of its classes. Creating a new {@link ObjectOutputStream} and {@link ObjectInputStream} per frame
+ * (as the first versions did) allocates their internal buffers and tables for every frame. Instead, each thread keeps
+ * one stream of each kind and resets it between the frames, producing and accepting exactly the same bytes:
+ * <ul>
+ *     <li>The encoder writes the stream header itself and lets the output stream write the object after a
+ *     {@link ObjectOutputStream#reset() reset}, whose reset marker is discarded. The frame is assembled in a buffer of
+ *     the thread and written to the socket with a single call.</li>
+ *     <li>The decoder consumes the stream header of a frame itself and presents a reset marker to the input stream
+ *     instead, so the handles of the previous frame are cleared as if a new stream had been started.</li>
+ * </ul>
+ * If encoding or decoding fails, the stream of the thread is discarded, as its state is undefined. Buffers grown by
+ * a large frame are not kept.
+ * <p>
+ * As {@link NetworkMessage} is immutable, a thread sending the same message instance to several connections in a row
+ * (e.g. a roster update or an event to all users) encodes it only once.
+ */
+final class FrameCodec {
+    /**
+     * Header starting every frame.
+     */
+    private static final byte[] STREAM_HEADER = {
+        (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+        (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8), (byte) ObjectStreamConstants.STREAM_VERSION
+    };
+
+    /**
+     * Initial size of the encoding buffer of a thread.
+     */
+    private static final int ENCODE_BUFFER_SIZE = 1024;
+
+    /**
+     * Maximum size of an encoding buffer kept for the next frame.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Encoder> encoders = new ThreadLocal<>();
+    private static final ThreadLocal<Decoder> decoders = new ThreadLocal<>();
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a frame and writes it to the given stream.
+     *
+     * @param data the object to send
+     * @param out  the stream of the connection
+     * @return the size of the frame in bytes
+     * @throws IOException if the object can not be serialized or written
+     */
+    static int write(Serializable data, OutputStream out) throws IOException {
+        Encoder encoder = encoders.get();
+        if (encoder == null) {
+            encoder = new Encoder();
+            encoders.set(encoder);
+        }
+        try {
+            if (data != encoder.lastEncoded) {
+                encoder.lastEncoded = null;
+                encoder.encode(data);
+                if (data instanceof NetworkMessage) {
+                    encoder.lastEncoded = data;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            encoders.remove();
+            throw e;
+        }
+        int size = encoder.buffer.size();
+        out.write(encoder.buffer.array(), 0, size);
+        out.flush();
+        if (encoder.buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            encoders.remove();
+        }
+        return size;
+    }
+
+    /**
+     * Reads and decodes a frame from the given stream.
+     *
+     * @param in the buffered stream of the connection
+     * @return the received object
+     * @throws EOFException           if the stream has been closed by the remote side
+     * @throws IOException            if the frame can not be read or is corrupt
+     * @throws ClassNotFoundException if the class of the object is unknown
+     */
+    static Object read(InputStream in) throws IOException, ClassNotFoundException {
+        Decoder decoder = decoders.get();
+        if (decoder == null) {
+            decoder = new Decoder();
+            decoders.set(decoder);
+        }
+        try {
+            return decoder.decode(in);
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            decoders.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * The reusable output stream of a thread and the buffer it writes to.
+     */
+    private static final class Encoder {
+        private final FrameBuffer buffer = new FrameBuffer();
+        private final ObjectOutputStream objectStream;
+
+        /**
+         * The immutable message contained in the buffer, null if the buffer can not be reused.
+         */
+        private Object lastEncoded;
+
+        private Encoder() throws IOException {
+            objectStream = new ObjectOutputStream(buffer);
+        }
+
+        private void encode(Serializable data) throws IOException {
+            objectStream.reset();
+            objectStream.flush();
+            buffer.reset();
+            buffer.write(STREAM_HEADER);
+            objectStream.writeObject(data);
+            objectStream.flush();
+        }
+    }
+
+    /**
+     * A byte array output stream exposing its buffer, so the frame can be written without copying it.
+     */
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+        private FrameBuffer() {
+            super(ENCODE_BUFFER_SIZE);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
+
+    /**
+     * The reusable input stream of a thread.
+     */
+    private static final class Decoder {
+        private final FrameSource source = new FrameSource();
+        private final ObjectInputStream objectStream;
+
+        private Decoder() throws IOException {
+            source.inject(STREAM_HEADER);
+            objectStream = new ObjectInputStream(source);
+        }
+
+        private Object decode(InputStream in) throws IOException, ClassNotFoundException {
+            source.begin(in);
+            try {
+                return objectStream.readObject();
+            } finally {
+                source.end();
+            }
+        }
+    }
+
+    /**
+     * The stream read by the object input stream of a decoder: the stream of the connection, with the header of the
+     * frame replaced by a reset marker.
+     */
+    private static final class FrameSource extends InputStream {
+        private static final byte[] RESET = {ObjectStreamConstants.TC_RESET};
+
+        private InputStream in;
+        private byte[] injected;
+        private int injectedPosition;
+
+        private void inject(byte[] bytes) {
+            injected = bytes;
+            injectedPosition = 0;
+        }
+
+        private void begin(InputStream in) throws IOException {
+            for (byte expected : STREAM_HEADER) {
+                int read = in.read();
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                if ((byte) read != expected) {
+                    throw new StreamCorruptedException("Invalid frame header");
+                }
+            }
+            this.in = in;
+            inject(RESET);
+        }
+
+        private void end() {
+            in = null;
+            injected = null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (injected != null && injectedPosition < injected.length) {
+                return injected[injectedPosition++] & 0xff;
+            }
+            return in == null ? -1 : in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (injected != null && injectedPosition < injected.length) {
+                int count = Math.min(len, injected.length - injectedPosition);
+                System.arraycopy(injected, injectedPosition, b, off, count);
+                injectedPosition += count;
+                return count;
+            }
+            return in == null ? -1 : in.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This record describes a page of the results of a {@link HistoryQuery}, sent by the server in HISTORY frames.
+ * <p>
+ * The payload of the frame is a compact text form: the first line holds the id of the query and {@link #next()},
+ * separated by a space, each further line a message with the fields id, time, sender, receiver and payload separated
+ * by tabs. Tabs, line breaks and backslashes within the fields are escaped.
+ *
+ * @param queryId  the id of the query
+ * @param messages the matching messages, newest first
+ * @param next     the id to continue before for the next page, 0 if there are no further results
+ */
+public record HistoryPage(long queryId, List<Entry> messages, long next) {
+    /**
+     * A message of the history.
+     *
+     * @param id       the id of the message in the history, increasing in routing order
+     * @param time     the time the message has been routed in milliseconds since the epoch
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message, as sent by the sender
+     * @param payload  the payload of the message
+     */
+    public record Entry(long id, long time, String sender, String receiver, String payload) {
+        /**
+         * Returns the text form of the entry, a single line.
+         *
+         * @return the text form
+         */
+        String encode() {
+            return id + "\t" + time + "\t" + escape(sender) + "\t" + escape(receiver) + "\t" + escape(payload);
+        }
+
+        /**
+         * Returns the length of the text form in characters, without encoding it.
+         *
+         * @return the approximate length of the text form (escapes not counted)
+         */
+        public int encodedLength() {
+            // two numbers of up to 20 digits, four tabs and the line break
+            return 45 + length(sender) + length(receiver) + length(payload);
+        }
+
+        private static int length(String value) {
+            return value == null ? 0 : value.length();
+        }
+    }
+
+    /**
+     * Creates a new page with an immutable copy of the messages.
+     */
+    public HistoryPage {
+        messages = List.copyOf(messages);
+    }
+
+    /**
+     * Parses the text form of a page.
+     *
+     * @param text the payload of the HISTORY frame
+     * @return the parsed page
+     * @throws ChatProtocolException if the text form is missing or malformed
+     */
+    public static HistoryPage parse(String text) throws ChatProtocolException {
+        if (text == null) {
+            throw new ChatProtocolException("Missing history page");
+        }
+        String[] lines = text.split("\n");
+        try {
+            String[] header = lines[0].split(" ");
+            List<Entry> messages = new ArrayList<>();
+            for (int i = 1; i < lines.length; i++) {
+                String[] fields = lines[i].split("\t", -1);
+                if (fields.length != 5) {
+                    throw new ChatProtocolException("Illegal history entry: " + lines[i]);
+                }
+                messages.add(new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), unescape(fields[2]),
+                    unescape(fields[3]), unescape(fields[4])));
+            }
+            return new HistoryPage(Long.parseLong(header[0]), messages, Long.parseLong(header[1]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new ChatProtocolException("Illegal history page: " + lines[0]);
+        }
+    }
+
+    /**
+     * Returns the text form of the page.
+     *
+     * @return the text form, to be parsed with {@link #parse(String)}
+     */
+    public String encode() {
+        StringBuilder text = new StringBuilder().append(queryId).append(' ').append(next);
+        messages.forEach(entry -> text.append('\n').append(entry.encode()));
+        return text.toString();
+    }
+
+    /**
+     * Escapes tabs, line breaks and backslashes, so the value fits into a single field.
+     */
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> escaped.append("\\\\");
+                case '\t' -> escaped.append("\\t");
+                case '\n' -> escaped.append("\\n");
+                case '\r' -> escaped.append("\\r");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Reverts {@link #escape(String)}.
+     */
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't' -> unescaped.append('\t');
+                    case 'n' -> unescaped.append('\n');
+                    case 'r' -> unescaped.append('\r');
+                    default -> unescaped.append(next);
+                }
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,191 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * This record describes a search in the message history of the server, sent by clients in HISTORY frames, if the
+ * {@code history} capability has been negotiated. The server answers with a {@link HistoryPage}.
+ * <p>
+ * A message matches, if its payload contains all terms (whole words, case insensitive), it has been sent by the given
+ * sender (if any) and it has been routed within the given time range. Only messages to all users and messages the
+ * user has sent or received in the current session (which survives reconnects, but not a new registration of the
+ * name) are searched. The results are returned newest first, in pages of at most
+ * {@code limit} messages: the next page is requested with the same query and {@code before} set to
+ * {@link HistoryPage#next()} of the previous page.
+ * <p>
+ * The payload of the frame is a compact text form with one {@code key=value} per line, e.g. {@code id=7},
+ * {@code terms=deploy yesterday}, {@code from=ops}, {@code since=1760832000000}. Unknown keys are ignored. Terms
+ * longer than {@link #MAX_TERM_LENGTH} are not indexed, so a query containing one is rejected rather than matching
+ * without it.
+ *
+ * @param id     the id of the query chosen by the client, returned in the page
+ * @param terms  the terms the payload has to contain, normalized with {@link #tokenize(String)}
+ * @param sender the sender of the messages, null for any sender
+ * @param since  the earliest routing time in milliseconds since the epoch, 0 for no limit
+ * @param until  the latest routing time in milliseconds since the epoch, 0 for no limit
+ * @param before the id of the message to continue before (exclusive), 0 to start with the newest message
+ * @param limit  the maximum number of messages of the page
+ */
+public record HistoryQuery(long id, List<String> terms, String sender, long since, long until, long before,
+                           int limit) {
+    /**
+     * Default number of messages per page.
+     */
+    public static final int DEFAULT_LIMIT = 20;
+
+    /**
+     * Maximum number of messages per page.
+     */
+    public static final int MAX_LIMIT = 100;
+
+    /**
+     * Maximum length of a term, longer words are not indexed and rejected in queries.
+     */
+    public static final int MAX_TERM_LENGTH = 64;
+
+    /**
+     * Creates a new query with an immutable copy of the terms and the limit bounded to 1 - {@link #MAX_LIMIT}.
+     */
+    public HistoryQuery {
+        terms = List.copyOf(terms);
+        limit = Math.max(1, Math.min(MAX_LIMIT, limit));
+    }
+
+    /**
+     * Splits a text into the terms of the index: the words of letters and digits in lower case, without duplicates.
+     * Words longer than {@link #MAX_TERM_LENGTH} are skipped.
+     *
+     * @param text the text, may be null
+     * @return the terms in the order of their first occurrence
+     */
+    public static List<String> tokenize(String text) {
+        return split(text, null);
+    }
+
+    /**
+     * Splits the terms of a query like {@link #tokenize(String)}, but rejects words longer than
+     * {@link #MAX_TERM_LENGTH}: they are not indexed, so skipping them would return messages without them.
+     *
+     * @param text the terms of the query, may be null
+     * @return the terms in the order of their first occurrence
+     * @throws ChatProtocolException if a word is longer than {@link #MAX_TERM_LENGTH}
+     */
+    public static List<String> parseTerms(String text) throws ChatProtocolException {
+        List<String> skipped = new ArrayList<>();
+        List<String> terms = split(text, skipped);
+        if (!skipped.isEmpty()) {
+            throw new ChatProtocolException("History query term exceeds maximum length of " + MAX_TERM_LENGTH);
+        }
+        return terms;
+    }
+
+    /**
+     * Splits a text into terms, see {@link #tokenize(String)}.
+     *
+     * @param text    the text, may be null
+     * @param skipped collects the words skipped because of their length, null to ignore them
+     * @return the terms in the order of their first occurrence
+     */
+    private static List<String> split(String text, List<String> skipped) {
+        if (text == null || text.isEmpty()) {
+            return List.of();
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                } else if (skipped != null) {
+                    skipped.add(text.substring(start, i));
+                }
+                start = -1;
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * Returns the query for the next page, continuing before the given message.
+     *
+     * @param next the id of the message to continue before, see {@link HistoryPage#next()}
+     * @return the query for the next page
+     */
+    public HistoryQuery before(long next) {
+        return new HistoryQuery(id, terms, sender, since, until, next, limit);
+    }
+
+    /**
+     * Parses the text form of a query.
+     *
+     * @param text the payload of the HISTORY frame
+     * @return the parsed query
+     * @throws ChatProtocolException if the text form is missing or malformed, or a term is too long
+     */
+    public static HistoryQuery parse(String text) throws ChatProtocolException {
+        if (text == null) {
+            throw new ChatProtocolException("Missing history query");
+        }
+        long id = 0;
+        List<String> terms = List.of();
+        String sender = null;
+        long since = 0;
+        long until = 0;
+        long before = 0;
+        int limit = DEFAULT_LIMIT;
+        for (String line : text.split("\n")) {
+            int separator = line.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String value = line.substring(separator + 1);
+            try {
+                switch (line.substring(0, separator)) {
+                    case "id" -> id = Long.parseLong(value);
+                    case "terms" -> terms = parseTerms(value);
+                    case "from" -> sender = value.isEmpty() ? null : value;
+                    case "since" -> since = Long.parseLong(value);
+                    case "until" -> until = Long.parseLong(value);
+                    case "before" -> before = Long.parseLong(value);
+                    case "limit" -> limit = Integer.parseInt(value);
+                    default -> { /* key of a newer peer */ }
+                }
+            } catch (NumberFormatException e) {
+                throw new ChatProtocolException("Illegal history query: " + line);
+            }
+        }
+        return new HistoryQuery(id, terms, sender, since, until, before, limit);
+    }
+
+    /**
+     * Returns the text form of the query.
+     *
+     * @return the text form, to be parsed with {@link #parse(String)}
+     */
+    public String encode() {
+        StringBuilder text = new StringBuilder("id=").append(id);
+        if (!terms.isEmpty()) {
+            text.append("\nterms=").append(String.join(" ", terms));
+        }
+        if (sender != null) {
+            text.append("\nfrom=").append(sender);
+        }
+        if (since > 0) {
+            text.append("\nsince=").append(since);
+        }
+        if (until > 0) {
+            text.append("\nuntil=").append(until);
+        }
+        if (before > 0) {
+            text.append("\nbefore=").append(before);
+        }
+        return text.append("\nlimit=").append(limit).toString();
+    }
+}
@@ -0,0 +1,396 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport connecting two peers in the same JVM, without sockets.
+ * <p>
+ * Each direction is a {@link Pipe}: every write is copied into a chunk and appended to a lock-free queue, which the
+ * reading peer consumes. Semaphores only count the chunks and the free space, so threads park while there is nothing
+ * to read or the peer does not read, like on a socket. The space of a direction is limited to {@link #PIPE_CAPACITY}
+ * bytes, so a peer not reading its data blocks the writer as a full socket buffer would.
+ * <p>
+ * Listeners are registered by port in a registry of the JVM. Connecting to a port without listener is refused.
+ */
+final class InMemoryTransport implements Transport {
+    /**
+     * Maximum number of bytes written but not read yet per direction.
+     */
+    static final int PIPE_CAPACITY = 128 * 1024;
+
+    /**
+     * Listeners by port.
+     */
+    private static final Map<Integer, Listener> listeners = new ConcurrentHashMap<>();
+
+    /**
+     * Source of the ports assigned to listeners bound to port 0 and to the connecting peers.
+     */
+    private static final AtomicInteger nextPort = new AtomicInteger(49152);
+
+    private final Pipe in;
+    private final Pipe out;
+    private final int remotePort;
+    private final int serverPort;
+    private volatile boolean closed;
+
+    /**
+     * Creates one end of a connection.
+     *
+     * @param in         the pipe written by the peer
+     * @param out        the pipe read by the peer
+     * @param remotePort the port of the peer
+     * @param serverPort the port of the listener the connection was opened to
+     */
+    private InMemoryTransport(Pipe in, Pipe out, int remotePort, int serverPort) {
+        this.in = in;
+        this.out = out;
+        this.remotePort = remotePort;
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Binds a listener to the given port.
+     *
+     * @param port the port to bind to, 0 for any free port
+     * @return the bound listener
+     * @throws IOException if the port is already bound
+     */
+    static Listener bind(int port) throws IOException {
+        if (port == 0) {
+            Listener listener;
+            do {
+                listener = new Listener(nextPort.getAndIncrement() & 0xffff);
+            } while (listener.port == 0 || listeners.putIfAbsent(listener.port, listener) != null);
+            return listener;
+        }
+        Listener listener = new Listener(port);
+        if (listeners.putIfAbsent(port, listener) != null) {
+            throw new SocketException("Address already in use: in-memory port " + port);
+        }
+        return listener;
+    }
+
+    /**
+     * Connects to the listener bound to the given port.
+     *
+     * @param port the port of the listener
+     * @return the client end of the connection
+     * @throws ConnectException if no listener is bound to the port
+     */
+    static InMemoryTransport connect(int port) throws IOException {
+        Listener listener = listeners.get(port);
+        if (listener == null || listener.isClosed()) {
+            throw new ConnectException("Connection refused: in-memory port " + port);
+        }
+        Pipe toServer = new Pipe();
+        Pipe toClient = new Pipe();
+        int clientPort = nextPort.getAndIncrement() & 0xffff;
+        listener.enqueue(new InMemoryTransport(toServer, toClient, clientPort, port));
+        return new InMemoryTransport(toClient, toServer, port, port);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return out.writer;
+    }
+
+    @Override
+    public Transport reopen() throws IOException {
+        return connect(serverPort);
+    }
+
+    @Override
+    public boolean isEncrypted() {
+        return false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public InetAddress getRemoteAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    /**
+     * Closes this end of the connection: local readers and writers fail, the peer reads the remaining data and then
+     * reaches the end of the stream.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        in.closeReader();
+        out.closeWriter();
+    }
+
+    /**
+     * One direction of a connection. The pipe is the input stream of the reading peer and has a separate output
+     * stream for the writing peer. Any number of threads may write, one thread at a time may read.
+     */
+    private static final class Pipe extends InputStream {
+        private final Queue<byte[]> chunks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Number of queued chunks, plus one once the writer has closed.
+         */
+        private final Semaphore available = new Semaphore(0);
+
+        /**
+         * Number of bytes which can be written before the reader has to catch up.
+         */
+        private final Semaphore space = new Semaphore(PIPE_CAPACITY);
+
+        private final OutputStream writer = new Writer();
+        private volatile boolean readerClosed;
+        private volatile boolean writerClosed;
+
+        /**
+         * The chunk being read, null if none.
+         */
+        private byte[] current;
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            if (!advance()) {
+                return -1;
+            }
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!advance()) {
+                return -1;
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.length - position;
+        }
+
+        /**
+         * Makes sure there is a chunk with unread data, waiting for the writer if necessary.
+         *
+         * @return true if there is data to read, false at the end of the stream
+         * @throws SocketException if the reading end has been closed
+         */
+        private boolean advance() throws IOException {
+            if (current != null && position < current.length) {
+                return true;
+            }
+            if (current != null) {
+                space.release(permits(current.length));
+                current = null;
+            }
+            available.acquireUninterruptibly();
+            if (readerClosed) {
+                available.release();
+                throw new SocketException("Socket closed");
+            }
+            byte[] chunk = chunks.poll();
+            if (chunk == null) {
+                // only the end of the stream is counted without chunk, it stays available for further reads
+                available.release();
+                return false;
+            }
+            current = chunk;
+            position = 0;
+            return true;
+        }
+
+        /**
+         * Appends a copy of the given bytes, waiting while the pipe is full.
+         */
+        private void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            int permits = permits(len);
+            space.acquireUninterruptibly(permits);
+            if (writerClosed || readerClosed) {
+                space.release(permits);
+                throw new SocketException(writerClosed ? "Socket closed" : "Connection reset by peer");
+            }
+            byte[] chunk = new byte[len];
+            System.arraycopy(b, off, chunk, 0, len);
+            chunks.offer(chunk);
+            available.release();
+        }
+
+        /**
+         * Closes the reading end: the reader fails, writers fail and the queued data is discarded.
+         */
+        private void closeReader() {
+            if (!readerClosed) {
+                readerClosed = true;
+                available.release();
+                space.release(PIPE_CAPACITY);
+                chunks.clear();
+            }
+        }
+
+        /**
+         * Closes the writing end: the reader reaches the end of the stream after the queued data, writers fail.
+         */
+        private void closeWriter() {
+            if (!writerClosed) {
+                writerClosed = true;
+                available.release();
+                space.release(PIPE_CAPACITY);
+            }
+        }
+
+        /**
+         * Returns the space taken by a chunk. A chunk larger than the pipe takes the whole pipe.
+         */
+        private static int permits(int length) {
+            return Math.min(length, PIPE_CAPACITY);
+        }
+
+        /**
+         * The output stream of the writing peer.
+         */
+        private final class Writer extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                Pipe.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * A listener accepting in-memory connections on a port of the registry.
+     */
+    static final class Listener implements Transport.Listener {
+        private final int port;
+        private final Queue<InMemoryTransport> pending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Number of pending connections, plus one once the listener has been closed.
+         */
+        private final Semaphore accepted = new Semaphore(0);
+        private volatile boolean closed;
+
+        /**
+         * Creates an unregistered listener.
+         *
+         * @param port the port of the listener
+         */
+        private Listener(int port) {
+            this.port = port;
+        }
+
+        /**
+         * Hands a new connection to the accepting threads.
+         *
+         * @param transport the server end of the connection
+         */
+        private void enqueue(InMemoryTransport transport) {
+            pending.offer(transport);
+            accepted.release();
+            if (closed) {
+                discardPending();
+            }
+        }
+
+        @Override
+        public Transport accept() throws IOException {
+            accepted.acquireUninterruptibly();
+            InMemoryTransport transport = closed ? null : pending.poll();
+            if (transport == null) {
+                accepted.release();
+                throw new SocketException("Socket is closed");
+            }
+            return transport;
+        }
+
+        @Override
+        public boolean isBound() {
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public int getLocalPort() {
+            return port;
+        }
+
+        @Override
+        public String getLocalAddress() {
+            return "in-memory";
+        }
+
+        /**
+         * Closes the listener and refuses the connections not accepted yet.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                listeners.remove(port, this);
+                accepted.release();
+                discardPending();
+            }
+        }
+
+        private void discardPending() {
+            InMemoryTransport transport;
+            while ((transport = pending.poll()) != null) {
+                transport.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.time.Instant;
+
+/**
+ * This record holds the timestamps of a traced message on its way from the sending to the receiving client.
+ * <p>
+ * The sending client starts the trace for a sample of its messages, the server adds the time it received the message,
+ * the time it routed the message to the session of the receiver and the time it wrote the frame to the receiver.
+ * The timestamps are taken from the wall clock in microseconds since the epoch, so the durations between timestamps of
+ * different hosts include the offset of their clocks. A timestamp not taken (yet) is 0.
+ * <p>
+ * In the frame, the trace is carried as a plain array of longs (see {@link NetworkMessage#getTrace()}), which peers
+ * without tracing can read and ignore.
+ *
+ * @param clientSend    the time the sending client sent the message
+ * @param serverReceive the time the server received the message
+ * @param serverRoute   the time the server routed the message to the session of the receiver
+ * @param serverWrite   the time the server wrote the message to the connection of the receiver
+ */
+public record MessageTrace(long clientSend, long serverReceive, long serverRoute, long serverWrite) {
+    /**
+     * Number of timestamps of a trace.
+     */
+    static final int LENGTH = 4;
+
+    /**
+     * Returns the current time of the wall clock in microseconds since the epoch.
+     *
+     * @return the current time in microseconds
+     */
+    public static long now() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000;
+    }
+
+    /**
+     * Starts the trace of a message sent now.
+     *
+     * @return the new trace
+     */
+    public static MessageTrace start() {
+        return new MessageTrace(now(), 0, 0, 0);
+    }
+
+    /**
+     * Returns a copy of this trace with the time the server received the message.
+     *
+     * @param time the time in microseconds since the epoch
+     * @return the extended trace
+     */
+    public MessageTrace received(long time) {
+        return new MessageTrace(clientSend, time, serverRoute, serverWrite);
+    }
+
+    /**
+     * Returns a copy of this trace with the time the server routed the message.
+     *
+     * @param time the time in microseconds since the epoch
+     * @return the extended trace
+     */
+    public MessageTrace routed(long time) {
+        return new MessageTrace(clientSend, serverReceive, time, serverWrite);
+    }
+
+    /**
+     * Returns a copy of this trace with the time the server wrote the message.
+     *
+     * @param time the time in microseconds since the epoch
+     * @return the extended trace
+     */
+    public MessageTrace written(long time) {
+        return new MessageTrace(clientSend, serverReceive, serverRoute, time);
+    }
+
+    /**
+     * Returns the timestamps in the form carried in the frame.
+     *
+     * @return the timestamps in the order of the components
+     */
+    long[] toArray() {
+        return new long[]{clientSend, serverReceive, serverRoute, serverWrite};
+    }
+
+    /**
+     * Creates a trace from the form carried in the frame. Missing timestamps are 0, additional ones (of newer peers)
+     * are ignored.
+     *
+     * @param timestamps the timestamps, may be null
+     * @return the trace, null if there are no timestamps
+     */
+    static MessageTrace of(long[] timestamps) {
+        if (timestamps == null) {
+            return null;
+        }
+        long[] values = new long[LENGTH];
+        System.arraycopy(timestamps, 0, values, 0, Math.min(LENGTH, timestamps.length));
+        return new MessageTrace(values[0], values[1], values[2], values[3]);
+    }
+}
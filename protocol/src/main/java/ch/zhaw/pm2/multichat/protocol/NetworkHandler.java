@@ -1,9 +1,23 @@
 package ch.zhaw.pm2.multichat.protocol;
 
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -59,6 +73,19 @@ import java.util.Objects;
  * marker interface specifying that an object can be serialized/deserialized. As long all properties within a
  * class are also Serializable, your class simply can be marked using it. All standard Java data-types are by default
  * Serializable.</p>
+ * <p>Optionally, the connections can be encrypted using TLS. Create an {@link SSLContext} from the key store of the
+ * server using {@link NetworkHandler#createServerSslContext(Path, char[])} and from a trust store holding only the
+ * certificate of the server using {@link NetworkHandler#createClientSslContext(Path, char[])}, and pass them to the
+ * factory methods of server and client. Clients verify that the certificate matches the host name (or address) they
+ * connect to.
+ * The TLS handshake is done on the first data transfer, i.e. in the thread receiving from the connection and not in
+ * the thread accepting connections. Reconnecting clients using the same {@link SSLContext} resume their previous TLS
+ * session (session cache on the client, session tickets or session cache on the server), which saves the expensive
+ * full handshake.</p>
+ * <p>For tests and benchmarks, server and clients can also run in the same JVM without sockets: a server created with
+ * {@link NetworkHandler#createInMemoryServer(int)} accepts the connections opened with
+ * {@link NetworkHandler#openInMemoryConnection(int)} on the same port. The frames are encoded as on the network, but
+ * passed through lock-free queues in memory instead of the kernel.</p>
  */
 public class NetworkHandler {
     /**
@@ -70,6 +97,26 @@ public class NetworkHandler {
      */
     public static final int DEFAULT_PORT = 22243;
 
+    /**
+     * TLS protocol versions enabled for encrypted connections.
+     */
+    static final String[] TLS_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    /**
+     * Maximum number of TLS sessions cached for resumption.
+     */
+    private static final int TLS_SESSION_CACHE_SIZE = 20_000;
+
+    /**
+     * Time in seconds a cached TLS session can be resumed.
+     */
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+
+    /**
+     * Environment variable with the password of the key store or trust store, see {@link #tlsPassword(String)}.
+     */
+    public static final String TLS_PASSWORD_VARIABLE = "MULTICHAT_TLS_PASSWORD";
+
     /**
      * private Constructor to avoid initialization.
      * Use the static factory methods to create {@link NetworkServer} or {@link NetworkConnection} instances.
@@ -88,6 +135,107 @@ public class NetworkHandler {
         return new NetworkServer<>(port);
     }
 
+    /**
+     * Creates an instance of a {@link NetworkServer} listening on the specified port for TLS encrypted connection
+     * requests for Objects of type T.
+     * @param port          port to open on the server host (range: 1 - 65535)
+     * @param sslContext    TLS context holding the key of the server (see {@link #createServerSslContext(Path, char[])})
+     * @param <T>   type of the Objects to be transmitted in the created {@link NetworkConnection}
+     * @return  {@link NetworkServer} object to be used to wait for connections.
+     * @throws IOException  if an error occured opening the port, e.g. the port number is already used.
+     */
+    public static <T extends Serializable> NetworkServer<T> createServer(int port, SSLContext sslContext)
+    throws IOException
+    {
+        SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port);
+        serverSocket.setEnabledProtocols(TLS_PROTOCOLS);
+        return new NetworkServer<>(serverSocket, sslContext, SocketProfile.configured());
+    }
+
+    /**
+     * Creates one or several instances of {@link NetworkServer} listening on the specified port, so several threads
+     * can accept connections in parallel.
+     * <p>If more than one listener is requested and the platform supports {@code SO_REUSEPORT} (e.g. Linux), each
+     * listener gets its own socket bound to the same port and the kernel spreads the incoming connections across
+     * them. Otherwise, a single listener is returned, which can be shared by several accepting threads.</p>
+     * @param port          port to open on the server host (range: 0 - 65535, 0 for any free port)
+     * @param sslContext    TLS context holding the key of the server, null for unencrypted connections
+     * @param listeners     number of listeners requested
+     * @param backlog       maximum number of connection requests waiting to be accepted per listener
+     * @param <T>   type of the Objects to be transmitted in the created {@link NetworkConnection}
+     * @return  list of {@link NetworkServer} objects to be used to wait for connections, with at least one element.
+     * @throws IOException  if an error occured opening the port, e.g. the port number is already used.
+     */
+    public static <T extends Serializable> List<NetworkServer<T>> createServers(int port, SSLContext sslContext,
+                                                                               int listeners, int backlog)
+    throws IOException
+    {
+        return createServers(port, sslContext, listeners, backlog, SocketProfile.configured());
+    }
+
+    /**
+     * Creates one or several instances of {@link NetworkServer} listening on the specified port (see
+     * {@link #createServers(int, SSLContext, int, int)}), configuring the accepted sockets with the given profile.
+     * @param port          port to open on the server host (range: 0 - 65535, 0 for any free port)
+     * @param sslContext    TLS context holding the key of the server, null for unencrypted connections
+     * @param listeners     number of listeners requested
+     * @param backlog       maximum number of connection requests waiting to be accepted per listener
+     * @param profile       socket profile of the accepted connections
+     * @param <T>   type of the Objects to be transmitted in the created {@link NetworkConnection}
+     * @return  list of {@link NetworkServer} objects to be used to wait for connections, with at least one element.
+     * @throws IOException  if an error occured opening the port, e.g. the port number is already used.
+     */
+    public static <T extends Serializable> List<NetworkServer<T>> createServers(int port, SSLContext sslContext,
+                                                                               int listeners, int backlog,
+                                                                               SocketProfile profile)
+    throws IOException
+    {
+        List<NetworkServer<T>> servers = new ArrayList<>();
+        try {
+            ServerSocket first = createServerSocket(sslContext, profile);
+            boolean reusePort = listeners > 1
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(new InetSocketAddress(port), backlog);
+            servers.add(new NetworkServer<>(first, sslContext, profile));
+            for (int i = 1; reusePort && i < listeners; i++) {
+                ServerSocket serverSocket = createServerSocket(sslContext, profile);
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                serverSocket.bind(new InetSocketAddress(first.getLocalPort()), backlog);
+                servers.add(new NetworkServer<>(serverSocket, sslContext, profile));
+            }
+        } catch (IOException e) {
+            for (NetworkServer<T> server : servers) {
+                server.close();
+            }
+            throw e;
+        }
+        return servers;
+    }
+
+    /**
+     * Creates an unbound server socket, plain or TLS encrypted.
+     * @param sslContext    TLS context holding the key of the server, null for unencrypted connections
+     * @param profile       socket profile, whose receive buffer size is inherited by the accepted sockets
+     * @return  unbound server socket
+     * @throws IOException  if the socket could not be created
+     */
+    private static ServerSocket createServerSocket(SSLContext sslContext, SocketProfile profile) throws IOException {
+        ServerSocket serverSocket;
+        if (sslContext == null) {
+            serverSocket = new ServerSocket();
+        } else {
+            SSLServerSocket sslServerSocket =
+                (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket();
+            sslServerSocket.setEnabledProtocols(TLS_PROTOCOLS);
+            serverSocket = sslServerSocket;
+        }
+        profile.configure(serverSocket);
+        return serverSocket;
+    }
+
     /**
      * Creates an instance of a {@link NetworkServer} listening on the default port (22243) for connection request for
      * Objects of type T.
@@ -111,9 +259,125 @@ public class NetworkHandler {
     public static <T extends Serializable> NetworkConnection<T> openConnection(InetAddress address, int port)
     throws IOException
     {
-        Socket socket = new Socket(address, port);
-        socket.setKeepAlive(true);
-        return new NetworkConnection<>(socket);
+        return new NetworkConnection<>(SocketTransport.connect(address, port, null, SocketProfile.configured()));
+    }
+
+    /**
+     * Creates an instance of a TLS encrypted {@link NetworkConnection} connecting to the specified host/port to send
+     * and receive objects of type T. Connections opened with the same {@link SSLContext} resume the cached TLS session.
+     * @param address       {@link InetAddress} object for the host
+     * @param port          port number the server is waiting for connection requests
+     * @param sslContext    TLS context trusting the certificate of the server
+     *                      (see {@link #createClientSslContext(Path, char[])})
+     * @param <T>           type of Objects to be transmitted trough this connection
+     * @return  {@link NetworkConnection} object representing the bidirectional channel between client and server.
+     * @throws IOException  if an error occurred opening the connection, e.g. server is not responding.
+     */
+    public static <T extends Serializable> NetworkConnection<T> openConnection(InetAddress address, int port,
+                                                                               SSLContext sslContext)
+    throws IOException
+    {
+        return openConnection(address, port, sslContext, SocketProfile.configured());
+    }
+
+    /**
+     * Creates an instance of a {@link NetworkConnection} connecting to the specified host/port, configuring the socket
+     * with the given profile (e.g. {@link SocketProfile#BULK} for a client sending large amounts of messages).
+     * @param address       {@link InetAddress} object for the host
+     * @param port          port number the server is waiting for connection requests
+     * @param sslContext    TLS context trusting the certificate of the server, null for an unencrypted connection
+     * @param profile       socket profile of the connection
+     * @param <T>           type of Objects to be transmitted trough this connection
+     * @return  {@link NetworkConnection} object representing the bidirectional channel between client and server.
+     * @throws IOException  if an error occurred opening the connection, e.g. server is not responding.
+     */
+    public static <T extends Serializable> NetworkConnection<T> openConnection(InetAddress address, int port,
+                                                                               SSLContext sslContext,
+                                                                               SocketProfile profile)
+    throws IOException
+    {
+        return new NetworkConnection<>(SocketTransport.connect(address, port, sslContext, profile));
+    }
+
+    /**
+     * Creates the TLS context of a server from a local key store (PKCS12 or JKS) holding the key and certificate of the
+     * server. Session caching is configured for resumption of reconnecting clients.
+     * @param keyStorePath  path of the key store file
+     * @param password      password of the key store and its keys
+     * @return  TLS context to be used with {@link #createServer(int, SSLContext)}
+     * @throws IOException  if the key store can not be read or the TLS context can not be initialized
+     */
+    public static SSLContext createServerSslContext(Path keyStorePath, char[] password) throws IOException {
+        try {
+            KeyManagerFactory keyManagerFactory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(loadKeyStore(keyStorePath, password), password);
+            return createSslContext(keyManagerFactory.getKeyManagers(), null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to initialize TLS: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates the TLS context of a client from a local trust store (PKCS12 or JKS) holding the certificate of the
+     * server, e.g. exported from the key store of the server with {@code keytool -exportcert}. The trust store must
+     * not contain the key of the server. Session caching is configured for resumption of reconnecting clients.
+     * @param trustStorePath    path of the trust store file
+     * @param password          password of the trust store, null to skip its integrity check (the certificates of
+     *                          a PKCS12 trust store created by keytool can not be read without it)
+     * @return  TLS context to be used with {@link #openConnection(InetAddress, int, SSLContext)}
+     * @throws IOException  if the trust store can not be read, holds no certificate or the TLS context can not be
+     *                      initialized
+     */
+    public static SSLContext createClientSslContext(Path trustStorePath, char[] password) throws IOException {
+        try {
+            TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            KeyStore trustStore = loadKeyStore(trustStorePath, password);
+            if (trustStore.size() == 0) {
+                throw new IOException("No certificate found in trust store " + trustStorePath
+                    + (password == null ? ", password missing?" : ""));
+            }
+            trustManagerFactory.init(trustStore);
+            return createSslContext(null, trustManagerFactory.getTrustManagers());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to initialize TLS: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the password of the key store or trust store from the environment variable
+     * {@value #TLS_PASSWORD_VARIABLE}, or reads it from the console, if there is one. Passwords are not taken from the
+     * command line, where they are visible to other users of the host (e.g. in the process list).
+     * @param prompt    the prompt shown on the console
+     * @return  the password, null if the variable is not set and there is no console
+     */
+    public static char[] tlsPassword(String prompt) {
+        String password = System.getenv(TLS_PASSWORD_VARIABLE);
+        if (password != null) {
+            return password.toCharArray();
+        }
+        Console console = System.console();
+        return console == null ? null : console.readPassword("%s", prompt);
+    }
+
+    private static KeyStore loadKeyStore(Path path, char[] password) throws IOException, GeneralSecurityException {
+        try (InputStream input = Files.newInputStream(path)) {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(input, password);
+            return keyStore;
+        }
+    }
+
+    private static SSLContext createSslContext(KeyManager[] keyManagers, TrustManager[] trustManagers)
+        throws GeneralSecurityException {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers, trustManagers, null);
+        sslContext.getServerSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        sslContext.getServerSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+        sslContext.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+        return sslContext;
     }
 
     /**
@@ -131,6 +395,24 @@ public class NetworkHandler {
         return openConnection(InetAddress.getByName(hostname), port);
     }
 
+    /**
+     * Creates an instance of a TLS encrypted {@link NetworkConnection} connecting to the specified host/port to send
+     * and receive objects of type T.
+     * @param hostname      server host name or address in String representation (e.g. "www.zhaw.ch", "160.85.104.112")
+     * @param port          port number the server is waiting for connection requests
+     * @param sslContext    TLS context trusting the certificate of the server, null for an unencrypted connection
+     * @param <T>           type of Objects to be transmitted trough this connection
+     * @return  {@link NetworkConnection} object representing the bidirectional channel between client and server.
+     * @throws IOException  if an error occurred opening the connection, e.g. server is not responding.
+     */
+    public static <T extends Serializable> NetworkConnection<T> openConnection(String hostname, int port,
+                                                                               SSLContext sslContext)
+    throws IOException
+    {
+        InetAddress address = InetAddress.getByName(hostname);
+        return sslContext == null ? openConnection(address, port) : openConnection(address, port, sslContext);
+    }
+
     /**
      * Creates an instance of a {@link NetworkConnection} connecting to the default host ("localhost",127.0.0.1,::1)
      * and port (22243) to send and receive objects of type T.
@@ -144,6 +426,31 @@ public class NetworkHandler {
         return openConnection(DEFAULT_ADDRESS, DEFAULT_PORT);
     }
 
+    /**
+     * Creates an instance of a {@link NetworkServer} accepting connections in the same JVM, opened with
+     * {@link #openInMemoryConnection(int)}. No socket is opened, the port only identifies the server within the JVM.
+     * @param port  port of the server (range: 1 - 65535), 0 for any free port
+     * @param <T>   type of the Objects to be transmitted in the created {@link NetworkConnection}
+     * @return  {@link NetworkServer} object to be used to wait for connections.
+     * @throws IOException  if another in-memory server is using the port.
+     */
+    public static <T extends Serializable> NetworkServer<T> createInMemoryServer(int port) throws IOException {
+        return new NetworkServer<>(InMemoryTransport.bind(port));
+    }
+
+    /**
+     * Creates an instance of a {@link NetworkConnection} connected to the in-memory server of the given port in the
+     * same JVM (see {@link #createInMemoryServer(int)}). The connection behaves like a socket connection, including
+     * blocking the sender while the peer does not read and {@link NetworkConnection#reopen()}.
+     * @param port  port of the in-memory server
+     * @param <T>   type of Objects to be transmitted trough this connection
+     * @return  {@link NetworkConnection} object representing the bidirectional channel between client and server.
+     * @throws IOException  if no in-memory server is using the port.
+     */
+    public static <T extends Serializable> NetworkConnection<T> openInMemoryConnection(int port) throws IOException {
+        return new NetworkConnection<>(InMemoryTransport.connect(port));
+    }
+
 
 
 
@@ -156,7 +463,7 @@ public class NetworkHandler {
      * @param <T> type of the Objects to be transmitted in the created {@link NetworkConnection}
      */
     public static class NetworkServer<T extends Serializable> implements Closeable {
-        private final ServerSocket serverSocket;
+        private final Transport.Listener listener;
 
         /**
          * <b>Private constructor: use {@link NetworkHandler#createServer(int port)} factory method to create an instance</b>
@@ -165,7 +472,27 @@ public class NetworkHandler {
          * @throws IOException if an error occurred opening the port, e.g. the port number is already used.
          */
         private NetworkServer(int port) throws IOException {
-            this.serverSocket = new ServerSocket(port);
+            this(new ServerSocket(port), null, SocketProfile.configured());
+        }
+
+        /**
+         * <b>Private constructor: use {@link NetworkHandler#createServer(int port, SSLContext sslContext)} factory
+         * method to create an instance</b>
+         * @param serverSocket  the bound server socket
+         * @param sslContext    TLS context of the server socket, null for unencrypted connections
+         * @param profile       socket profile of the accepted connections
+         */
+        private NetworkServer(ServerSocket serverSocket, SSLContext sslContext, SocketProfile profile) {
+            this(new SocketTransport.Listener(serverSocket, sslContext, profile));
+        }
+
+        /**
+         * <b>Private constructor: use {@link NetworkHandler#createInMemoryServer(int port)} factory method to create an
+         * instance</b>
+         * @param listener  the listener accepting the connections
+         */
+        private NetworkServer(Transport.Listener listener) {
+            this.listener = listener;
         }
 
         /**
@@ -186,9 +513,7 @@ public class NetworkHandler {
          * the port has been closed using the {@link NetworkServer#close()} method.
          */
         public NetworkConnection<T> waitForConnection() throws IOException {
-            Socket socket = serverSocket.accept();
-            socket.setKeepAlive(true);
-            return new NetworkConnection<>(socket);
+            return new NetworkConnection<>(listener.accept());
         }
 
         /**
@@ -196,7 +521,7 @@ public class NetworkHandler {
          * @return true if the server is ready and bound to the declared port, false otherwise
          */
         public boolean isAvailable() {
-            return serverSocket != null && serverSocket.isBound();
+            return listener.isBound();
         }
 
         /**
@@ -205,7 +530,7 @@ public class NetworkHandler {
          * @return true if the server is closed, false otherwise.
          */
         public boolean isClosed() {
-            return serverSocket == null || serverSocket.isClosed();
+            return listener.isClosed();
         }
 
         /**
@@ -213,7 +538,7 @@ public class NetworkHandler {
          * @return returns the port number (range: 1 - 65535) if the server is available, 0 otherwise.
          */
         public int getHostPort() {
-            return isAvailable()? serverSocket.getLocalPort() : 0;
+            return isAvailable()? listener.getLocalPort() : 0;
         }
 
         /**
@@ -221,7 +546,7 @@ public class NetworkHandler {
          * @return host address in String format or "unbound" if not available.
          */
         public String getHostAddress() {
-            return isAvailable()? serverSocket.getInetAddress().getHostAddress() : "unbound";
+            return isAvailable()? listener.getLocalAddress() : "unbound";
         }
 
         /**
@@ -235,9 +560,7 @@ public class NetworkHandler {
          */
         @Override
         public void close() throws IOException {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
+            listener.close();
         }
 
         @Override
@@ -245,12 +568,12 @@ public class NetworkHandler {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             NetworkServer<?> that = (NetworkServer<?>) o;
-            return serverSocket.equals(that.serverSocket);
+            return listener.equals(that.listener);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(serverSocket);
+            return Objects.hash(listener);
         }
     }
 
@@ -282,19 +605,54 @@ public class NetworkHandler {
      * interrupted and a {@link EOFException} is thrown.<br>
      * On the local side, waiting method calls (threads) are also interrupted and a {@link java.net.SocketException}
      * is thrown.</p>
+     * <p>The streams of the connection are buffered, so each object is written with a single flush (one TLS record
+     * on encrypted connections). The buffers are allocated once per connection and reused for all transfers.</p>
      *
      * @param <T> type of Objects to be transmitted trough this connection
      */
     public static class NetworkConnection<T extends Serializable> implements Closeable {
-        private final Socket socket;
+        private final Transport transport;
+        private OutputStream outputStream;
+        private InputStream inputStream;
+
+        /**
+         * Lease of the receive buffer, taken with the first receive and released once the connection is closed and
+         * no thread is receiving anymore.
+         */
+        private BufferPool.Lease receiveBuffer;
+
+        /**
+         * Guards {@link #receiving}, {@link #closed} and {@link #receiveBuffer}.
+         */
+        private final Object receiveLock = new Object();
+        private boolean receiving;
+        private boolean closed;
 
         /**
          * <b>Privat constructor: Use {@link NetworkHandler#openConnection(String hostname, int port)} and similar
          * factory methods to create instances of {@link NetworkConnection}</b>
-         * @param socket   operating system socket to use for the communication.
+         * @param transport     socket or in-memory transport to use for the communication.
+         */
+        private NetworkConnection(Transport transport) {
+            this.transport = transport;
+        }
+
+        /**
+         * Opens a new connection to the same remote peer using the same transport (plain or TLS), e.g. to reconnect
+         * after the connection has been lost. TLS connections resume the cached TLS session if possible.
+         * @return  new {@link NetworkConnection} to the same remote peer.
+         * @throws IOException  if an error occurred opening the connection, e.g. server is not responding.
          */
-        private NetworkConnection(Socket socket) {
-            this.socket = socket;
+        public NetworkConnection<T> reopen() throws IOException {
+            return new NetworkConnection<>(transport.reopen());
+        }
+
+        /**
+         * Indicates if the connection is encrypted using TLS.
+         * @return true if the connection is encrypted, false otherwise.
+         */
+        public boolean isEncrypted() {
+            return transport.isEncrypted();
         }
 
         /**
@@ -303,11 +661,14 @@ public class NetworkHandler {
          * to be made sure that only one thread is sending data at a time (not thread-safe).
          * If an error occurs a {@link IOException} is thrown.
          * @param data  data object of type T to be submitted through the connection.
+         * @return the number of bytes written for the data object.
          * @throws IOException if an error occurs (e.g. connection interrupted while sending, ...)
          */
-        public void send(T data) throws IOException {
-            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-            outputStream.writeObject(data);
+        public int send(T data) throws IOException {
+            if (outputStream == null) {
+                outputStream = transport.getOutputStream();
+            }
+            return FrameCodec.write(data, outputStream);
         }
 
         /**
@@ -321,8 +682,26 @@ public class NetworkHandler {
          * @throws ClassNotFoundException if the data object received does not match any class in the local classpath
          */
         public T receive() throws IOException, ClassNotFoundException {
-            ObjectInputStream inputStream = new ObjectInputStream(this.socket.getInputStream());
-            return (T) inputStream.readObject();
+            synchronized (receiveLock) {
+                if (closed) {
+                    throw new SocketException("Socket is closed");
+                }
+                if (inputStream == null) {
+                    receiveBuffer = BufferPool.getDefault().lease(this);
+                    inputStream = new PooledInputStream(transport.getInputStream(), receiveBuffer.buffer());
+                }
+                receiving = true;
+            }
+            try {
+                return (T) FrameCodec.read(inputStream);
+            } finally {
+                synchronized (receiveLock) {
+                    receiving = false;
+                    if (closed) {
+                        releaseReceiveBuffer();
+                    }
+                }
+            }
         }
 
         /**
@@ -330,7 +709,7 @@ public class NetworkHandler {
          * @return true if the connection is open and connected, false otherwise
          */
         public boolean isAvailable() {
-            return !isClosed() && socket.isConnected();
+            return !isClosed() && transport.isConnected();
         }
 
         /**
@@ -339,7 +718,7 @@ public class NetworkHandler {
          * @return true if the connection is closed, false otherwise.
          */
         public boolean isClosed() {
-            return socket == null || socket.isClosed();
+            return transport.isClosed();
         }
 
         /**
@@ -347,7 +726,16 @@ public class NetworkHandler {
          * @return port number (range: 1 - 65535) of the port on the remote host, 0 if not connected.
          */
         public int getRemotePort() {
-            return isAvailable()? socket.getPort() : 0;
+            return isAvailable()? transport.getRemotePort() : 0;
+        }
+
+        /**
+         * Returns the address of the remote peer, if the connection is available.
+         * In contrast to {@link #getRemoteHost()} no host name lookup is done.
+         * @return address of the remote peer, null if not connected.
+         */
+        public InetAddress getRemoteAddress() {
+            return isAvailable()? transport.getRemoteAddress() : null;
         }
 
         /**
@@ -356,7 +744,7 @@ public class NetworkHandler {
          * @return host name of the remote peer, "not connected" if connection is not available.
          */
         public String getRemoteHost() {
-            return isAvailable()? socket.getInetAddress().getHostName() : "not connected";
+            return isAvailable()? transport.getRemoteAddress().getHostName() : "not connected";
         }
 
         /**
@@ -369,8 +757,23 @@ public class NetworkHandler {
          */
         @Override
         public void close() throws IOException {
+            synchronized (receiveLock) {
+                closed = true;
+                if (!receiving) {
+                    releaseReceiveBuffer();
+                }
+            }
             if (!isClosed()) {
-                socket.close();
+                transport.close();
+            }
+        }
+
+        /**
+         * Returns the receive buffer to the pool. Must only be called while no thread is receiving.
+         */
+        private void releaseReceiveBuffer() {
+            if (receiveBuffer != null) {
+                receiveBuffer.release();
             }
         }
 
@@ -379,12 +782,12 @@ public class NetworkHandler {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             NetworkConnection<?> that = (NetworkConnection<?>) o;
-            return socket.equals(that.socket);
+            return transport.equals(that.transport);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(socket);
+            return Objects.hash(transport);
         }
     }
 }
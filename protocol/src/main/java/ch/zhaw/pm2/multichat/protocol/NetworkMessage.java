@@ -7,6 +7,16 @@ import java.io.Serializable;
  * A NetworkMessage contains information about its sender, receiver, data type and payload.
  */
 public class NetworkMessage implements Serializable {
+    /**
+     * Fixed serialization version, so peers with additional (optional) fields can still exchange messages.
+     */
+    private static final long serialVersionUID = -5246139061563349877L;
+
+    /**
+     * Value of {@link #getSequence()} if no sequence number is assigned.
+     */
+    public static final long NO_SEQUENCE = 0;
+
     /**
      * The sender of the message.
      */
@@ -28,7 +38,37 @@ public class NetworkMessage implements Serializable {
     private final String payload;
 
     /**
-     * Constructs a new NetworkMessage with the given parameters.
+     * The resume token of the session. Issued by the server in the CONFIRM of a connect request and presented by the
+     * client in the CONNECT request to resume the session after a connection loss. Null if not available.
+     */
+    private final String resumeToken;
+
+    /**
+     * The sequence number of the message. For MESSAGE frames sent by the server, the sequence number assigned to the
+     * message for the receiving session. For CONNECT frames resuming a session and for ACK frames, the last sequence
+     * number received.
+     */
+    private final long sequence;
+
+    /**
+     * The capabilities in text form (see {@link Capabilities#encode()}). In CONNECT frames the capabilities offered by
+     * the client, in CONFIRM frames the settings chosen by the server. Null for peers without capability negotiation.
+     */
+    private final String capabilities;
+
+    /**
+     * The header of a CHUNK frame, describing the position of the payload within the transfer. Null for other frames.
+     */
+    private final ChunkHeader chunk;
+
+    /**
+     * The timestamps of a traced message (see {@link MessageTrace}), null if the message is not traced.
+     * Carried as an array of longs, so peers without tracing can read and ignore it.
+     */
+    private final long[] trace;
+
+    /**
+     * Constructs a new NetworkMessage with the given parameters, without resume token and sequence number.
      *
      * @param sender   the sender of the message.
      * @param receiver the receiver of the message.
@@ -36,10 +76,79 @@ public class NetworkMessage implements Serializable {
      * @param payload  the data contained in the message.
      */
     public NetworkMessage(String sender, String receiver, Configuration.DataType type, String payload) {
+        this(sender, receiver, type, payload, null, NO_SEQUENCE, null);
+    }
+
+    /**
+     * Constructs a new NetworkMessage with the given parameters.
+     *
+     * @param sender      the sender of the message.
+     * @param receiver    the receiver of the message.
+     * @param type        the type of data contained in the message.
+     * @param payload     the data contained in the message.
+     * @param resumeToken the resume token of the session, may be null.
+     * @param sequence    the sequence number of the message, {@link #NO_SEQUENCE} if none.
+     */
+    public NetworkMessage(String sender, String receiver, Configuration.DataType type, String payload,
+                          String resumeToken, long sequence) {
+        this(sender, receiver, type, payload, resumeToken, sequence, null);
+    }
+
+    /**
+     * Constructs a new NetworkMessage with the given parameters, including the capabilities of the handshake.
+     *
+     * @param sender       the sender of the message.
+     * @param receiver     the receiver of the message.
+     * @param type         the type of data contained in the message.
+     * @param payload      the data contained in the message.
+     * @param resumeToken  the resume token of the session, may be null.
+     * @param sequence     the sequence number of the message, {@link #NO_SEQUENCE} if none.
+     * @param capabilities the capabilities in text form, may be null.
+     */
+    public NetworkMessage(String sender, String receiver, Configuration.DataType type, String payload,
+                          String resumeToken, long sequence, String capabilities) {
+        this(sender, receiver, type, payload, resumeToken, sequence, capabilities, null, null);
+    }
+
+    /**
+     * Constructs a new NetworkMessage with the given parameters, including the trace of the message.
+     *
+     * @param sender   the sender of the message.
+     * @param receiver the receiver of the message.
+     * @param type     the type of data contained in the message.
+     * @param payload  the data contained in the message.
+     * @param sequence the sequence number of the message, {@link #NO_SEQUENCE} if none.
+     * @param trace    the trace of the message, null if not traced.
+     */
+    public NetworkMessage(String sender, String receiver, Configuration.DataType type, String payload,
+                          long sequence, MessageTrace trace) {
+        this(sender, receiver, type, payload, null, sequence, null, null, trace == null ? null : trace.toArray());
+    }
+
+    /**
+     * Constructs a new CHUNK NetworkMessage, containing a chunk of a large payload.
+     *
+     * @param sender   the sender of the message.
+     * @param receiver the receiver of the message.
+     * @param payload  the chunk of the payload, null for a cancel chunk.
+     * @param sequence the sequence number of the message, {@link #NO_SEQUENCE} if none.
+     * @param chunk    the header of the chunk.
+     */
+    public NetworkMessage(String sender, String receiver, String payload, long sequence, ChunkHeader chunk) {
+        this(sender, receiver, Configuration.DataType.CHUNK, payload, null, sequence, null, chunk, null);
+    }
+
+    private NetworkMessage(String sender, String receiver, Configuration.DataType type, String payload,
+                           String resumeToken, long sequence, String capabilities, ChunkHeader chunk, long[] trace) {
         this.sender = sender;
         this.receiver = receiver;
         this.type = type;
         this.payload = payload;
+        this.resumeToken = resumeToken;
+        this.sequence = sequence;
+        this.capabilities = capabilities;
+        this.chunk = chunk;
+        this.trace = trace;
     }
 
     /**
@@ -78,6 +187,62 @@ public class NetworkMessage implements Serializable {
         return payload;
     }
 
+    /**
+     * Gets the resume token of the session.
+     *
+     * @return the resume token, null if not available.
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Gets the sequence number of the message.
+     *
+     * @return the sequence number, {@link #NO_SEQUENCE} if none is assigned.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the capabilities of the handshake in text form.
+     *
+     * @return the capabilities, null if not available.
+     */
+    public String getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Gets the header of a CHUNK frame.
+     *
+     * @return the chunk header, null for other frames.
+     */
+    public ChunkHeader getChunk() {
+        return chunk;
+    }
+
+    /**
+     * Gets the trace of the message.
+     *
+     * @return the trace, null if the message is not traced.
+     */
+    public MessageTrace getTrace() {
+        return MessageTrace.of(trace);
+    }
+
+    /**
+     * Returns a copy of this message with the given trace.
+     *
+     * @param newTrace the trace of the copy, null for no trace.
+     * @return the copy of this message.
+     */
+    public NetworkMessage withTrace(MessageTrace newTrace) {
+        return new NetworkMessage(sender, receiver, type, payload, resumeToken, sequence, capabilities, chunk,
+            newTrace == null ? null : newTrace.toArray());
+    }
+
     /**
      * Returns a string representation of this message.
      *
@@ -0,0 +1,70 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A buffered input stream using a buffer leased from a {@link BufferPool}.
+ * <p>
+ * The buffer is not released by the stream itself, as it may only be returned to the pool once no thread is reading
+ * anymore. The stream is not thread safe.
+ */
+final class PooledInputStream extends InputStream {
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int count;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param in     the stream to read from
+     * @param buffer the leased buffer
+     */
+    PooledInputStream(InputStream in, byte[] buffer) {
+        this.in = in;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= count && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= count) {
+            if (len >= buffer.length) {
+                return in.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int available = Math.min(len, count - position);
+        System.arraycopy(buffer, position, b, off, available);
+        position += available;
+        return available;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return count - position + in.available();
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        count = read;
+        return true;
+    }
+}
@@ -0,0 +1,129 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.CONFIRM_CONNECT;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.CONFIRM_DISCONNECT;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.CONNECTED;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.DISCONNECTED;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.NEW;
+
+/**
+ * This class holds the protocol state of a connection handler and performs its transitions.
+ * <p>
+ * The legal transitions of client and server are defined in one table. A transition is done with compare-and-set, so
+ * of several threads changing the state concurrently (e.g. the user disconnecting while the confirmation of the server
+ * is received) exactly one succeeds, and each succeeding transition starts from the state its caller has seen.
+ * Transitions not in the table are rejected in the same way everywhere. The state can be read at any time without
+ * locking.
+ * <pre>
+ * NEW                -&gt; CONFIRM_CONNECT, CONNECTED, CONFIRM_DISCONNECT, DISCONNECTED
+ * CONFIRM_CONNECT    -&gt; CONNECTED, DISCONNECTED
+ * CONNECTED          -&gt; CONFIRM_CONNECT (reconnect), CONFIRM_DISCONNECT, DISCONNECTED
+ * CONFIRM_DISCONNECT -&gt; DISCONNECTED
+ * DISCONNECTED       -&gt; (final)
+ * </pre>
+ */
+public final class ProtocolStateMachine {
+    /**
+     * The legal successors of each state.
+     */
+    private static final Map<Configuration.ProtocolState, Set<Configuration.ProtocolState>> TRANSITIONS =
+        new EnumMap<>(Configuration.ProtocolState.class);
+
+    static {
+        TRANSITIONS.put(NEW, EnumSet.of(CONFIRM_CONNECT, CONNECTED, CONFIRM_DISCONNECT, DISCONNECTED));
+        TRANSITIONS.put(CONFIRM_CONNECT, EnumSet.of(CONNECTED, DISCONNECTED));
+        TRANSITIONS.put(CONNECTED, EnumSet.of(CONFIRM_CONNECT, CONFIRM_DISCONNECT, DISCONNECTED));
+        TRANSITIONS.put(CONFIRM_DISCONNECT, EnumSet.of(DISCONNECTED));
+        TRANSITIONS.put(DISCONNECTED, EnumSet.noneOf(Configuration.ProtocolState.class));
+    }
+
+    private final AtomicReference<Configuration.ProtocolState> state = new AtomicReference<>(NEW);
+
+    /**
+     * Checks if the table allows a transition.
+     *
+     * @param from the current state
+     * @param to   the new state
+     * @return true if the transition is legal, false otherwise
+     */
+    public static boolean isLegal(Configuration.ProtocolState from, Configuration.ProtocolState to) {
+        return TRANSITIONS.get(from).contains(to);
+    }
+
+    /**
+     * Returns the current state.
+     *
+     * @return the current state
+     */
+    public Configuration.ProtocolState get() {
+        return state.get();
+    }
+
+    /**
+     * Checks if the current state is the given one.
+     *
+     * @param expected the expected state
+     * @return true if the current state is the expected one, false otherwise
+     */
+    public boolean is(Configuration.ProtocolState expected) {
+        return state.get() == expected;
+    }
+
+    /**
+     * Makes sure the current state is the given one, before a request is sent or handled.
+     *
+     * @param expected the state required by the request
+     * @param request  the name of the request, for the error message
+     * @throws ChatProtocolException if the current state is another one
+     */
+    public void require(Configuration.ProtocolState expected, String request) throws ChatProtocolException {
+        Configuration.ProtocolState current = state.get();
+        if (current != expected) {
+            throw new ChatProtocolException("Illegal state for " + request + ": " + current);
+        }
+    }
+
+    /**
+     * Changes the state, if it is still the expected one.
+     *
+     * @param expected the state the caller has seen
+     * @param next     the new state
+     * @return true if the state has been changed, false if the current state is another one than expected
+     * @throws IllegalArgumentException if the table does not allow the transition
+     */
+    public boolean compareAndSet(Configuration.ProtocolState expected, Configuration.ProtocolState next) {
+        if (!isLegal(expected, next)) {
+            throw new IllegalArgumentException("Illegal state transition: " + expected + " -> " + next);
+        }
+        return state.compareAndSet(expected, next);
+    }
+
+    /**
+     * Changes the state from whichever state it is in, if the table allows the transition from there.
+     *
+     * @param next the new state
+     * @return the state before the transition
+     * @throws ChatProtocolException if the table does not allow the transition from the current state
+     */
+    public Configuration.ProtocolState transitionTo(Configuration.ProtocolState next) throws ChatProtocolException {
+        Configuration.ProtocolState current;
+        do {
+            current = state.get();
+            if (!isLegal(current, next)) {
+                throw new ChatProtocolException("Illegal state transition: " + current + " -> " + next);
+            }
+        } while (!state.compareAndSet(current, next));
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return state.get().toString();
+    }
+}
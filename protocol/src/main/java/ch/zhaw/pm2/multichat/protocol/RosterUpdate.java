@@ -0,0 +1,70 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This record describes an update of the list of online users (the roster), sent by the server in ROSTER frames to
+ * clients, which negotiated the {@code roster} capability.
+ * <p>
+ * After the connection is confirmed, the client receives a snapshot of the roster, followed by deltas listing the
+ * users, which joined or left since the previous update. The payload of the frame is a compact text form: the first
+ * line is {@code snapshot} or {@code delta}, each further line is a username prefixed with {@code +} (joined) or
+ * {@code -} (left). A snapshot only contains joined users.
+ *
+ * @param snapshot true if the update replaces the roster, false if it is applied to the current roster
+ * @param joined   the users, which are online
+ * @param left     the users, which went offline
+ */
+public record RosterUpdate(boolean snapshot, List<String> joined, List<String> left) {
+    private static final String SNAPSHOT = "snapshot";
+    private static final String DELTA = "delta";
+
+    /**
+     * Creates a new update with immutable copies of the given lists.
+     */
+    public RosterUpdate {
+        joined = List.copyOf(joined);
+        left = List.copyOf(left);
+    }
+
+    /**
+     * Parses the text form of an update.
+     *
+     * @param text the payload of the ROSTER frame
+     * @return the parsed update
+     * @throws ChatProtocolException if the text form is malformed
+     */
+    public static RosterUpdate parse(String text) throws ChatProtocolException {
+        if (text == null) {
+            throw new ChatProtocolException("Missing roster update");
+        }
+        String[] lines = text.split("\n");
+        boolean snapshot = SNAPSHOT.equals(lines[0]);
+        if (!snapshot && !DELTA.equals(lines[0])) {
+            throw new ChatProtocolException("Illegal roster update: " + lines[0]);
+        }
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.length() < 2 || (line.charAt(0) != '+' && line.charAt(0) != '-')) {
+                throw new ChatProtocolException("Illegal roster entry: " + line);
+            }
+            (line.charAt(0) == '+' ? joined : left).add(line.substring(1));
+        }
+        return new RosterUpdate(snapshot, joined, left);
+    }
+
+    /**
+     * Returns the text form of the update.
+     *
+     * @return the text form, to be parsed with {@link #parse(String)}
+     */
+    public String encode() {
+        StringBuilder text = new StringBuilder(snapshot ? SNAPSHOT : DELTA);
+        joined.forEach(name -> text.append("\n+").append(name));
+        left.forEach(name -> text.append("\n-").append(name));
+        return text.toString();
+    }
+}
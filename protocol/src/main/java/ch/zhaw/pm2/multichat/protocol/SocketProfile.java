@@ -0,0 +1,160 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This record describes how the TCP sockets of the connections are tuned, either for latency or for throughput.
+ * <p>
+ * The profiles are selected by name, per process with the system property {@value #PROPERTY} or per connection with
+ * the factory methods of {@link NetworkHandler}:
+ * <ul>
+ *     <li>{@code interactive} (default): Nagle's algorithm disabled ({@code TCP_NODELAY}), buffer sizes of the system,
+ *     each frame is flushed immediately. Small chat frames are sent without delay.</li>
+ *     <li>{@code bulk}: {@code TCP_NODELAY}, send and receive buffers of {@value #BULK_BUFFER_SIZE} bytes and a flush
+ *     window of {@value #BULK_FLUSH_WINDOW_MILLIS} ms: frames are collected for up to the window (or until
+ *     {@value FlushWindowOutputStream#BUFFER_SIZE} bytes are pending) and written at once, which saves system calls and
+ *     packets (and TLS records) when many frames are sent, at the cost of up to the window in latency.</li>
+ *     <li>{@code system}: the settings of the operating system, i.e. Nagle's algorithm enabled (except for TLS) and
+ *     each frame flushed immediately, as the first versions did.</li>
+ * </ul>
+ * The flush window can be overridden after the name in milliseconds, e.g. {@code bulk:5}.
+ *
+ * @param name              the name of the profile
+ * @param tcpNoDelay        true to disable Nagle's algorithm
+ * @param sendBufferSize    the size of the send buffer of the socket in bytes, 0 for the default of the system
+ * @param receiveBufferSize the size of the receive buffer of the socket in bytes, 0 for the default of the system
+ * @param flushWindowNanos  the time frames are collected before they are written, 0 to write each frame immediately
+ */
+public record SocketProfile(String name, boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize,
+                            long flushWindowNanos) {
+    /**
+     * System property selecting the profile of the process.
+     */
+    public static final String PROPERTY = "multichat.socket.profile";
+
+    /**
+     * Size of the socket buffers of the bulk profile.
+     */
+    static final int BULK_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Flush window of the bulk profile.
+     */
+    static final long BULK_FLUSH_WINDOW_MILLIS = 2;
+
+    /**
+     * Profile for low latency: no delay, frames flushed immediately.
+     */
+    public static final SocketProfile INTERACTIVE = new SocketProfile("interactive", true, 0, 0, 0);
+
+    /**
+     * Profile for high throughput: large buffers, frames collected within the flush window.
+     */
+    public static final SocketProfile BULK = new SocketProfile("bulk", true, BULK_BUFFER_SIZE, BULK_BUFFER_SIZE,
+        TimeUnit.MILLISECONDS.toNanos(BULK_FLUSH_WINDOW_MILLIS));
+
+    /**
+     * Profile using the settings of the operating system.
+     */
+    public static final SocketProfile SYSTEM = new SocketProfile("system", false, 0, 0, 0);
+
+    /**
+     * Returns the profile selected with the system property {@value #PROPERTY}.
+     *
+     * @return the selected profile, {@link #INTERACTIVE} if none is selected
+     * @throws IllegalArgumentException if the property does not name a profile
+     */
+    public static SocketProfile configured() {
+        String profile = System.getProperty(PROPERTY);
+        return profile == null ? INTERACTIVE : parse(profile);
+    }
+
+    /**
+     * Parses a profile in the form {@code <name>[:<flush window in ms>]}.
+     *
+     * @param text the profile to parse, e.g. {@code interactive} or {@code bulk:5}
+     * @return the parsed profile
+     * @throws IllegalArgumentException if the text does not name a profile or the flush window is not valid
+     */
+    public static SocketProfile parse(String text) {
+        String[] parts = text.strip().split(":");
+        SocketProfile profile = switch (parts[0].toLowerCase(Locale.ROOT)) {
+            case "interactive" -> INTERACTIVE;
+            case "bulk" -> BULK;
+            case "system" -> SYSTEM;
+            default -> throw new IllegalArgumentException("Unknown socket profile: " + text);
+        };
+        if (parts.length == 1) {
+            return profile;
+        }
+        try {
+            double windowMillis = Double.parseDouble(parts[1]);
+            if (windowMillis < 0 || parts.length > 2) {
+                throw new IllegalArgumentException("Illegal socket profile: " + text);
+            }
+            return new SocketProfile(profile.name, profile.tcpNoDelay, profile.sendBufferSize,
+                profile.receiveBufferSize, (long) (windowMillis * TimeUnit.MILLISECONDS.toNanos(1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal socket profile: " + text);
+        }
+    }
+
+    /**
+     * Sets the options of the profile on a socket, before it is connected (so the receive buffer size is considered
+     * for the TCP window).
+     *
+     * @param socket    the socket
+     * @param encrypted true for a TLS socket, which always disables Nagle's algorithm, as the handshake consists of
+     *                  several small writes
+     * @throws IOException if an option can not be set
+     */
+    void configure(Socket socket, boolean encrypted) throws IOException {
+        socket.setKeepAlive(true);
+        socket.setTcpNoDelay(tcpNoDelay || encrypted);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    /**
+     * Sets the receive buffer size of the profile on a server socket, before it is bound, so it is inherited by the
+     * accepted sockets.
+     *
+     * @param serverSocket the server socket
+     * @throws IOException if the option can not be set
+     */
+    void configure(ServerSocket serverSocket) throws IOException {
+        if (receiveBufferSize > 0) {
+            serverSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    /**
+     * Returns the stream the frames of a connection are written to: the output stream of the socket, or a stream
+     * collecting the frames within the flush window.
+     *
+     * @param out the output stream of the socket
+     * @return the stream to write the frames to
+     */
+    OutputStream outputStream(OutputStream out) {
+        return flushWindowNanos > 0 ? new FlushWindowOutputStream(out, flushWindowNanos) : out;
+    }
+
+    /**
+     * Returns the profile in the form parsed by {@link #parse(String)}.
+     *
+     * @return the name of the profile and the flush window, if any
+     */
+    @Override
+    public String toString() {
+        return flushWindowNanos == 0 ? name : name + ":" + flushWindowNanos / 1e6;
+    }
+}
@@ -0,0 +1,195 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A transport over a TCP socket, plain or encrypted using TLS, tuned with a {@link SocketProfile}.
+ */
+final class SocketTransport implements Transport {
+    private final Socket socket;
+    private final SSLContext sslContext;
+    private final SocketProfile profile;
+    private OutputStream outputStream;
+
+    /**
+     * Creates a transport over a connected socket.
+     *
+     * @param socket     the connected socket
+     * @param sslContext TLS context of the socket, null for unencrypted connections
+     * @param profile    the profile the socket has been configured with
+     */
+    private SocketTransport(Socket socket, SSLContext sslContext, SocketProfile profile) {
+        this.socket = socket;
+        this.sslContext = sslContext;
+        this.profile = profile;
+    }
+
+    /**
+     * Connects a socket to the given host and port. With TLS, the certificate of the server has to match the host name
+     * the address has been resolved from, or the address itself, as for HTTPS.
+     *
+     * @param address    the address of the host
+     * @param port       the port of the server
+     * @param sslContext TLS context trusting the certificate of the server, null for an unencrypted connection
+     * @param profile    the profile to configure the socket with
+     * @return the transport over the connected socket
+     * @throws IOException if the connection could not be opened
+     */
+    static SocketTransport connect(InetAddress address, int port, SSLContext sslContext, SocketProfile profile)
+        throws IOException {
+        Socket socket = new Socket();
+        try {
+            profile.configure(socket, sslContext != null);
+            InetSocketAddress endpoint = new InetSocketAddress(address, port);
+            socket.connect(endpoint);
+            if (sslContext != null) {
+                SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory()
+                    .createSocket(socket, endpoint.getHostString(), port, true);
+                socket = sslSocket;
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setProtocols(NetworkHandler.TLS_PROTOCOLS);
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(parameters);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new SocketTransport(socket, sslContext, profile);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * With a flush window, the frames are collected before they are written (see {@link FlushWindowOutputStream}).
+     */
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = profile.outputStream(socket.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    @Override
+    public Transport reopen() throws IOException {
+        return connect(socket.getInetAddress(), socket.getPort(), sslContext, profile);
+    }
+
+    @Override
+    public boolean isEncrypted() {
+        return sslContext != null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public InetAddress getRemoteAddress() {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public int getRemotePort() {
+        return socket.getPort();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Frames collected within the flush window are written before the socket is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        OutputStream currentOutputStream;
+        synchronized (this) {
+            currentOutputStream = outputStream;
+        }
+        if (currentOutputStream instanceof FlushWindowOutputStream flushWindow) {
+            flushWindow.flushBeforeClose(socket);
+        }
+        socket.close();
+    }
+
+    /**
+     * A listener accepting TCP connections on a bound server socket.
+     */
+    static final class Listener implements Transport.Listener {
+        private final ServerSocket serverSocket;
+        private final SSLContext sslContext;
+        private final SocketProfile profile;
+
+        /**
+         * Creates a listener on a bound server socket.
+         *
+         * @param serverSocket the bound server socket
+         * @param sslContext   TLS context of the server socket, null for unencrypted connections
+         * @param profile      the profile to configure the accepted sockets with
+         */
+        Listener(ServerSocket serverSocket, SSLContext sslContext, SocketProfile profile) {
+            this.serverSocket = serverSocket;
+            this.sslContext = sslContext;
+            this.profile = profile;
+        }
+
+        @Override
+        public Transport accept() throws IOException {
+            Socket socket = serverSocket.accept();
+            try {
+                profile.configure(socket, sslContext != null);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return new SocketTransport(socket, sslContext, profile);
+        }
+
+        @Override
+        public boolean isBound() {
+            return serverSocket.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return serverSocket.isClosed();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public String getLocalAddress() {
+            return serverSocket.getInetAddress().getHostAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        }
+    }
+}
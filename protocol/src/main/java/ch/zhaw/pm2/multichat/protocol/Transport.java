@@ -0,0 +1,117 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+/**
+ * The byte streams underneath a {@link NetworkHandler.NetworkConnection}.
+ * <p>
+ * The connection encodes and decodes the frames, the transport only carries their bytes. {@link SocketTransport}
+ * uses a TCP socket (plain or TLS), {@link InMemoryTransport} connects two peers in the same JVM without the kernel.
+ * Both behave like a socket on close: local readers fail with a {@link java.net.SocketException}, remote readers
+ * read the remaining data and then reach the end of the stream.
+ */
+interface Transport extends Closeable {
+    /**
+     * Returns the stream to read the data sent by the peer. The stream is not thread safe.
+     *
+     * @return the input stream of the transport
+     * @throws IOException if the transport is closed
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Returns the stream to send data to the peer. Each write is passed on immediately.
+     *
+     * @return the output stream of the transport
+     * @throws IOException if the transport is closed
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Opens a new transport of the same kind to the same peer, e.g. to reconnect.
+     *
+     * @return the new transport
+     * @throws IOException if the peer is not available
+     */
+    Transport reopen() throws IOException;
+
+    /**
+     * Indicates if the transport is encrypted.
+     *
+     * @return true if the transport is encrypted, false otherwise
+     */
+    boolean isEncrypted();
+
+    /**
+     * Indicates if the transport has been connected to the peer.
+     *
+     * @return true if connected, false otherwise
+     */
+    boolean isConnected();
+
+    /**
+     * Indicates if the transport has been closed locally.
+     *
+     * @return true if closed, false otherwise
+     */
+    boolean isClosed();
+
+    /**
+     * Returns the address of the peer.
+     *
+     * @return the address of the peer
+     */
+    InetAddress getRemoteAddress();
+
+    /**
+     * Returns the port of the peer.
+     *
+     * @return the port of the peer
+     */
+    int getRemotePort();
+
+    /**
+     * The source of the transports accepted underneath a {@link NetworkHandler.NetworkServer}.
+     */
+    interface Listener extends Closeable {
+        /**
+         * Blocks until a peer connects and returns the transport to it.
+         *
+         * @return the transport to the connected peer
+         * @throws IOException if the listener has been closed or accepting failed
+         */
+        Transport accept() throws IOException;
+
+        /**
+         * Indicates if the listener is bound to its port.
+         *
+         * @return true if bound, false otherwise
+         */
+        boolean isBound();
+
+        /**
+         * Indicates if the listener has been closed.
+         *
+         * @return true if closed, false otherwise
+         */
+        boolean isClosed();
+
+        /**
+         * Returns the port the listener is bound to.
+         *
+         * @return the local port
+         */
+        int getLocalPort();
+
+        /**
+         * Returns the address the listener is bound to in String format.
+         *
+         * @return the local address
+         */
+        String getLocalAddress();
+    }
+}
@@ -0,0 +1,184 @@
+package ch.zhaw.pm2.multichat.protocol;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.CONFIRM_CONNECT;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.CONFIRM_DISCONNECT;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.CONNECTED;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.DISCONNECTED;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.NEW;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the transitions of the {@link ProtocolStateMachine}, in particular that exactly one of several racing
+ * transitions wins.
+ */
+class ProtocolStateMachineTest {
+    /**
+     * Number of threads racing for a transition.
+     */
+    private static final int THREADS = 8;
+
+    /**
+     * Number of races per test.
+     */
+    private static final int ROUNDS = 500;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void newMachineStartsInStateNew() {
+        ProtocolStateMachine machine = new ProtocolStateMachine();
+        assertTrue(machine.is(NEW));
+        assertEquals(NEW, machine.get());
+    }
+
+    @Test
+    void compareAndSetRejectsTransitionNotInTable() {
+        ProtocolStateMachine machine = new ProtocolStateMachine();
+        assertThrows(IllegalArgumentException.class, () -> machine.compareAndSet(CONFIRM_DISCONNECT, CONNECTED));
+        assertEquals(NEW, machine.get());
+    }
+
+    @Test
+    void compareAndSetFailsIfStateIsNotExpected() {
+        ProtocolStateMachine machine = new ProtocolStateMachine();
+        assertFalse(machine.compareAndSet(CONNECTED, CONFIRM_DISCONNECT));
+        assertEquals(NEW, machine.get());
+    }
+
+    @Test
+    void transitionToRejectsTransitionFromFinalState() throws ChatProtocolException {
+        ProtocolStateMachine machine = new ProtocolStateMachine();
+        assertEquals(NEW, machine.transitionTo(DISCONNECTED));
+        assertThrows(ChatProtocolException.class, () -> machine.transitionTo(CONNECTED));
+        assertEquals(DISCONNECTED, machine.get());
+    }
+
+    @Test
+    void requireRejectsOtherState() {
+        ProtocolStateMachine machine = new ProtocolStateMachine();
+        assertThrows(ChatProtocolException.class, () -> machine.require(CONNECTED, "message request"));
+    }
+
+    /**
+     * All threads try to leave state NEW towards different states at once: exactly one succeeds, and the machine is
+     * in the state of the winner.
+     */
+    @Test
+    void exactlyOneRacingCompareAndSetWins() throws Exception {
+        Configuration.ProtocolState[] targets = {CONFIRM_CONNECT, CONNECTED, CONFIRM_DISCONNECT, DISCONNECTED};
+        for (int round = 0; round < ROUNDS; round++) {
+            ProtocolStateMachine machine = new ProtocolStateMachine();
+            List<Callable<Configuration.ProtocolState>> racers = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                Configuration.ProtocolState target = targets[i % targets.length];
+                racers.add(() -> machine.compareAndSet(NEW, target) ? target : null);
+            }
+            List<Configuration.ProtocolState> winners = race(racers);
+            assertEquals(1, winners.size(), "winners in round " + round);
+            assertEquals(winners.get(0), machine.get());
+        }
+    }
+
+    /**
+     * All threads try to reconnect a connected machine at once (CONNECTED to CONFIRM_CONNECT). The transition is not
+     * legal from CONFIRM_CONNECT, so exactly one succeeds and the others are rejected.
+     */
+    @Test
+    void exactlyOneRacingTransitionToWins() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            ProtocolStateMachine machine = new ProtocolStateMachine();
+            assertTrue(machine.compareAndSet(NEW, CONNECTED));
+            List<Callable<Configuration.ProtocolState>> racers = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                racers.add(() -> {
+                    try {
+                        return machine.transitionTo(CONFIRM_CONNECT);
+                    } catch (ChatProtocolException e) {
+                        return null;
+                    }
+                });
+            }
+            List<Configuration.ProtocolState> winners = race(racers);
+            assertEquals(List.of(CONNECTED), winners, "winners in round " + round);
+            assertEquals(CONFIRM_CONNECT, machine.get());
+        }
+    }
+
+    /**
+     * The user disconnects (CONNECTED to CONFIRM_DISCONNECT) while the connection is lost (any state to
+     * DISCONNECTED): whichever wins, the machine ends in DISCONNECTED, and a disconnect request only succeeds if it
+     * started from CONNECTED.
+     */
+    @Test
+    void disconnectRacingWithLostConnectionEndsDisconnected() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            ProtocolStateMachine machine = new ProtocolStateMachine();
+            assertTrue(machine.compareAndSet(NEW, CONNECTED));
+            List<Callable<Configuration.ProtocolState>> racers = List.of(
+                () -> machine.compareAndSet(CONNECTED, CONFIRM_DISCONNECT) ? CONNECTED : null,
+                () -> machine.transitionTo(DISCONNECTED));
+            List<Configuration.ProtocolState> results = race(racers);
+            assertEquals(DISCONNECTED, machine.get());
+            assertTrue(results.contains(CONNECTED), "one transition must start from CONNECTED in round " + round);
+            if (results.size() == 2) {
+                assertEquals(List.of(CONNECTED, CONFIRM_DISCONNECT), results, "order in round " + round);
+            }
+        }
+    }
+
+    /**
+     * Starts the racers at once and collects their results.
+     *
+     * @param racers the racing transitions, each returning a non-null value if it has succeeded
+     * @return the non-null results, in the order of the racers
+     */
+    private <T> List<T> race(List<Callable<T>> racers) throws Exception {
+        CountDownLatch ready = new CountDownLatch(racers.size());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> racer : racers) {
+            futures.add(executor.submit(() -> {
+                ready.countDown();
+                start.await();
+                return racer.call();
+            }));
+        }
+        assertTrue(ready.await(10, TimeUnit.SECONDS));
+        start.countDown();
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            T result = future.get(10, TimeUnit.SECONDS);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,82 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This benchmark opens more connections than the server admits and reports how many threads the server started and
+ * the attributes of the admission control MBean, before and after some of the connections are closed.
+ * <p>
+ * The server runs in this JVM; its limits are set with {@code -Dmultichat.connections.max} and the related
+ * properties (see {@link AdmissionControl}).
+ * <p>
+ * Usage: {@code AdmissionStormBenchmark <port> <connections> [<closed>]}, e.g. {@code 7500 2000 200}.
+ */
+public final class AdmissionStormBenchmark {
+    private static final String[] ADMITTED = {"ActiveConnections", "WaitingConnections", "AdmittedCount",
+        "RejectedCapacityCount"};
+    private static final String[] QUEUED = {"ActiveConnections", "WaitingConnections", "QueuedCount",
+        "AverageWaitMillis", "LongestWaitMillis", "RejectedTimeoutCount"};
+
+    private AdmissionStormBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args port, number of connections and optionally the number of connections closed (default 200)
+     * @throws Exception if the server can not be started
+     */
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int connections = Integer.parseInt(args[1]);
+        int closed = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Server server = new Server(port);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+        int baseThreads = Thread.activeCount();
+
+        List<NetworkHandler.NetworkConnection<NetworkMessage>> opened = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            opened.add(NetworkHandler.openConnection(InetAddress.getLoopbackAddress(), port));
+        }
+        long elapsed = System.nanoTime() - start;
+        Thread.sleep(3000);
+        System.out.printf("%d connections opened in %d ms, server threads +%d%n", connections, elapsed / 1_000_000,
+            Thread.activeCount() - baseThreads);
+        print(ADMITTED);
+
+        for (int i = 0; i < Math.min(closed, opened.size()); i++) {
+            opened.get(i).close();
+        }
+        Thread.sleep(2000);
+        System.out.printf("after closing %d connections:%n", closed);
+        print(QUEUED);
+        System.exit(0);
+    }
+
+    /**
+     * Prints attributes of the admission control MBean.
+     *
+     * @param attributes the names of the attributes
+     * @throws Exception if the MBean is not registered
+     */
+    private static void print(String[] attributes) throws Exception {
+        MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("ch.zhaw.pm2.multichat:type=AdmissionControl");
+        for (String attribute : attributes) {
+            System.out.println(attribute + " = " + beans.getAttribute(name, attribute));
+        }
+    }
+}
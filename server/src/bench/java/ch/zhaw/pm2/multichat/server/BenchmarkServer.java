@@ -0,0 +1,194 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.client.ClientConnectionHandler;
+import ch.zhaw.pm2.multichat.client.ClientConnectionObserver;
+import ch.zhaw.pm2.multichat.protocol.Configuration;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+import ch.zhaw.pm2.multichat.protocol.SocketProfile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class runs a server in the JVM of a benchmark and connects chat clients to it, either over TCP on the loopback
+ * interface or with the in-memory transport. The messages received by the clients are counted.
+ * <p>
+ * The rate limits are disabled, unless they are set with the system properties, as the benchmarks send faster than
+ * a user would.
+ */
+final class BenchmarkServer {
+    private static final String[] RATE_LIMITS = {"multichat.limit.connection.unicast",
+        "multichat.limit.connection.broadcast", "multichat.limit.user.unicast", "multichat.limit.user.broadcast"};
+
+    private final boolean inMemory;
+    private final SocketProfile profile;
+    private final int port;
+    private final AtomicLong received = new AtomicLong();
+    private final Consumer<String> messageListener;
+
+    /**
+     * Starts a server.
+     *
+     * @param transport       {@code memory} for the in-memory transport, {@code tcp} for TCP on the loopback interface
+     * @param profile         the socket profile of server and clients (TCP only)
+     * @param messageListener called with the text of each message received by a client, on its receiving thread
+     * @throws IOException if the server can not be started
+     */
+    BenchmarkServer(String transport, SocketProfile profile, Consumer<String> messageListener) throws IOException {
+        this.inMemory = switch (transport.toLowerCase(Locale.ROOT)) {
+            case "memory" -> true;
+            case "tcp" -> false;
+            default -> throw new IllegalArgumentException("Unknown transport: " + transport);
+        };
+        this.profile = profile;
+        this.messageListener = messageListener;
+        port = start(inMemory
+            ? NetworkHandler.createInMemoryServer(0)
+            : NetworkHandler.<NetworkMessage>createServers(0, null, 1, 1000, profile).get(0));
+    }
+
+    /**
+     * Starts a server on the given network server, with the rate limits disabled unless they are set.
+     *
+     * @param networkServer the network server accepting the connections
+     * @return the port of the server
+     * @throws IOException if the server can not be started
+     */
+    static int start(NetworkHandler.NetworkServer<NetworkMessage> networkServer) throws IOException {
+        for (String property : RATE_LIMITS) {
+            if (System.getProperty(property) == null) {
+                System.setProperty(property, "0");
+            }
+        }
+        Server server = new Server(networkServer);
+        Thread thread = new Thread(server::start, "benchmark-server-" + networkServer.getHostPort());
+        thread.setDaemon(true);
+        thread.start();
+        return networkServer.getHostPort();
+    }
+
+    /**
+     * Connects clients with the names {@code u0} to {@code u<count - 1>} and waits until each one is connected.
+     *
+     * @param count the number of clients
+     * @return the connected clients
+     * @throws Exception if a client can not connect
+     */
+    List<ClientConnectionHandler> connect(int count) throws Exception {
+        List<ClientConnectionHandler> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            NetworkHandler.NetworkConnection<NetworkMessage> connection = inMemory
+                ? NetworkHandler.openInMemoryConnection(port)
+                : NetworkHandler.openConnection(InetAddress.getLoopbackAddress(), port, null, profile);
+            ClientConnectionHandler client = new ClientConnectionHandler(connection, "u" + i);
+            CountingObserver observer = new CountingObserver();
+            client.addObserver(observer);
+            Thread thread = new Thread(client, "client-u" + i);
+            thread.setDaemon(true);
+            thread.start();
+            client.connect();
+            observer.connected.await();
+            clients.add(client);
+        }
+        return clients;
+    }
+
+    /**
+     * Returns the counter of the messages received by all clients.
+     *
+     * @return the counter, may be reset by the benchmark
+     */
+    AtomicLong received() {
+        return received;
+    }
+
+    /**
+     * Discards the standard output, to which server and clients log each message, so the console does not limit the
+     * throughput.
+     *
+     * @return the original standard output, for the results
+     */
+    static PrintStream silenceStandardOutput() {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return console;
+    }
+
+    /**
+     * Returns the CPU time of the whole process.
+     *
+     * @return the CPU time in nanoseconds
+     */
+    static long processCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+            .getProcessCpuTime();
+    }
+
+    /**
+     * Counts the received messages and reports when the client is connected.
+     */
+    private final class CountingObserver implements ClientConnectionObserver {
+        private final CountDownLatch connected = new CountDownLatch(1);
+
+        @Override
+        public void stateChanged(Configuration.ProtocolState newProtocolState) {
+            if (newProtocolState == Configuration.ProtocolState.CONNECTED) {
+                connected.countDown();
+            }
+        }
+
+        @Override
+        public void addMessage(String sender, String receiver, String message) {
+            received.incrementAndGet();
+            if (messageListener != null) {
+                messageListener.accept(message);
+            }
+        }
+
+        @Override
+        public void setUserName(String userName) {
+        }
+
+        @Override
+        public void setServerPort(int port) {
+        }
+
+        @Override
+        public void setServerAddress(String address) {
+        }
+
+        @Override
+        public void addInfo(String info) {
+        }
+
+        @Override
+        public void addError(String error) {
+        }
+
+        @Override
+        public void writeMessage(String sender, String receiver, String message) {
+        }
+
+        @Override
+        public void writeInfo(String message) {
+        }
+
+        @Override
+        public void writeError(String message) {
+        }
+
+        @Override
+        public void clearMessageArea() {
+        }
+    }
+}
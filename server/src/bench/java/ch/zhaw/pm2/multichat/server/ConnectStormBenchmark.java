@@ -0,0 +1,84 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.Configuration;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This benchmark measures how fast the server sets up new connections: the given number of clients connect from a
+ * pool of threads, send CONNECT, wait for the CONFIRM and close the connection.
+ * <p>
+ * The server runs in this JVM on the loopback interface. With a resolver delay, the host names of the clients are
+ * looked up by a stand-in resolver sleeping that long, to simulate a slow DNS server (see {@link HostNameCache}). The
+ * number of acceptors is set with {@code -Dmultichat.acceptors}.
+ * <p>
+ * Usage: {@code ConnectStormBenchmark <port> <connections> <threads> [<resolver delay in ms>]}, e.g.
+ * {@code 7500 1000 50 100}, or {@code 7500 2000 64} to compare the number of acceptors.
+ */
+public final class ConnectStormBenchmark {
+    private ConnectStormBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args port, number of connections, number of client threads and optionally the resolver delay
+     * @throws Exception if the server can not be started
+     */
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int connections = Integer.parseInt(args[1]);
+        int threads = Integer.parseInt(args[2]);
+        long resolverDelay = args.length > 3 ? Long.parseLong(args[3]) : 0;
+
+        HostNameCache hostNames = resolverDelay == 0 ? new HostNameCache() : new HostNameCache(address -> {
+            try {
+                Thread.sleep(resolverDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return address.getHostAddress();
+        });
+        Server server = new Server(port, null, hostNames);
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        PrintStream console = BenchmarkServer.silenceStandardOutput();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(connections);
+        AtomicInteger failures = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            String userName = "u" + i;
+            pool.execute(() -> {
+                try {
+                    NetworkHandler.NetworkConnection<NetworkMessage> connection =
+                        NetworkHandler.openConnection(InetAddress.getLoopbackAddress(), port);
+                    connection.send(new NetworkMessage(userName, "", Configuration.DataType.CONNECT, null));
+                    while (connection.receive().getType() != Configuration.DataType.CONFIRM) {
+                        // skip other frames
+                    }
+                    connection.close();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    System.err.println(e);
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        console.printf("%d connections in %.2f s = %.0f conn/s, %d failed%n", connections, seconds,
+            connections / seconds, failures.get());
+        pool.shutdown();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,107 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.Capabilities;
+import ch.zhaw.pm2.multichat.protocol.Configuration;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This benchmark measures the CPU time a server spends per broadcast frame, comparing messages with typing events.
+ * <p>
+ * The server runs in its own process, so only its CPU time is counted; it is read from {@code /proc/<pid>/stat} and
+ * thus only available on Linux. The receivers announce that they do not acknowledge messages, so only the broadcasts
+ * themselves are measured. Start the server with the rate limits disabled, e.g.
+ * {@code -Dmultichat.limit.connection.broadcast=0 -Dmultichat.limit.user.broadcast=0}.
+ * <p>
+ * Usage: {@code FanOutBenchmark <port> <receivers> <frames> <server pid>}, e.g. {@code 7500 200 2000 12345}.
+ */
+public final class FanOutBenchmark {
+    /**
+     * Clock ticks per second of the CPU times in {@code /proc}.
+     */
+    private static final int TICKS_PER_SECOND = 100;
+
+    private FanOutBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args port, number of receivers, frames per kind and the process id of the server
+     * @throws Exception if the clients can not connect
+     */
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int receivers = Integer.parseInt(args[1]);
+        int frames = Integer.parseInt(args[2]);
+        long pid = Long.parseLong(args[3]);
+        String capabilities = Capabilities.SUPPORTED.encode().replace("ack=true", "ack=false");
+
+        AtomicLong messages = new AtomicLong();
+        AtomicLong events = new AtomicLong();
+        for (int i = 0; i < receivers; i++) {
+            NetworkHandler.NetworkConnection<NetworkMessage> connection =
+                NetworkHandler.openConnection(InetAddress.getLoopbackAddress(), port);
+            connection.send(new NetworkMessage("r" + i, "", Configuration.DataType.CONNECT, null, null, 0,
+                capabilities));
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Configuration.DataType type = connection.receive().getType();
+                        if (type == Configuration.DataType.MESSAGE) {
+                            messages.incrementAndGet();
+                        } else if (type == Configuration.DataType.EVENT) {
+                            events.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    // connection closed
+                }
+            }, "receiver-r" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        NetworkHandler.NetworkConnection<NetworkMessage> sender =
+            NetworkHandler.openConnection(InetAddress.getLoopbackAddress(), port);
+        sender.send(new NetworkMessage("sender", "", Configuration.DataType.CONNECT, null, null, 0, capabilities));
+        Thread.sleep(3000);
+
+        Configuration.DataType[] kinds = {Configuration.DataType.MESSAGE, Configuration.DataType.EVENT,
+            Configuration.DataType.MESSAGE, Configuration.DataType.EVENT};
+        for (Configuration.DataType type : kinds) {
+            AtomicLong counter = type == Configuration.DataType.MESSAGE ? messages : events;
+            counter.set(0);
+            long cpu = cpuMillis(pid);
+            for (int i = 0; i < frames; i++) {
+                sender.send(new NetworkMessage("sender", "*", type, "typing"));
+            }
+            long last = -1;
+            while (counter.get() != last) {
+                last = counter.get();
+                Thread.sleep(1000);
+            }
+            cpu = cpuMillis(pid) - cpu;
+            System.out.printf("%-7s %d sent to %d receivers: server cpu %d ms (%.1f us per sent frame), "
+                + "%d frames delivered%n", type, frames, receivers, cpu, cpu * 1000.0 / frames, counter.get());
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Returns the CPU time (user and system) of a process.
+     *
+     * @param pid the process id
+     * @return the CPU time in milliseconds
+     * @throws IOException if the process does not exist
+     */
+    private static long cpuMillis(long pid) throws IOException {
+        String[] fields = Files.readString(Path.of("/proc/" + pid + "/stat")).split("\\) ")[1].split(" ");
+        return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * 1000 / TICKS_PER_SECOND;
+    }
+}
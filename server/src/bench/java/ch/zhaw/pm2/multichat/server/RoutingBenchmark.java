@@ -0,0 +1,66 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.client.ClientConnectionHandler;
+import ch.zhaw.pm2.multichat.protocol.SocketProfile;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This benchmark measures the CPU time the whole process (server and clients) spends per delivered broadcast.
+ * <p>
+ * One client sends broadcasts to all clients (including itself), in rounds of the given number of messages. Each round
+ * waits until every client got every message and reports the wall and CPU time per delivery. The first rounds warm up
+ * the JIT.
+ * <p>
+ * Usage: {@code RoutingBenchmark <memory|tcp> <receivers> <broadcasts per round> [<rounds>]}, e.g.
+ * {@code memory 1000 100}. The same run measures the overhead of tracing (with {@code -Dmultichat.trace.sampling=0.01},
+ * the latencies of the last receiver are printed at the end) and of the flight recorder events (with
+ * {@code -XX:StartFlightRecording:settings=server/multichat.jfc}).
+ */
+public final class RoutingBenchmark {
+    private RoutingBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args transport, number of receivers, broadcasts per round and optionally the number of rounds (default 6)
+     * @throws Exception if the clients can not connect
+     */
+    public static void main(String[] args) throws Exception {
+        String transport = args[0];
+        int receivers = Integer.parseInt(args[1]);
+        int broadcasts = Integer.parseInt(args[2]);
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+
+        BenchmarkServer server = new BenchmarkServer(transport, SocketProfile.configured(), null);
+        long start = System.nanoTime();
+        List<ClientConnectionHandler> clients = server.connect(receivers + 1);
+        System.out.printf("%s: %d clients connected in %d ms%n", transport, clients.size(),
+            (System.nanoTime() - start) / 1_000_000);
+
+        PrintStream console = BenchmarkServer.silenceStandardOutput();
+        ClientConnectionHandler sender = clients.get(0);
+        AtomicLong received = server.received();
+        for (int round = 0; round < rounds; round++) {
+            received.set(0);
+            long expected = (long) broadcasts * clients.size();
+            long cpu = BenchmarkServer.processCpuTime();
+            start = System.nanoTime();
+            for (int i = 0; i < broadcasts; i++) {
+                sender.message("*", "hello " + i);
+            }
+            while (received.get() < expected) {
+                Thread.sleep(5);
+            }
+            long wall = System.nanoTime() - start;
+            cpu = BenchmarkServer.processCpuTime() - cpu;
+            console.printf("%s round %d: %d deliveries in %d ms wall, %d ms cpu, %.2f us cpu/delivery%n",
+                transport, round, expected, wall / 1_000_000, cpu / 1_000_000, cpu / 1000.0 / expected);
+        }
+        console.print("latencies of the last receiver:\n" + clients.get(clients.size() - 1).getLatencies());
+        System.exit(0);
+    }
+}
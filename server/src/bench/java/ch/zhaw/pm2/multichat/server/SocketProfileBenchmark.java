@@ -0,0 +1,102 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.client.ClientConnectionHandler;
+import ch.zhaw.pm2.multichat.protocol.SocketProfile;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This benchmark compares the socket profiles by the latency from sending a broadcast to receiving it, at given
+ * rates, and the throughput when sending as fast as possible.
+ * <p>
+ * Server and clients run in this JVM on the loopback interface with the same profile. One client broadcasts to all
+ * clients (including itself) for 3 seconds per rate (20000 messages for the saturated run); each rate is run twice
+ * and the second run is reported. The send time travels in the message text.
+ * <p>
+ * Usage: {@code SocketProfileBenchmark <profile> <receivers> <rates>}, e.g. {@code bulk 20 100,1000,0}, where a rate
+ * of 0 sends as fast as possible.
+ */
+public final class SocketProfileBenchmark {
+    /**
+     * Maximum number of latencies recorded per run.
+     */
+    private static final int MAX_SAMPLES = 1 << 22;
+
+    private static final long[] latencies = new long[MAX_SAMPLES];
+    private static final AtomicInteger samples = new AtomicInteger();
+
+    private SocketProfileBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args profile, number of receivers and the comma separated rates in messages per second
+     * @throws Exception if the clients can not connect
+     */
+    public static void main(String[] args) throws Exception {
+        SocketProfile profile = SocketProfile.parse(args[0]);
+        int receivers = Integer.parseInt(args[1]);
+        int[] rates = Arrays.stream(args[2].split(",")).mapToInt(Integer::parseInt).toArray();
+
+        BenchmarkServer server = new BenchmarkServer("tcp", profile, SocketProfileBenchmark::record);
+        List<ClientConnectionHandler> clients = server.connect(receivers + 1);
+        PrintStream console = BenchmarkServer.silenceStandardOutput();
+        ClientConnectionHandler sender = clients.get(0);
+        AtomicLong received = server.received();
+        for (int rate : rates) {
+            for (int run = 0; run < 2; run++) {
+                received.set(0);
+                samples.set(0);
+                long count = rate == 0 ? 20_000 : rate * 3L;
+                long interval = rate == 0 ? 0 : 1_000_000_000L / rate;
+                long start = System.nanoTime();
+                for (long i = 0; i < count; i++) {
+                    long delay;
+                    while (interval > 0 && (delay = start + i * interval - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                    sender.message("*", System.nanoTime() + " x");
+                }
+                long expected = count * clients.size();
+                long deadline = System.nanoTime() + 30_000_000_000L;
+                while (received.get() < expected && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                long wall = System.nanoTime() - start;
+                if (run == 0) {
+                    continue;
+                }
+                int sampled = Math.min(samples.get(), MAX_SAMPLES);
+                long[] sorted = Arrays.copyOf(latencies, sampled);
+                Arrays.sort(sorted);
+                console.printf("%-12s offered %6s msg/s: %8.0f deliveries/s, latency p50 %7.2f ms p99 %7.2f ms "
+                        + "max %7.2f ms (%d/%d)%n", profile, rate == 0 ? "max" : rate, received.get() * 1e9 / wall,
+                    sorted[sampled / 2] / 1e6, sorted[(int) (sampled * 0.99)] / 1e6, sorted[sampled - 1] / 1e6,
+                    received.get(), expected);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Records the latency of a received message, whose text starts with the send time.
+     *
+     * @param message the text of the message
+     */
+    private static void record(String message) {
+        long now = System.nanoTime();
+        int separator = message.indexOf(' ');
+        if (separator > 0) {
+            int index = samples.getAndIncrement();
+            if (index < MAX_SAMPLES) {
+                latencies[index] = now - Long.parseLong(message.substring(0, separator));
+            }
+        }
+    }
+}
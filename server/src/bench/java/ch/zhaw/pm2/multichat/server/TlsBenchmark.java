@@ -0,0 +1,164 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.Configuration;
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+import ch.zhaw.pm2.multichat.protocol.SocketProfile;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * This benchmark measures the cost of TLS: the rate of new connections and the rate of message round trips on an
+ * established connection, unencrypted, with a full TLS handshake per connection and with resumed TLS sessions.
+ * <p>
+ * A plain and a TLS server run in this JVM on the loopback interface. Each connection sends CONNECT, waits for the
+ * CONFIRM, sends a message to itself, waits for it and is closed. For full handshakes, each connection uses a new
+ * client context (created before the timing starts), so there is no session to resume; for resumed sessions, all
+ * connections share one client context. A round trip sends a message to the own user and waits for it.
+ * <p>
+ * The key and trust store are created as described in the README; the password is taken from the environment
+ * variable {@value NetworkHandler#TLS_PASSWORD_VARIABLE} or read from the console.
+ * <p>
+ * Usage: {@code TlsBenchmark <key store> <trust store> [<connections> [<round trips>]]}, e.g.
+ * {@code server.p12 truststore.p12 500 50000}.
+ */
+public final class TlsBenchmark {
+    /**
+     * Number of the next user, as each connection needs a new name.
+     */
+    private static int nextUser;
+
+    private TlsBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args key store, trust store and optionally the number of connections and round trips per mode
+     * @throws Exception if a server can not be started or a client can not connect
+     */
+    public static void main(String[] args) throws Exception {
+        char[] password = NetworkHandler.tlsPassword("Password of the key and trust store: ");
+        if (password == null) {
+            throw new IllegalStateException("No password given, set " + NetworkHandler.TLS_PASSWORD_VARIABLE);
+        }
+        Path trustStore = Path.of(args[1]);
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int roundTrips = args.length > 3 ? Integer.parseInt(args[3]) : 50_000;
+
+        SocketProfile profile = SocketProfile.configured();
+        int plainPort = BenchmarkServer.start(
+            NetworkHandler.<NetworkMessage>createServers(0, null, 1, 50, profile).get(0));
+        int tlsPort = BenchmarkServer.start(NetworkHandler.<NetworkMessage>createServers(0,
+            NetworkHandler.createServerSslContext(Path.of(args[0]), password), 1, 50, profile).get(0));
+        PrintStream console = BenchmarkServer.silenceStandardOutput();
+
+        SSLContext shared = NetworkHandler.createClientSslContext(trustStore, password);
+        List<SSLContext> fresh = new ArrayList<>();
+        for (int i = 0; i < 2 * connections; i++) {
+            fresh.add(NetworkHandler.createClientSslContext(trustStore, password));
+        }
+
+        for (int run = 0; run < 2; run++) {
+            boolean report = run == 1;
+            int offset = run * connections;
+            connect(console, report, "plain", plainPort, connections, i -> null);
+            connect(console, report, "TLS full", tlsPort, connections, i -> fresh.get(offset + i));
+            connect(console, report, "TLS resumed", tlsPort, connections, i -> shared);
+            echo(console, report, "plain", plainPort, null, roundTrips);
+            echo(console, report, "TLS", tlsPort, shared, roundTrips);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Opens and closes the given number of connections one after another and prints the rate.
+     *
+     * @param console     the output for the results
+     * @param report      false for a warm-up run
+     * @param mode        the name of the mode
+     * @param port        the port of the server
+     * @param connections the number of connections
+     * @param contexts    returns the client context of each connection, null for unencrypted connections
+     * @throws IOException if a connection fails
+     */
+    private static void connect(PrintStream console, boolean report, String mode, int port, int connections,
+                                IntFunction<SSLContext> contexts) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            String userName = "u" + nextUser++;
+            NetworkHandler.NetworkConnection<NetworkMessage> connection =
+                NetworkHandler.openConnection(InetAddress.getLoopbackAddress(), port, contexts.apply(i));
+            connection.send(new NetworkMessage(userName, "", Configuration.DataType.CONNECT, null));
+            await(connection, Configuration.DataType.CONFIRM);
+            connection.send(new NetworkMessage(userName, userName, Configuration.DataType.MESSAGE, "x"));
+            await(connection, Configuration.DataType.MESSAGE);
+            connection.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (report) {
+            console.printf("connect %-12s %6d connections in %6.2f s = %7.0f conn/s%n", mode, connections, seconds,
+                connections / seconds);
+        }
+    }
+
+    /**
+     * Sends messages to the own user on one connection, each after the previous one has been received, and prints
+     * the rate.
+     *
+     * @param console    the output for the results
+     * @param report     false for a warm-up run
+     * @param mode       the name of the mode
+     * @param port       the port of the server
+     * @param sslContext the client context, null for an unencrypted connection
+     * @param roundTrips the number of messages
+     * @throws IOException if the connection fails
+     */
+    private static void echo(PrintStream console, boolean report, String mode, int port, SSLContext sslContext,
+                             int roundTrips) throws IOException {
+        String userName = "u" + nextUser++;
+        NetworkHandler.NetworkConnection<NetworkMessage> connection =
+            NetworkHandler.openConnection(InetAddress.getLoopbackAddress(), port, sslContext);
+        connection.send(new NetworkMessage(userName, "", Configuration.DataType.CONNECT, null));
+        await(connection, Configuration.DataType.CONFIRM);
+        long start = System.nanoTime();
+        for (int i = 0; i < roundTrips; i++) {
+            connection.send(new NetworkMessage(userName, userName, Configuration.DataType.MESSAGE, "x"));
+            await(connection, Configuration.DataType.MESSAGE);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        connection.close();
+        if (report) {
+            console.printf("echo    %-12s %6d round trips in %6.2f s = %7.0f round trips/s%n", mode, roundTrips,
+                seconds, roundTrips / seconds);
+        }
+    }
+
+    /**
+     * Receives frames until one of the given type arrives.
+     *
+     * @param connection the connection to receive from
+     * @param type       the expected type
+     * @throws IOException if the connection fails or an error is received
+     */
+    private static void await(NetworkHandler.NetworkConnection<NetworkMessage> connection,
+                              Configuration.DataType type) throws IOException {
+        try {
+            NetworkMessage message;
+            while ((message = connection.receive()).getType() != type) {
+                if (message.getType() == Configuration.DataType.ERROR) {
+                    throw new IOException("Error received: " + message.getPayload());
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * This class decides which accepted connections are served, so a storm of (re)connecting clients degrades the
+ * service instead of exhausting the threads and memory of the server.
+ * <p>
+ * At most {@code multichat.connections.max} connections are served at once, at most
+ * {@code multichat.connections.perAddress} per client address (served or waiting). A connection over the cap waits
+ * in the admission queue until a served connection ends. The queue holds the waiting connections per address and
+ * admits them round-robin over the addresses, so a single host reconnecting many clients does not delay all other
+ * hosts. Connections are rejected with an ERROR frame and closed, if the queue is full
+ * ({@code multichat.admission.queue}), the address has reached its cap or the connection has waited longer than
+ * {@code multichat.admission.wait.ms}. Rejections are written by a separate thread and a connection not taking the
+ * frame within {@value #REJECT_TIMEOUT_MILLIS} ms is closed, so the acceptors are never blocked by a slow client.
+ * <p>
+ * The caps can be changed and the counters and wait times are available at runtime through the
+ * {@link AdmissionControlMXBean}.
+ */
+public class AdmissionControl implements AdmissionControlMXBean {
+    /**
+     * Maximum time to write the ERROR frame to a rejected connection.
+     */
+    static final long REJECT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Maximum number of rejected connections waiting for their ERROR frame. Further rejected connections are closed
+     * without it.
+     */
+    private static final int MAX_PENDING_REJECTS = 1024;
+
+    private static final String BUSY = "Server busy, try again later";
+    private static final String TOO_MANY_FROM_ADDRESS = "Too many connections from your address, try again later";
+
+    /**
+     * A connection waiting to be served.
+     *
+     * @param connection the accepted connection
+     * @param address    the address of the client
+     * @param since      the time the connection has been accepted in nanoseconds (see {@link System#nanoTime()})
+     */
+    private record Waiting(NetworkHandler.NetworkConnection<NetworkMessage> connection, InetAddress address,
+                           long since) {
+    }
+
+    private volatile int maxConnections = Integer.getInteger("multichat.connections.max", 4096);
+    private volatile int maxConnectionsPerAddress = Integer.getInteger("multichat.connections.perAddress", 0);
+    private volatile int maxWaiting = Integer.getInteger("multichat.admission.queue", 1024);
+    private volatile long maxWaitMillis = Long.getLong("multichat.admission.wait.ms", 10_000);
+
+    private final Executor executor;
+    private final Consumer<NetworkHandler.NetworkConnection<NetworkMessage>> serve;
+    private final ScheduledExecutorService scheduler;
+    private final ThreadPoolExecutor rejector;
+
+    /**
+     * The waiting connections per address, in the order the addresses are served next. Guarded by {@code this}.
+     */
+    private final Map<InetAddress, ArrayDeque<Waiting>> waiting = new LinkedHashMap<>();
+
+    /**
+     * The number of served and waiting connections per address. Guarded by {@code this}.
+     */
+    private final Map<InetAddress, Integer> addressCounts = new HashMap<>();
+
+    private int activeCount;
+    private int waitingCount;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAccumulator longestWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder rejectedCapacity = new LongAdder();
+    private final LongAdder rejectedAddress = new LongAdder();
+    private final LongAdder rejectedTimeout = new LongAdder();
+    private long reportedRejects;
+
+    /**
+     * Creates a new admission control.
+     *
+     * @param executor  the executor running the admitted connections
+     * @param serve     serves an admitted connection until it is closed, called by the executor
+     * @param scheduler the scheduler closing rejected connections, which do not take the ERROR frame in time
+     */
+    AdmissionControl(Executor executor, Consumer<NetworkHandler.NetworkConnection<NetworkMessage>> serve,
+                     ScheduledExecutorService scheduler) {
+        this.executor = executor;
+        this.serve = serve;
+        this.scheduler = scheduler;
+        this.rejector = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING_REJECTS), runnable -> {
+                Thread thread = new Thread(runnable, "admission-reject");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Admits an accepted connection: it is served immediately if below the caps, queued or rejected.
+     * Never blocks, called by the acceptors.
+     *
+     * @param connection the accepted connection
+     */
+    void admit(NetworkHandler.NetworkConnection<NetworkMessage> connection) {
+        InetAddress address = connection.getRemoteAddress();
+        if (address == null) {
+            close(connection);
+            return;
+        }
+        String rejection = null;
+        synchronized (this) {
+            int perAddress = maxConnectionsPerAddress;
+            int addressCount = addressCounts.getOrDefault(address, 0);
+            if (perAddress > 0 && addressCount >= perAddress) {
+                rejectedAddress.increment();
+                rejection = TOO_MANY_FROM_ADDRESS;
+            } else if (waitingCount == 0 && hasCapacity()) {
+                addressCounts.put(address, addressCount + 1);
+                start(connection, address);
+            } else if (waitingCount < maxWaiting) {
+                addressCounts.put(address, addressCount + 1);
+                waiting.computeIfAbsent(address, key -> new ArrayDeque<>())
+                    .add(new Waiting(connection, address, System.nanoTime()));
+                waitingCount++;
+            } else {
+                rejectedCapacity.increment();
+                rejection = BUSY;
+            }
+        }
+        if (rejection != null) {
+            reject(connection, rejection);
+        }
+    }
+
+    /**
+     * Rejects the connections, which have waited longer than the maximum wait, admits waiting connections if the cap
+     * has been raised and reports the number of rejected connections since the last call. Called periodically by the
+     * server.
+     */
+    void expireWaiting() {
+        List<Waiting> expired = new ArrayList<>();
+        synchronized (this) {
+            admitWaiting(expired);
+            long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            for (Iterator<ArrayDeque<Waiting>> queues = waiting.values().iterator(); queues.hasNext(); ) {
+                ArrayDeque<Waiting> queue = queues.next();
+                while (!queue.isEmpty() && queue.peekFirst().since() - deadline < 0) {
+                    expired.add(queue.pollFirst());
+                }
+                if (queue.isEmpty()) {
+                    queues.remove();
+                }
+            }
+            waitingCount -= expired.size();
+            expired.forEach(entry -> decrementAddress(entry.address()));
+        }
+        rejectedTimeout.add(expired.size());
+        expired.forEach(entry -> reject(entry.connection(), BUSY));
+        long rejects = rejectedCapacity.sum() + rejectedAddress.sum() + rejectedTimeout.sum();
+        if (rejects != reportedRejects) {
+            System.err.printf("Admission rejected %d connections (%d served, %d waiting)%n",
+                rejects - reportedRejects, getActiveConnections(), getWaitingConnections());
+            reportedRejects = rejects;
+        }
+    }
+
+    /**
+     * Stops the thread writing the rejections.
+     */
+    void shutdown() {
+        rejector.shutdownNow();
+    }
+
+    /**
+     * Serves an admitted connection on the executor and admits the next waiting connection, when it ends.
+     * Called while holding the lock.
+     */
+    private void start(NetworkHandler.NetworkConnection<NetworkMessage> connection, InetAddress address) {
+        activeCount++;
+        admitted.increment();
+        executor.execute(() -> {
+            try {
+                serve.accept(connection);
+            } finally {
+                release(address);
+            }
+        });
+    }
+
+    /**
+     * Releases the slot of a connection, which has ended, and admits the next waiting connection, if any.
+     *
+     * @param address the address of the ended connection
+     */
+    private void release(InetAddress address) {
+        List<Waiting> expired = new ArrayList<>();
+        synchronized (this) {
+            activeCount--;
+            decrementAddress(address);
+            admitWaiting(expired);
+        }
+        rejectedTimeout.add(expired.size());
+        expired.forEach(entry -> reject(entry.connection(), BUSY));
+    }
+
+    /**
+     * Admits waiting connections while below the cap. Connections, which have waited longer than the maximum wait,
+     * are added to the expired ones instead. Called while holding the lock.
+     *
+     * @param expired the list to add the expired connections to, to be rejected outside the lock
+     */
+    private void admitWaiting(List<Waiting> expired) {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (waitingCount > 0 && hasCapacity()) {
+            Waiting next = pollNext();
+            waitingCount--;
+            if (next.since() - deadline < 0) {
+                decrementAddress(next.address());
+                expired.add(next);
+            } else {
+                long wait = System.nanoTime() - next.since();
+                queued.increment();
+                totalWaitNanos.add(wait);
+                longestWaitNanos.accumulate(wait);
+                start(next.connection(), next.address());
+            }
+        }
+    }
+
+    /**
+     * Takes the next waiting connection, from the address served longest ago. Called while holding the lock.
+     */
+    private Waiting pollNext() {
+        Iterator<Map.Entry<InetAddress, ArrayDeque<Waiting>>> addresses = waiting.entrySet().iterator();
+        Map.Entry<InetAddress, ArrayDeque<Waiting>> first = addresses.next();
+        Waiting next = first.getValue().pollFirst();
+        addresses.remove();
+        if (!first.getValue().isEmpty()) {
+            waiting.put(first.getKey(), first.getValue());
+        }
+        return next;
+    }
+
+    private void decrementAddress(InetAddress address) {
+        addressCounts.computeIfPresent(address, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private boolean hasCapacity() {
+        int max = maxConnections;
+        return max <= 0 || activeCount < max;
+    }
+
+    /**
+     * Writes an ERROR frame to a rejected connection and closes it on the rejecting thread. If too many rejections
+     * are pending, the connection is closed without the frame.
+     *
+     * @param connection the rejected connection
+     * @param reason     the reason shown to the client
+     */
+    private void reject(NetworkHandler.NetworkConnection<NetworkMessage> connection, String reason) {
+        try {
+            rejector.execute(() -> {
+                ScheduledFuture<?> timeout = scheduler.schedule(() -> close(connection), REJECT_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+                try {
+                    connection.send(ServerConnectionHandler.rejection(reason));
+                } catch (IOException e) {
+                    // the client is gone already
+                } finally {
+                    timeout.cancel(false);
+                    close(connection);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            close(connection);
+        }
+    }
+
+    private static void close(NetworkHandler.NetworkConnection<NetworkMessage> connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close rejected connection: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Override
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    @Override
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    @Override
+    public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    @Override
+    public int getMaxWaiting() {
+        return maxWaiting;
+    }
+
+    @Override
+    public void setMaxWaiting(int maxWaiting) {
+        this.maxWaiting = maxWaiting;
+    }
+
+    @Override
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    @Override
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public synchronized int getActiveConnections() {
+        return activeCount;
+    }
+
+    @Override
+    public synchronized int getWaitingConnections() {
+        return waitingCount;
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    @Override
+    public long getQueuedCount() {
+        return queued.sum();
+    }
+
+    @Override
+    public double getAverageWaitMillis() {
+        long count = queued.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public long getLongestWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(longestWaitNanos.get());
+    }
+
+    @Override
+    public long getRejectedCapacityCount() {
+        return rejectedCapacity.sum();
+    }
+
+    @Override
+    public long getRejectedAddressCount() {
+        return rejectedAddress.sum();
+    }
+
+    @Override
+    public long getRejectedTimeoutCount() {
+        return rejectedTimeout.sum();
+    }
+}
@@ -0,0 +1,127 @@
+package ch.zhaw.pm2.multichat.server;
+
+/**
+ * Management interface of the {@link AdmissionControl}, to inspect the admission of new connections and change the
+ * caps at runtime (e.g. using JConsole). A cap of 0 disables it.
+ */
+public interface AdmissionControlMXBean {
+    /**
+     * Returns the maximum number of connections served at once.
+     *
+     * @return the maximum number of connections, 0 for unlimited
+     */
+    int getMaxConnections();
+
+    /**
+     * Sets the maximum number of connections served at once. Connections already served are not closed.
+     *
+     * @param maxConnections the maximum number of connections, 0 for unlimited
+     */
+    void setMaxConnections(int maxConnections);
+
+    /**
+     * Returns the maximum number of connections per client address, served or waiting.
+     *
+     * @return the maximum number of connections per address, 0 for unlimited
+     */
+    int getMaxConnectionsPerAddress();
+
+    /**
+     * Sets the maximum number of connections per client address, served or waiting.
+     *
+     * @param maxConnectionsPerAddress the maximum number of connections per address, 0 for unlimited
+     */
+    void setMaxConnectionsPerAddress(int maxConnectionsPerAddress);
+
+    /**
+     * Returns the maximum number of connections waiting to be served.
+     *
+     * @return the maximum number of waiting connections, 0 to reject connections over the cap immediately
+     */
+    int getMaxWaiting();
+
+    /**
+     * Sets the maximum number of connections waiting to be served.
+     *
+     * @param maxWaiting the maximum number of waiting connections, 0 to reject connections over the cap immediately
+     */
+    void setMaxWaiting(int maxWaiting);
+
+    /**
+     * Returns the maximum time a connection waits to be served, before it is rejected.
+     *
+     * @return the maximum wait in milliseconds
+     */
+    long getMaxWaitMillis();
+
+    /**
+     * Sets the maximum time a connection waits to be served, before it is rejected.
+     *
+     * @param maxWaitMillis the maximum wait in milliseconds
+     */
+    void setMaxWaitMillis(long maxWaitMillis);
+
+    /**
+     * Returns the number of connections currently served.
+     *
+     * @return the number of served connections
+     */
+    int getActiveConnections();
+
+    /**
+     * Returns the number of connections currently waiting to be served.
+     *
+     * @return the number of waiting connections
+     */
+    int getWaitingConnections();
+
+    /**
+     * Returns the number of admitted connections, immediately or after waiting.
+     *
+     * @return the number of admitted connections
+     */
+    long getAdmittedCount();
+
+    /**
+     * Returns the number of connections admitted after waiting.
+     *
+     * @return the number of connections, which had to wait
+     */
+    long getQueuedCount();
+
+    /**
+     * Returns the average time the connections admitted after waiting have waited.
+     *
+     * @return the average wait in milliseconds
+     */
+    double getAverageWaitMillis();
+
+    /**
+     * Returns the longest time a connection admitted after waiting has waited.
+     *
+     * @return the maximum wait in milliseconds
+     */
+    long getLongestWaitMillis();
+
+    /**
+     * Returns the number of connections rejected, because the maximum number of connections was reached and the wait
+     * queue was full.
+     *
+     * @return the number of rejected connections
+     */
+    long getRejectedCapacityCount();
+
+    /**
+     * Returns the number of connections rejected, because the maximum number of connections of the address was reached.
+     *
+     * @return the number of rejected connections
+     */
+    long getRejectedAddressCount();
+
+    /**
+     * Returns the number of connections rejected, because they have waited longer than the maximum wait.
+     *
+     * @return the number of rejected connections
+     */
+    long getRejectedTimeoutCount();
+}
@@ -0,0 +1,313 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.ChunkHeader;
+import ch.zhaw.pm2.multichat.protocol.MessageTrace;
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ch.zhaw.pm2.multichat.protocol.Configuration.DataType.ERROR;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.DataType.MESSAGE;
+
+/**
+ * This class represents the session of a registered user on the server.
+ * <p>
+ * Each message delivered to the user gets a sequence number of the session and is kept in a bounded replay buffer.
+ * If the connection is lost, the session is detached from its connection handler but keeps buffering messages.
+ * Within the grace period, the client can resume the session on a new connection by presenting the resume token and
+ * the last sequence number it received. Only the missed messages are then sent again.
+ * <p>
+ * Clients with reliable delivery acknowledge the received messages cumulatively, which removes them from the replay
+ * buffer. The buffer then holds exactly the window of unacknowledged messages. Unacknowledged messages are never
+ * dropped: if the buffer is full of them, the session is ended and the client has to register again. For clients
+ * without acknowledgements, the oldest message is dropped from the full buffer, whether it was sent or not; a client
+ * resuming after more messages than the buffer holds is told how many it missed.
+ * <p>
+ * The messages are queued to the connection in the order of their sequence numbers while holding the lock of the
+ * session, but written to the connection after releasing it, so a slow connection does not block other threads
+ * delivering to the session.
+ */
+class ClientSession {
+    /**
+     * Random generator for the resume tokens.
+     */
+    private static final SecureRandom tokenGenerator = new SecureRandom();
+
+    /**
+     * Number of random bytes of a resume token.
+     */
+    private static final int TOKEN_LENGTH = 16;
+
+    /**
+     * Counter for the ids of the sessions.
+     */
+    private static final AtomicLong idCounter = new AtomicLong();
+
+    /**
+     * Id of the session, unique within the server process. Unlike the username, it is never reused by another user.
+     */
+    private final long id = idCounter.incrementAndGet();
+
+    /**
+     * Token the client has to present to resume this session.
+     */
+    private final String resumeToken;
+
+    /**
+     * Maximum number of messages kept for replay.
+     */
+    private final int replayCapacity;
+
+    /**
+     * Recently delivered messages, ordered by sequence number.
+     */
+    private final Deque<NetworkMessage> replayBuffer = new ArrayDeque<>();
+
+    /**
+     * The sequence number of the last delivered message.
+     */
+    private long lastSequence = NetworkMessage.NO_SEQUENCE;
+
+    /**
+     * The connection handler the session is attached to, null while detached.
+     */
+    private ServerConnectionHandler handler;
+
+    /**
+     * Whether the client of the current or last connection acknowledges the received messages.
+     */
+    private boolean acknowledgements;
+
+    /**
+     * Set once the session has been ended, because its replay buffer overflowed.
+     */
+    private volatile boolean ended;
+
+    /**
+     * Point in time ({@link System#nanoTime()}) the session has been detached.
+     */
+    private long detachedSince;
+
+    /**
+     * Creates a new, detached session. Messages delivered before the session is attached are buffered.
+     *
+     * @param replayCapacity the maximum number of messages kept for replay
+     */
+    ClientSession(int replayCapacity) {
+        this.replayCapacity = replayCapacity;
+        this.detachedSince = System.nanoTime();
+        byte[] token = new byte[TOKEN_LENGTH];
+        tokenGenerator.nextBytes(token);
+        this.resumeToken = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    /**
+     * Returns the id of this session, which identifies the user in the message history.
+     *
+     * @return the id of the session
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the token the client has to present to resume this session.
+     *
+     * @return the resume token
+     */
+    String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Checks if the given token matches the resume token of this session.
+     *
+     * @param token the token presented by the client, may be null
+     * @return true if the token matches, false otherwise
+     */
+    boolean matches(String token) {
+        return !ended && token != null && MessageDigest.isEqual(
+            resumeToken.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Delivers a message to the user of this session. The message gets the next sequence number of the session and
+     * is kept for replay. If the session is attached, the message is sent immediately.
+     *
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message
+     * @param payload  the message payload
+     * @param trace    the trace of the message, null if not traced
+     */
+    void deliver(String sender, String receiver, String payload, MessageTrace trace) {
+        Runnable completion;
+        synchronized (this) {
+            completion = buffer(new NetworkMessage(sender, receiver, MESSAGE, payload, ++lastSequence, trace));
+        }
+        complete(completion);
+    }
+
+    /**
+     * Delivers a chunk of a large payload to the user of this session. Like messages, the chunk gets a sequence number
+     * and is kept for replay. Used for the cancel chunks of transfers interrupted by a lost connection, the chunks of
+     * a transfer in progress are sent outside the sequence, so they do not fill the replay buffer.
+     *
+     * @param sender   the sender of the chunk
+     * @param receiver the receiver of the chunk
+     * @param payload  the chunk of the payload, null for a cancel chunk
+     * @param chunk    the header of the chunk
+     */
+    void deliverChunk(String sender, String receiver, String payload, ChunkHeader chunk) {
+        Runnable completion;
+        synchronized (this) {
+            completion = buffer(new NetworkMessage(sender, receiver, payload, ++lastSequence, chunk));
+        }
+        complete(completion);
+    }
+
+    /**
+     * Keeps a sequenced message for replay and queues it to the connection, if the session is attached. Called while
+     * holding the lock.
+     *
+     * @param message the message to deliver
+     * @return the action to complete the delivery after releasing the lock, null if there is none
+     */
+    private Runnable buffer(NetworkMessage message) {
+        if (ended) {
+            return null;
+        }
+        if (replayBuffer.size() >= replayCapacity) {
+            if (acknowledgements) {
+                return end("Session ended, too many messages have not been received: " + replayBuffer.size());
+            }
+            replayBuffer.removeFirst();
+        }
+        replayBuffer.addLast(message);
+        return handler == null ? null : queue(handler, message) ? handler::flushOutbound : handler::closeSlowConsumer;
+    }
+
+    /**
+     * Queues a sequenced message to a connection. Called while holding the lock.
+     *
+     * @param target  the connection handler
+     * @param message the message to queue
+     * @return true if the message has been queued, false if the outbound backlog of the connection is exceeded
+     */
+    private boolean queue(ServerConnectionHandler target, NetworkMessage message) {
+        return target.enqueue(message);
+    }
+
+    /**
+     * Ends the session, as its replay buffer is full of messages, which must not be dropped. Called while holding
+     * the lock.
+     *
+     * @param reason the reason sent to the client
+     * @return the action ending the session of the attached connection, null if the session is detached
+     */
+    private Runnable end(String reason) {
+        ended = true;
+        replayBuffer.clear();
+        ServerConnectionHandler target = handler;
+        handler = null;
+        detachedSince = System.nanoTime();
+        return target == null ? null : () -> target.endSession(reason);
+    }
+
+    /**
+     * Completes a delivery after releasing the lock, i.e. writes the queued messages or closes the connection.
+     *
+     * @param completion the action returned while holding the lock, null if there is none
+     */
+    private static void complete(Runnable completion) {
+        if (completion != null) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Removes all messages up to the given sequence number from the replay buffer, as the client confirmed to have
+     * received them.
+     *
+     * @param sequence the sequence number of the last message received by the client
+     */
+    synchronized void acknowledge(long sequence) {
+        NetworkMessage oldest;
+        while ((oldest = replayBuffer.peekFirst()) != null && oldest.getSequence() <= sequence) {
+            replayBuffer.removeFirst();
+        }
+    }
+
+    /**
+     * Attaches the session to a connection handler and replays all messages with a sequence number higher than the
+     * last one received by the client (i.e. all buffered messages for a new session).
+     * The confirmation is queued before the replay, while no other message can be delivered in between.
+     *
+     * @param newHandler       the connection handler of the new connection
+     * @param lastReceived     the last sequence number received by the client
+     * @param acknowledgements true if the client acknowledges the received messages
+     * @param confirmation     the confirmation to send before the replay
+     * @return the handler the session was attached to before, null if it was detached
+     */
+    ServerConnectionHandler attach(ServerConnectionHandler newHandler, long lastReceived, boolean acknowledgements,
+                                   NetworkMessage confirmation) {
+        ServerConnectionHandler previous;
+        boolean queued = true;
+        synchronized (this) {
+            previous = handler;
+            handler = newHandler;
+            this.acknowledgements = acknowledgements;
+            newHandler.enqueue(confirmation);
+            NetworkMessage oldest = replayBuffer.peekFirst();
+            if (oldest != null && oldest.getSequence() > lastReceived + 1) {
+                newHandler.enqueue(new NetworkMessage("", newHandler.getUserName(), ERROR,
+                    "Missed messages could not be recovered: " + (oldest.getSequence() - lastReceived - 1)));
+            }
+            for (NetworkMessage message : replayBuffer) {
+                if (message.getSequence() > lastReceived) {
+                    queued = queued && queue(newHandler, message);
+                }
+            }
+        }
+        complete(queued ? newHandler::flushOutbound : newHandler::closeSlowConsumer);
+        return previous;
+    }
+
+    /**
+     * Detaches the session from the given connection handler, if it is still attached to it.
+     * Messages are buffered until the session is resumed or expired.
+     *
+     * @param oldHandler the connection handler that lost its connection
+     */
+    synchronized void detach(ServerConnectionHandler oldHandler) {
+        if (handler == oldHandler) {
+            handler = null;
+            detachedSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * Checks if the session is attached to the given connection handler.
+     *
+     * @param connectionHandler the connection handler
+     * @return true if the session is attached to the handler, false otherwise
+     */
+    synchronized boolean isAttachedTo(ServerConnectionHandler connectionHandler) {
+        return handler != null && handler == connectionHandler;
+    }
+
+    /**
+     * Checks if the session has been detached longer than the given grace period, or has been ended.
+     *
+     * @param gracePeriodNanos the grace period in nanoseconds
+     * @return true if the session is expired, false otherwise
+     */
+    synchronized boolean isExpired(long gracePeriodNanos) {
+        return ended || (handler == null && System.nanoTime() - detachedSince > gracePeriodNanos);
+    }
+}
@@ -0,0 +1,240 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class runs the requests of the connections on a fixed number of worker loops, one thread each.
+ * <p>
+ * Each connection is pinned to one loop, chosen by the hash of the username in the connect request (or the name
+ * assigned by the server to an anonymous connection), so a user reconnecting and resuming the session returns to the
+ * same loop. The receiving thread of the connection only reads and decodes the frames and passes them to the ingress
+ * queue of its loop, which handles all requests of the connection in order.
+ * <p>
+ * A loop delivering a message to a user pinned to another loop hands the delivery over through the queue from the
+ * sending to the receiving loop: every pair of loops has its own {@link SpscQueue}, so loops never contend on a
+ * shared queue or lock. Deliveries to users on the same loop run immediately, without any handoff. A loop with
+ * nothing to do parks and is woken by the next task queued for it.
+ * <p>
+ * A loop never waits for a single connection: the frames are only queued by the loop and written by a bounded pool of
+ * writer threads (see {@link OutboundQueue}), and a request delayed by the rate limit is handled immediately, while the
+ * receiving thread of the connection waits for the delay before it passes the next request. The ingress queue of a
+ * loop holds at most {@link #INGRESS_CAPACITY} tasks (system property {@code multichat.loops.ingress}); once it is
+ * full, the receiving threads wait until the loop has caught up, so the clients are slowed down by TCP flow control
+ * instead of filling the memory of the server.
+ */
+final class EventLoopGroup {
+    /**
+     * Maximum number of tasks in the ingress queue of a loop.
+     */
+    static final int INGRESS_CAPACITY = Math.max(1, Integer.getInteger("multichat.loops.ingress", 4096));
+
+    /**
+     * A worker loop running the tasks queued for it.
+     */
+    static final class Loop implements Runnable {
+        private final int index;
+        private final Thread thread;
+
+        /**
+         * Tasks queued by threads which are no loop, e.g. the receiving threads of the connections. Bounded, other
+         * than the inboxes: only threads which are no loop wait for it, so loops can not wait for each other.
+         */
+        private final BlockingQueue<Runnable> ingress = new LinkedBlockingQueue<>(INGRESS_CAPACITY);
+
+        /**
+         * Tasks queued by the other loops, one queue per sending loop.
+         */
+        private final List<SpscQueue<Runnable>> inboxes = new ArrayList<>();
+
+        /**
+         * Set while the loop is parked or about to park.
+         */
+        private final AtomicBoolean sleeping = new AtomicBoolean();
+
+        private volatile boolean running = true;
+
+        private Loop(int index, int loops) {
+            this.index = index;
+            for (int i = 0; i < loops; i++) {
+                inboxes.add(new SpscQueue<>());
+            }
+            this.thread = new LoopThread(this, "event-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Returns the position of the loop in its group.
+         *
+         * @return the index of the loop, 0 to the number of loops - 1
+         */
+        int index() {
+            return index;
+        }
+
+        /**
+         * Runs the queued tasks until the group is shut down. Tasks of the ingress and of each inbox are taken in turn,
+         * so no queue is starved.
+         */
+        @Override
+        public void run() {
+            while (running) {
+                boolean worked = runTask(ingress.poll());
+                for (SpscQueue<Runnable> inbox : inboxes) {
+                    worked |= runTask(inbox.poll());
+                }
+                if (!worked) {
+                    sleeping.set(true);
+                    if (hasTasks()) {
+                        sleeping.set(false);
+                    } else {
+                        LockSupport.park(this);
+                        sleeping.set(false);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Runs a task. Errors are reported, they do not stop the loop.
+         *
+         * @param task the task, may be null
+         * @return true if a task has been run
+         */
+        private static boolean runTask(Runnable task) {
+            if (task == null) {
+                return false;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error in event loop: " + e);
+            }
+            return true;
+        }
+
+        private boolean hasTasks() {
+            if (!ingress.isEmpty()) {
+                return true;
+            }
+            for (SpscQueue<Runnable> inbox : inboxes) {
+                if (!inbox.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Queues a task from a thread, which is no loop. Waits while the ingress queue is full.
+         *
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            try {
+                ingress.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("Interrupted while queueing a task for event loop " + index);
+                return;
+            }
+            wakeUp();
+        }
+
+        /**
+         * Queues a task from another loop. Must be called by the thread of the sending loop.
+         *
+         * @param from the sending loop
+         * @param task the task
+         */
+        private void send(Loop from, Runnable task) {
+            inboxes.get(from.index).offer(task);
+            wakeUp();
+        }
+
+        private void wakeUp() {
+            if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void shutdown() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * The thread of a loop, to find the loop of the current thread without a lookup.
+     */
+    private static final class LoopThread extends Thread {
+        private final Loop loop;
+
+        LoopThread(Loop loop, String name) {
+            super(loop, name);
+            this.loop = loop;
+        }
+    }
+
+    private final List<Loop> loops = new ArrayList<>();
+
+    /**
+     * Creates and starts the given number of loops.
+     *
+     * @param count the number of loops, at least 1
+     */
+    EventLoopGroup(int count) {
+        for (int i = 0; i < count; i++) {
+            loops.add(new Loop(i, count));
+        }
+        loops.forEach(loop -> loop.thread.start());
+    }
+
+    /**
+     * Returns the number of loops.
+     *
+     * @return the number of loops
+     */
+    int size() {
+        return loops.size();
+    }
+
+    /**
+     * Returns the loop a user is pinned to.
+     *
+     * @param userName the name of the user
+     * @return the loop of the user
+     */
+    Loop loopFor(String userName) {
+        return loops.get(Math.floorMod(userName.hashCode(), loops.size()));
+    }
+
+    /**
+     * Runs a task on the given loop: immediately if called on that loop, otherwise through the queue from the loop of
+     * the calling thread or, if the calling thread is no loop, through the ingress queue.
+     *
+     * @param target the loop to run the task on
+     * @param task   the task
+     */
+    static void dispatch(Loop target, Runnable task) {
+        Loop current = Thread.currentThread() instanceof LoopThread loopThread ? loopThread.loop : null;
+        if (current == target) {
+            task.run();
+        } else if (current != null) {
+            target.send(current, task);
+        } else {
+            target.execute(task);
+        }
+    }
+
+    /**
+     * Stops all loops. Queued tasks are discarded.
+     */
+    void shutdown() {
+        loops.forEach(Loop::shutdown);
+    }
+}
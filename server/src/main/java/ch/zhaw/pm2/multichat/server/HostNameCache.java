@@ -0,0 +1,164 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * This class resolves the host names of client addresses asynchronously and caches them.
+ * <p>
+ * A reverse DNS lookup can block for seconds with a slow resolver, so it must not be done in the thread accepting the
+ * connections. {@link #getHostName(InetAddress)} never blocks: it returns the cached host name or, while the lookup is
+ * still running, the numeric address. Concurrent requests for the same address share one lookup.
+ * Resolved names are cached for {@link #DEFAULT_TTL}, failed lookups (numeric result) for {@link #NEGATIVE_TTL}.
+ * Expired names are still returned while they are looked up again.
+ */
+class HostNameCache {
+    /**
+     * Time a resolved host name is cached.
+     */
+    static final Duration DEFAULT_TTL = Duration.ofMinutes(10);
+
+    /**
+     * Time an address without host name is cached.
+     */
+    static final Duration NEGATIVE_TTL = Duration.ofMinutes(1);
+
+    /**
+     * Maximum number of cached addresses.
+     */
+    private static final int MAX_ENTRIES = 10_000;
+
+    /**
+     * Number of threads doing lookups.
+     */
+    private static final int RESOLVER_THREADS = 4;
+
+    /**
+     * Maximum number of lookups waiting for a thread. Further lookups are skipped.
+     */
+    private static final int MAX_PENDING_LOOKUPS = 1024;
+
+    /**
+     * A cached host name.
+     *
+     * @param hostName  the host name, or the numeric address if there is none
+     * @param expiresAt the point in time ({@link System#nanoTime()}) the entry expires
+     */
+    private record Entry(String hostName, long expiresAt) {
+        private boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+
+    private final Map<InetAddress, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<InetAddress, CompletableFuture<String>> pendingLookups = new ConcurrentHashMap<>();
+    private final Function<InetAddress, String> resolver;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a cache resolving the host names with the system resolver.
+     */
+    HostNameCache() {
+        this(InetAddress::getHostName);
+    }
+
+    /**
+     * Creates a cache resolving the host names with the given resolver.
+     *
+     * @param resolver the resolver returning the host name of an address, or its numeric form if there is none
+     */
+    HostNameCache(Function<InetAddress, String> resolver) {
+        this.resolver = resolver;
+        this.executor = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING_LOOKUPS), runnable -> {
+                Thread thread = new Thread(runnable, "host-name-resolver");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Returns the host name of the given address without blocking. If the host name is not cached (or expired), it is
+     * looked up in the background.
+     *
+     * @param address the address to get the host name of, may be null
+     * @return the cached host name, the numeric address if not resolved yet, or "not connected" for null
+     */
+    String getHostName(InetAddress address) {
+        if (address == null) {
+            return "not connected";
+        }
+        Entry entry = entries.get(address);
+        if (entry == null || entry.isExpired(System.nanoTime())) {
+            resolve(address);
+        }
+        return entry != null ? entry.hostName() : address.getHostAddress();
+    }
+
+    /**
+     * Returns the host name of the given address, looking it up in the background if it is not cached.
+     *
+     * @param address the address to get the host name of
+     * @return a future completed with the host name, or the numeric address if there is none
+     */
+    CompletableFuture<String> resolve(InetAddress address) {
+        Entry entry = entries.get(address);
+        if (entry != null && !entry.isExpired(System.nanoTime())) {
+            return CompletableFuture.completedFuture(entry.hostName());
+        }
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        CompletableFuture<String> pending = pendingLookups.putIfAbsent(address, lookup);
+        if (pending != null) {
+            return pending;
+        }
+        try {
+            executor.execute(() -> {
+                String hostName = lookup(address);
+                store(address, hostName);
+                pendingLookups.remove(address, lookup);
+                lookup.complete(hostName);
+            });
+        } catch (RejectedExecutionException e) {
+            pendingLookups.remove(address, lookup);
+            lookup.complete(address.getHostAddress());
+        }
+        return lookup;
+    }
+
+    /**
+     * Removes all expired entries.
+     */
+    void evictExpired() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> entry.isExpired(now));
+    }
+
+    private String lookup(InetAddress address) {
+        try {
+            return resolver.apply(address);
+        } catch (RuntimeException e) {
+            System.err.println("Host name lookup failed for " + address.getHostAddress() + ": " + e.getMessage());
+            return address.getHostAddress();
+        }
+    }
+
+    private void store(InetAddress address, String hostName) {
+        Duration ttl = hostName.equals(address.getHostAddress()) ? NEGATIVE_TTL : DEFAULT_TTL;
+        if (entries.size() >= MAX_ENTRIES) {
+            evictExpired();
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.clear();
+            }
+        }
+        entries.put(address, new Entry(hostName, System.nanoTime() + ttl.toNanos()));
+    }
+}
@@ -0,0 +1,369 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * This class stores messages for users, which are known to the server but currently offline.
+ * <p>
+ * A user becomes known with the first successful registration under a chosen name (anonymous connections get no
+ * mailbox, as their names are reused). Each known user has a mailbox file in the mailbox directory. Stored messages
+ * are appended to the file and kept in memory, so delivering them does not need to read the file again. When the
+ * user registers the next time, all stored messages are delivered in one batch and the file is truncated afterwards,
+ * so a crash in between delivers them again rather than losing them.
+ * <p>
+ * To limit the resources of dormant accounts, each mailbox holds at most {@code capacity} messages (further messages
+ * are rejected) and messages older than the time to live are evicted. Evicting messages rewrites the file, so it only
+ * contains the remaining messages. Empty mailboxes of users, which have not been online within the time to live, are
+ * removed with their file; the users become unknown again.
+ * <p>
+ * Each line of a mailbox file contains one message: {@code <storedAt>\t<sender>\t<receiver>\t<payload>}, with the
+ * time in milliseconds since the epoch. Tabs, line breaks and backslashes within the fields are escaped.
+ */
+class MailboxStore {
+    /**
+     * File extension of the mailbox files.
+     */
+    private static final String FILE_EXTENSION = ".mbox";
+
+    /**
+     * A message stored in a mailbox.
+     *
+     * @param storedAt the time the message has been stored in milliseconds since the epoch
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message, as sent by the sender
+     * @param payload  the message payload
+     */
+    record StoredMessage(long storedAt, String sender, String receiver, String payload) {
+    }
+
+    /**
+     * This enum describes the result of storing a message.
+     */
+    enum Result {
+        /**
+         * The message has been stored in the mailbox.
+         */
+        STORED,
+        /**
+         * The user came online meanwhile, the message has been delivered directly.
+         */
+        DELIVERED,
+        /**
+         * The mailbox has reached its capacity, the message has not been stored.
+         */
+        FULL,
+        /**
+         * The user is not known to the server.
+         */
+        UNKNOWN
+    }
+
+    /**
+     * The mailbox of a single user. All operations synchronize on the mailbox.
+     */
+    private static class Mailbox {
+        private final Path file;
+        private final Deque<StoredMessage> messages = new ArrayDeque<>();
+
+        /**
+         * The last time the user has been online, in milliseconds since the epoch.
+         */
+        private long lastSeen;
+
+        /**
+         * Set once the mailbox has been removed from the store.
+         */
+        private boolean removed;
+
+        private Mailbox(Path file, long lastSeen) {
+            this.file = file;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    /**
+     * Directory containing the mailbox files.
+     */
+    private final Path directory;
+
+    /**
+     * Maximum number of messages per mailbox.
+     */
+    private final int capacity;
+
+    /**
+     * Time a message is kept in a mailbox, in milliseconds.
+     */
+    private final long timeToLiveMillis;
+
+    /**
+     * The mailboxes of all known users.
+     */
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a mailbox store and loads the mailboxes found in the given directory. Expired messages are evicted
+     * while loading.
+     *
+     * @param directory  the directory containing the mailbox files, created if it does not exist
+     * @param capacity   the maximum number of messages per mailbox
+     * @param timeToLive the time a message is kept in a mailbox
+     * @throws IOException if the directory or the mailbox files could not be read
+     */
+    MailboxStore(Path directory, int capacity, Duration timeToLive) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Illegal mailbox capacity: " + capacity);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.capacity = capacity;
+        this.timeToLiveMillis = timeToLive.toMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_EXTENSION)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                try {
+                    String userName = new String(Base64.getUrlDecoder().decode(
+                        fileName.substring(0, fileName.length() - FILE_EXTENSION.length())), StandardCharsets.UTF_8);
+                    mailboxes.put(userName, load(file));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Ignoring invalid mailbox file: " + file);
+                }
+            }
+        }
+        evictExpired(Set.of());
+        System.out.printf("Loaded %d mailboxes from %s%n", mailboxes.size(), directory);
+    }
+
+    /**
+     * Registers a user, so messages to the user are stored while the user is offline.
+     *
+     * @param userName the name of the user
+     */
+    void register(String userName) {
+        while (true) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(userName, name -> {
+                Mailbox created = new Mailbox(fileOf(name), System.currentTimeMillis());
+                try {
+                    if (Files.notExists(created.file)) {
+                        Files.createFile(created.file);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to create mailbox of " + name + ": " + e.getMessage());
+                }
+                return created;
+            });
+            synchronized (mailbox) {
+                if (!mailbox.removed) {
+                    mailbox.lastSeen = System.currentTimeMillis();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a message for an offline user.
+     * <p>
+     * The registry is checked again while holding the mailbox, as the user may have registered meanwhile. As
+     * {@link #drain(String)} is called after the registration, a message is either drained or delivered directly.
+     *
+     * @param name     the name of the user to store the message for
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message, as sent by the sender
+     * @param payload  the message payload
+     * @param registry the registry of the connected users
+     * @return the result of storing the message
+     * @throws IOException if the message could not be appended to the mailbox file
+     */
+    Result store(String name, String sender, String receiver, String payload,
+                 Map<String, ServerConnectionHandler> registry) throws IOException {
+        Mailbox mailbox = mailboxes.get(name);
+        if (mailbox == null) {
+            return Result.UNKNOWN;
+        }
+        synchronized (mailbox) {
+            if (mailbox.removed) {
+                return Result.UNKNOWN;
+            }
+            ServerConnectionHandler handler = registry.get(name);
+            if (handler != null) {
+                handler.deliver(sender, receiver, payload, null);
+                return Result.DELIVERED;
+            }
+            if (mailbox.messages.size() >= capacity) {
+                return Result.FULL;
+            }
+            StoredMessage message = new StoredMessage(System.currentTimeMillis(), sender, receiver, payload);
+            Files.writeString(mailbox.file, format(message), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            mailbox.messages.addLast(message);
+            return Result.STORED;
+        }
+    }
+
+    /**
+     * Delivers all messages stored for the given user, oldest first, and removes them from the mailbox once they have
+     * been delivered. If the delivery of a message fails, it and the following messages are kept.
+     *
+     * @param userName the name of the user
+     * @param delivery delivers a message to the session of the user
+     */
+    void drain(String userName, Consumer<StoredMessage> delivery) {
+        Mailbox mailbox = mailboxes.get(userName);
+        if (mailbox == null) {
+            return;
+        }
+        synchronized (mailbox) {
+            if (mailbox.messages.isEmpty()) {
+                return;
+            }
+            try {
+                while (!mailbox.messages.isEmpty()) {
+                    delivery.accept(mailbox.messages.peekFirst());
+                    mailbox.messages.removeFirst();
+                }
+            } finally {
+                try {
+                    if (mailbox.messages.isEmpty()) {
+                        Files.write(mailbox.file, new byte[0]);
+                    } else {
+                        rewrite(mailbox);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to truncate mailbox of " + userName + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all messages older than the time to live and rewrites the files of the affected mailboxes. Empty
+     * mailboxes of users, which have not been online within the time to live, are removed with their file.
+     *
+     * @param online the names of the users currently online, whose mailboxes are kept
+     */
+    void evictExpired(Set<String> online) {
+        long now = System.currentTimeMillis();
+        long expiry = now - timeToLiveMillis;
+        for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+            Mailbox mailbox = entry.getValue();
+            synchronized (mailbox) {
+                if (online.contains(entry.getKey())) {
+                    mailbox.lastSeen = now;
+                }
+                try {
+                    if (mailbox.messages.removeIf(message -> message.storedAt() < expiry)) {
+                        rewrite(mailbox);
+                    }
+                    if (mailbox.messages.isEmpty() && mailbox.lastSeen < expiry) {
+                        mailbox.removed = true;
+                        mailboxes.remove(entry.getKey(), mailbox);
+                        Files.deleteIfExists(mailbox.file);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to rewrite mailbox of " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private Path fileOf(String userName) {
+        return directory.resolve(Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(userName.getBytes(StandardCharsets.UTF_8)) + FILE_EXTENSION);
+    }
+
+    /**
+     * Loads a mailbox file. Malformed lines are skipped, messages beyond the capacity are dropped. The user is taken
+     * to have been online when the file has been modified last.
+     */
+    private Mailbox load(Path file) throws IOException {
+        Mailbox mailbox = new Mailbox(file, Files.getLastModifiedTime(file).toMillis());
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 4) {
+                    System.err.println("Ignoring malformed line in mailbox " + file);
+                    continue;
+                }
+                try {
+                    mailbox.messages.addLast(new StoredMessage(Long.parseLong(fields[0]),
+                        unescape(fields[1]), unescape(fields[2]), unescape(fields[3])));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring malformed line in mailbox " + file);
+                }
+                if (mailbox.messages.size() > capacity) {
+                    mailbox.messages.removeLast();
+                }
+            }
+        }
+        return mailbox;
+    }
+
+    /**
+     * Replaces the file of the mailbox with the messages in memory. The file is written to a temporary file first,
+     * so a crash never leaves a partially written mailbox.
+     */
+    private static void rewrite(Mailbox mailbox) throws IOException {
+        StringBuilder content = new StringBuilder();
+        mailbox.messages.forEach(message -> content.append(format(message)));
+        Path temporary = mailbox.file.resolveSibling(mailbox.file.getFileName() + ".tmp");
+        Files.writeString(temporary, content, StandardCharsets.UTF_8);
+        Files.move(temporary, mailbox.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String format(StoredMessage message) {
+        return message.storedAt() + "\t" + escape(message.sender()) + "\t" + escape(message.receiver()) + "\t"
+            + escape(message.payload()) + "\n";
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> escaped.append("\\\\");
+                case '\t' -> escaped.append("\\t");
+                case '\n' -> escaped.append("\\n");
+                case '\r' -> escaped.append("\\r");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                switch (value.charAt(++i)) {
+                    case 't' -> unescaped.append('\t');
+                    case 'n' -> unescaped.append('\n');
+                    case 'r' -> unescaped.append('\r');
+                    default -> unescaped.append(value.charAt(i));
+                }
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,393 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.HistoryPage;
+import ch.zhaw.pm2.multichat.protocol.HistoryQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_ALL;
+
+/**
+ * This class keeps the most recent routed messages in memory and searches them with an inverted index.
+ * <p>
+ * The connection handlers only queue the routed messages ({@link #record}), which never blocks: if the queue is
+ * full, because the indexer is behind, the message is not kept. An indexer thread takes the queued messages in
+ * batches, tokenizes them and adds them to the index under the write lock. Each message gets an id in the order of
+ * indexing. The index maps each term of the payloads and each sender to the ascending ids of its messages (postings).
+ * When the capacity is reached, the oldest message is evicted, which is the first id of each of its postings.
+ * <p>
+ * Queries ({@link #search}) run on a separate thread under the read lock, so they never block routing and only delay
+ * indexing. The postings of all terms and the sender are intersected, starting with the shortest one, from the newest
+ * message backwards. The routing times are kept ascending with the ids, so the time range of a query is resolved by
+ * binary search. Only messages visible to the searching session are returned: messages to all users, and messages
+ * sent or received by the session. Direct messages are bound to the sessions, not to the names, as a name can be
+ * registered by another user once its session has expired; messages stored in a mailbox for an offline user are only
+ * found by their sender. A query scans at most {@value #MAX_SCAN} candidates per page, so a page may hold fewer
+ * messages than requested even if there are further results.
+ */
+class MessageHistory {
+    /**
+     * Maximum number of messages waiting to be indexed.
+     */
+    static final int MAX_PENDING = 8192;
+
+    /**
+     * Maximum number of messages indexed under one acquisition of the write lock.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Maximum number of candidates checked per page.
+     */
+    static final int MAX_SCAN = 100_000;
+
+    /**
+     * A routed message waiting to be indexed.
+     *
+     * @param time     the time the message has been routed in milliseconds since the epoch
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message, as sent by the sender
+     * @param payload  the message payload
+     * @param sessions the ids of the sessions, which may find the message
+     */
+    private record Pending(long time, String sender, String receiver, String payload, long[] sessions) {
+    }
+
+    /**
+     * An indexed message.
+     *
+     * @param entry    the message as returned in the pages
+     * @param terms    the terms of the payload
+     * @param sessions the ids of the sessions, which may find the message
+     */
+    private record Indexed(HistoryPage.Entry entry, List<String> terms, long[] sessions) {
+    }
+
+    /**
+     * The ascending ids of the messages containing a term or sent by a sender. Ids are appended at the end and
+     * evicted at the start.
+     */
+    private static final class Postings {
+        private long[] ids = new long[4];
+        private int head;
+        private int tail;
+
+        void add(long id) {
+            if (tail == ids.length) {
+                int size = tail - head;
+                if (size * 2 <= ids.length) {
+                    System.arraycopy(ids, head, ids, 0, size);
+                } else {
+                    ids = Arrays.copyOfRange(ids, head, head + Math.max(4, size * 2));
+                }
+                head = 0;
+                tail = size;
+            }
+            ids[tail++] = id;
+        }
+
+        void removeFirst() {
+            head++;
+        }
+
+        boolean isEmpty() {
+            return head == tail;
+        }
+
+        int size() {
+            return tail - head;
+        }
+
+        long get(int index) {
+            return ids[head + index];
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, head, tail, id) >= 0;
+        }
+
+        /**
+         * Returns the index of the last id less than the given one, -1 if there is none.
+         */
+        int lastIndexBefore(long id) {
+            int position = Arrays.binarySearch(ids, head, tail, id);
+            return (position >= 0 ? position : -position - 1) - head - 1;
+        }
+    }
+
+    private final int capacity;
+
+    /**
+     * The indexed messages, the message with id {@code n} at index {@code n % capacity}.
+     */
+    private final Indexed[] messages;
+
+    /**
+     * The id of the oldest message kept.
+     */
+    private long firstId = 1;
+
+    /**
+     * The id of the next message indexed.
+     */
+    private long nextId = 1;
+
+    /**
+     * The routing time of the last message indexed.
+     */
+    private long lastTime;
+
+    private final Map<String, Postings> termIndex = new HashMap<>();
+    private final Map<String, Postings> senderIndex = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final BlockingQueue<Pending> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread indexer;
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "history-query");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new history and starts the indexer.
+     *
+     * @param capacity the maximum number of messages kept
+     */
+    MessageHistory(int capacity) {
+        this.capacity = capacity;
+        this.messages = new Indexed[capacity];
+        this.indexer = new Thread(this::index, "history-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Queues a routed message to be indexed. Never blocks: if the indexer is behind, the message is not kept.
+     *
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message, as sent by the sender
+     * @param payload  the message payload
+     * @param sessions the ids of the sessions of the sender and the receivers, which may find a direct message
+     */
+    void record(String sender, String receiver, String payload, long[] sessions) {
+        if (!pending.offer(new Pending(System.currentTimeMillis(), sender, receiver, payload, sessions))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Searches the messages visible to a session on the query thread and passes the page of results to the consumer.
+     *
+     * @param session   the id of the searching session
+     * @param query     the query
+     * @param maxLength the maximum length of the page in characters
+     * @param reply     the consumer of the page, called on the query thread
+     */
+    void search(long session, HistoryQuery query, int maxLength, Consumer<HistoryPage> reply) {
+        queryExecutor.execute(() -> reply.accept(search(session, query, maxLength)));
+    }
+
+    /**
+     * Searches the messages visible to a session.
+     *
+     * @param session   the id of the searching session
+     * @param query     the query
+     * @param maxLength the maximum length of the page in characters
+     * @return the page of results
+     */
+    HistoryPage search(long session, HistoryQuery query, int maxLength) {
+        lock.readLock().lock();
+        try {
+            List<Postings> postings = new ArrayList<>();
+            for (String term : query.terms()) {
+                postings.add(termIndex.get(term));
+            }
+            if (query.sender() != null) {
+                postings.add(senderIndex.get(query.sender()));
+            }
+            if (postings.contains(null)) {
+                return new HistoryPage(query.id(), List.of(), 0);
+            }
+            postings.sort((a, b) -> Integer.compare(a.size(), b.size()));
+            long upper = nextId - 1;
+            if (query.before() > 0) {
+                upper = Math.min(upper, query.before() - 1);
+            }
+            if (query.until() > 0) {
+                upper = Math.min(upper, lastIdUntil(query.until()));
+            }
+            Postings driver = postings.isEmpty() ? null : postings.get(0);
+            int index = driver == null ? 0 : driver.lastIndexBefore(upper + 1);
+            long id = driver == null ? upper : index >= 0 ? driver.get(index) : 0;
+
+            List<HistoryPage.Entry> results = new ArrayList<>();
+            int length = 0;
+            for (int scanned = 0; id >= firstId; scanned++) {
+                if (scanned == MAX_SCAN) {
+                    return new HistoryPage(query.id(), results, id + 1);
+                }
+                Indexed message = messages[(int) (id % capacity)];
+                HistoryPage.Entry entry = message.entry();
+                if (entry.time() < query.since()) {
+                    break;
+                }
+                if (matches(postings, id) && isVisible(message, session)) {
+                    length += entry.encodedLength();
+                    if (results.size() == query.limit() || (!results.isEmpty() && length > maxLength)) {
+                        return new HistoryPage(query.id(), results, results.get(results.size() - 1).id());
+                    }
+                    results.add(entry);
+                }
+                id = driver == null ? id - 1 : --index >= 0 ? driver.get(index) : 0;
+            }
+            return new HistoryPage(query.id(), results, 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops the indexer and the query thread.
+     */
+    void shutdown() {
+        indexer.interrupt();
+        queryExecutor.shutdownNow();
+    }
+
+    /**
+     * Takes the queued messages in batches and adds them to the index, until the thread is interrupted.
+     */
+    private void index() {
+        List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+        List<List<String>> terms = new ArrayList<>(BATCH_SIZE);
+        long reportedDrops = 0;
+        try {
+            while (true) {
+                batch.add(pending.take());
+                pending.drainTo(batch, BATCH_SIZE - 1);
+                for (Pending message : batch) {
+                    terms.add(HistoryQuery.tokenize(message.payload()));
+                }
+                lock.writeLock().lock();
+                try {
+                    for (int i = 0; i < batch.size(); i++) {
+                        add(batch.get(i), terms.get(i));
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                batch.clear();
+                terms.clear();
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    System.err.println("History indexer behind, messages not kept: " + (drops - reportedDrops));
+                    reportedDrops = drops;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a message to the index, evicting the oldest message if the capacity is reached. Called under the write lock.
+     *
+     * @param message the message
+     * @param terms   the terms of its payload
+     */
+    private void add(Pending message, List<String> terms) {
+        if (nextId - firstId == capacity) {
+            evict(messages[(int) (firstId % capacity)]);
+            firstId++;
+        }
+        long id = nextId++;
+        lastTime = Math.max(lastTime, message.time());
+        HistoryPage.Entry entry = new HistoryPage.Entry(id, lastTime, message.sender(), message.receiver(),
+            message.payload());
+        messages[(int) (id % capacity)] = new Indexed(entry, terms, message.sessions());
+        for (String term : terms) {
+            termIndex.computeIfAbsent(term, key -> new Postings()).add(id);
+        }
+        senderIndex.computeIfAbsent(String.valueOf(message.sender()), key -> new Postings()).add(id);
+    }
+
+    /**
+     * Removes the oldest message from its postings. Called under the write lock.
+     *
+     * @param oldest the oldest message
+     */
+    private void evict(Indexed oldest) {
+        for (String term : oldest.terms()) {
+            removeFirst(termIndex, term);
+        }
+        removeFirst(senderIndex, String.valueOf(oldest.entry().sender()));
+    }
+
+    private static void removeFirst(Map<String, Postings> index, String key) {
+        Postings postings = index.get(key);
+        postings.removeFirst();
+        if (postings.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * Returns the id of the last message routed at or before the given time. Called under the read lock.
+     *
+     * @param time the time in milliseconds since the epoch
+     * @return the id, {@code firstId - 1} if all messages have been routed later
+     */
+    private long lastIdUntil(long time) {
+        long low = firstId;
+        long high = nextId - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (messages[(int) (middle % capacity)].entry().time() <= time) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Checks if a message is contained in all postings (the first one is the driver and always contains it).
+     */
+    private static boolean matches(List<Postings> postings, long id) {
+        for (int i = 1; i < postings.size(); i++) {
+            if (!postings.get(i).contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a message is visible to a session: sent to all users, or sent or received by the session.
+     */
+    private static boolean isVisible(Indexed message, long session) {
+        if (USER_ALL.equals(message.entry().receiver())) {
+            return true;
+        }
+        for (long id : message.sessions()) {
+            if (id == session) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,342 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * This class queues the outgoing frames of a connection in three priority lanes.
+ * <p>
+ * Control frames (CONFIRM, DISCONNECT, ERROR, ...) are written before bulk frames (MESSAGE, CHUNK, HISTORY), so e.g.
+ * the confirmation of a connect request is not delayed by a broadcast burst. To prevent bulk traffic from starving, a
+ * bulk frame is written after at most {@value #CONTROL_BURST} consecutive control frames. Within a lane, frames keep
+ * their order.
+ * <p>
+ * Ephemeral frames (EVENT) have the lowest priority and are only written while no other frames are waiting. They are
+ * coalesced: only the latest event per sender and receiver is kept. Under backpressure, i.e. while more than half of
+ * the bulk lane is used or the number of waiting events reaches {@value #MAX_EPHEMERAL}, new events are dropped.
+ * <p>
+ * By default there is no writer thread: the thread queueing a frame writes all queued frames, unless another thread
+ * is already doing so. A thread sending to many connections (e.g. a broadcast) therefore does not wait for connections,
+ * which are currently written by another thread. Queues created with handoff (for connections handled by event loops)
+ * and {@link #drainLater()} (used by the roster) pass the writing to a bounded pool of {@link #WRITER_THREADS} shared
+ * writer threads instead, so the queueing thread never waits for a client; this costs a handoff to another thread per
+ * burst of frames. At most one thread writes the frames of a connection at a time, and a client not reading its frames
+ * holds it until the connection is closed.
+ * <p>
+ * The numbers of queued control and bulk frames are limited, so a client not reading its frames can not exhaust the
+ * memory of the server, even if it keeps sending requests answered with errors: once a limit is reached, the
+ * connection is closed as a slow consumer.
+ */
+class OutboundQueue {
+    /**
+     * This enum describes the priority classes of the frames.
+     */
+    enum Lane {
+        CONTROL, BULK, EPHEMERAL
+    }
+
+    /**
+     * Maximum number of control frames written in a row while bulk frames are waiting.
+     */
+    static final int CONTROL_BURST = 8;
+
+    /**
+     * Maximum number of waiting ephemeral frames.
+     */
+    static final int MAX_EPHEMERAL = 256;
+
+    /**
+     * Number of shared writer threads (system property {@code multichat.writers}, default the number of processors,
+     * at least 2). The threads are only started when frames are handed off.
+     */
+    static final int WRITER_THREADS = Math.max(1, Integer.getInteger("multichat.writers",
+        Math.max(2, Runtime.getRuntime().availableProcessors())));
+
+    /**
+     * Threads writing the frames handed off by the queueing threads.
+     */
+    private static final ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "connection-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Queue<NetworkMessage> control = new ConcurrentLinkedQueue<>();
+    private final Queue<NetworkMessage> bulk = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The latest ephemeral frame per sender and receiver.
+     */
+    private final Map<String, NetworkMessage> ephemeral = new ConcurrentHashMap<>();
+
+    /**
+     * Number of frames in the control lane, as the size of the queue is not constant time.
+     */
+    private final AtomicInteger controlBacklog = new AtomicInteger();
+
+    /**
+     * Number of frames in the bulk lane, as the size of the queue is not constant time.
+     */
+    private final AtomicInteger bulkBacklog = new AtomicInteger();
+
+    /**
+     * Set while a thread is writing the queued frames or a writer thread is scheduled to do so.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    /**
+     * Writes a frame to the connection.
+     */
+    private final Consumer<NetworkMessage> writer;
+
+    /**
+     * Whether the frames are written by the shared writer threads instead of the queueing thread.
+     */
+    private final boolean handoff;
+
+    /**
+     * Maximum number of frames in the control lane.
+     */
+    private final int maxControlBacklog;
+
+    /**
+     * Maximum number of frames in the bulk lane.
+     */
+    private final int maxBulkBacklog;
+
+    /**
+     * Number of control frames written in a row. Only accessed by the writing thread.
+     */
+    private int controlStreak;
+
+    /**
+     * Closes the connection, once all control frames are written. Null until {@link #closeAfterControl(Runnable)}.
+     */
+    private volatile Runnable closer;
+
+    /**
+     * Set once the connection has been closed by the closer.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param writer            writes a frame to the connection
+     * @param handoff           true to write the frames on the shared writer threads, false to write them on the
+     *                          queueing thread
+     * @param maxControlBacklog the maximum number of control frames waiting to be written
+     * @param maxBulkBacklog    the maximum number of bulk frames waiting to be written
+     */
+    OutboundQueue(Consumer<NetworkMessage> writer, boolean handoff, int maxControlBacklog, int maxBulkBacklog) {
+        this.writer = writer;
+        this.handoff = handoff;
+        this.maxControlBacklog = maxControlBacklog;
+        this.maxBulkBacklog = maxBulkBacklog;
+    }
+
+    /**
+     * Returns the lane of a frame.
+     *
+     * @param message the frame
+     * @return {@link Lane#BULK} for messages, chunks and history pages, {@link Lane#EPHEMERAL} for events,
+     * {@link Lane#CONTROL} for all other frames
+     */
+    static Lane laneOf(NetworkMessage message) {
+        return switch (message.getType()) {
+            case MESSAGE, CHUNK, HISTORY -> Lane.BULK;
+            case EVENT -> Lane.EPHEMERAL;
+            default -> Lane.CONTROL;
+        };
+    }
+
+    /**
+     * Queues a frame and writes the queued frames (see {@link #drain()}).
+     *
+     * @param message the frame to send
+     * @return true if the frame has been queued or an ephemeral frame has been dropped, false if its lane is full
+     */
+    boolean offer(NetworkMessage message) {
+        if (!enqueue(message)) {
+            return false;
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * Queues a frame without writing it. The caller has to call {@link #drain()} afterwards, e.g. once it has
+     * released a lock, which must not be held while writing to the connection.
+     *
+     * @param message the frame to send
+     * @return true if the frame has been queued or an ephemeral frame has been dropped, false if its lane is full
+     */
+    boolean enqueue(NetworkMessage message) {
+        Lane lane = laneOf(message);
+        if (lane == Lane.CONTROL) {
+            if (!reserve(controlBacklog, maxControlBacklog)) {
+                return false;
+            }
+            control.offer(message);
+        } else if (lane == Lane.EPHEMERAL) {
+            offerEphemeral(message);
+        } else {
+            if (!reserve(bulkBacklog, maxBulkBacklog)) {
+                return false;
+            }
+            bulk.offer(message);
+        }
+        return true;
+    }
+
+    /**
+     * Counts a frame to be queued in a lane, unless the lane is full.
+     *
+     * @param backlog the number of frames in the lane
+     * @param max     the maximum number of frames in the lane
+     * @return true if the frame can be queued, false if the lane is full
+     */
+    private static boolean reserve(AtomicInteger backlog, int max) {
+        if (backlog.incrementAndGet() > max) {
+            backlog.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the waiting ephemeral frame of the same sender and receiver, unless the connection is under
+     * backpressure.
+     *
+     * @param message the ephemeral frame
+     * @return true if the frame has been queued, false if it has been dropped
+     */
+    private boolean offerEphemeral(NetworkMessage message) {
+        String key = message.getSender() + "\n" + message.getReceiver();
+        if (closer != null || bulkBacklog.get() > maxBulkBacklog / 2
+            || (ephemeral.size() >= MAX_EPHEMERAL && !ephemeral.containsKey(key))) {
+            return false;
+        }
+        ephemeral.put(key, message);
+        return true;
+    }
+
+    /**
+     * Closes the connection with the given action as soon as all queued control frames are written, e.g. to send
+     * the confirmation of a disconnect request before closing. Queued bulk and ephemeral frames are discarded.
+     *
+     * @param closer the action closing the connection
+     */
+    void closeAfterControl(Runnable closer) {
+        this.closer = closer;
+        drain();
+    }
+
+    /**
+     * Writes the queued frames, unless another thread is already doing so: on this thread, or on a writer thread if
+     * the queue was created with handoff. Frames queued by other threads while writing are written as well, so no
+     * frame is left behind.
+     */
+    void drain() {
+        if (draining.compareAndSet(false, true)) {
+            if (handoff) {
+                writers.execute(this::write);
+            } else {
+                write();
+            }
+        }
+    }
+
+    /**
+     * Writes the queued frames on a writer thread, unless another thread is already doing so. Used by threads which
+     * must not wait for a single client, whether or not the queue was created with handoff.
+     */
+    void drainLater() {
+        if (draining.compareAndSet(false, true)) {
+            writers.execute(this::write);
+        }
+    }
+
+    /**
+     * Writes the queued frames. Called by {@link #drain()} or {@link #drainLater()}, which have set the draining flag.
+     */
+    private void write() {
+        do {
+            try {
+                NetworkMessage next;
+                while ((next = poll()) != null) {
+                    writer.accept(next);
+                }
+                Runnable close = closer;
+                if (close != null && !closed && control.isEmpty()) {
+                    closed = true;
+                    bulk.clear();
+                    bulkBacklog.set(0);
+                    ephemeral.clear();
+                    close.run();
+                    return;
+                }
+            } finally {
+                draining.set(false);
+            }
+        } while (hasPending() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Checks if there are frames to write or the connection is to be closed, after the writing thread has cleared
+     * the draining flag.
+     *
+     * @return true if the writing thread has to continue
+     */
+    private boolean hasPending() {
+        if (closer != null) {
+            return !closed;
+        }
+        return !control.isEmpty() || !bulk.isEmpty() || !ephemeral.isEmpty();
+    }
+
+    /**
+     * Takes the next frame to write, control frames first, but at least one bulk frame per
+     * {@value #CONTROL_BURST} control frames. Ephemeral frames are only taken if both other lanes are empty.
+     *
+     * @return the next frame, null if all lanes are empty (or only bulk and ephemeral frames are left after closing)
+     */
+    private NetworkMessage poll() {
+        boolean closing = closer != null;
+        if (closing || controlStreak < CONTROL_BURST || bulk.isEmpty()) {
+            NetworkMessage message = control.poll();
+            if (message != null) {
+                controlBacklog.decrementAndGet();
+                controlStreak++;
+                return message;
+            }
+        }
+        controlStreak = 0;
+        if (closing) {
+            return null;
+        }
+        NetworkMessage message = bulk.poll();
+        if (message != null) {
+            bulkBacklog.decrementAndGet();
+            return message;
+        }
+        Iterator<String> keys = ephemeral.keySet().iterator();
+        while (keys.hasNext()) {
+            message = ephemeral.remove(keys.next());
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+}
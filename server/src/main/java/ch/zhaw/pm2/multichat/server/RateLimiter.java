@@ -0,0 +1,307 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.ChatProtocolException;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class limits the message rate of the clients using token buckets.
+ * <p>
+ * Each connection and each user has a bucket for unicast and one for broadcast messages. A message is only routed,
+ * if both the bucket of the connection and the bucket of the user grant a token. The per-connection limit is meant to
+ * cut off bursts, the per-user limit to bound the sustained rate, also across reconnects.
+ * Messages over the limit are either rejected with an error ({@link Policy#REJECT}) or the receiving connection is
+ * delayed until a token is available ({@link Policy#QUEUE}).
+ * <p>
+ * The initial limits can be set with the system properties {@code multichat.limit.connection.unicast},
+ * {@code multichat.limit.connection.broadcast}, {@code multichat.limit.user.unicast},
+ * {@code multichat.limit.user.broadcast} (format {@code <rate>:<burst>}) and {@code multichat.limit.policy}.
+ * Malformed properties are ignored with a warning and the default is used instead. At runtime, they can be changed
+ * through the {@link RateLimiterMXBean}.
+ */
+public class RateLimiter implements RateLimiterMXBean {
+    /**
+     * This enum describes how messages over the limit are handled.
+     */
+    public enum Policy {
+        REJECT, QUEUE
+    }
+
+    /**
+     * A rate limit.
+     *
+     * @param ratePerSecond the sustained rate in messages per second, 0 for unlimited
+     * @param burst         the maximum number of messages sent at once
+     */
+    record RateLimit(double ratePerSecond, int burst) {
+        /**
+         * Limit not restricting any messages.
+         */
+        static final RateLimit UNLIMITED = new RateLimit(0, 1);
+
+        /**
+         * Parses a limit in the form {@code <rate>:<burst>}.
+         *
+         * @param text the limit to parse
+         * @return the parsed limit
+         * @throws IllegalArgumentException if the limit is not valid
+         */
+        static RateLimit parse(String text) {
+            String[] parts = text.strip().split(":");
+            try {
+                double rate = Double.parseDouble(parts[0]);
+                int burst = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+                if (rate < 0 || burst < 1 || parts.length > 2) {
+                    throw new IllegalArgumentException("Illegal rate limit: " + text);
+                }
+                return rate == 0 ? UNLIMITED : new RateLimit(rate, burst);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal rate limit: " + text);
+            }
+        }
+
+        boolean isUnlimited() {
+            return ratePerSecond == 0;
+        }
+
+        long intervalNanos() {
+            return (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        }
+
+        @Override
+        public String toString() {
+            return isUnlimited() ? "0" : ratePerSecond + ":" + burst;
+        }
+    }
+
+    /**
+     * The buckets of a connection or user.
+     */
+    static class Buckets {
+        private final TokenBucket unicast = new TokenBucket();
+        private final TokenBucket broadcast = new TokenBucket();
+
+        private TokenBucket get(boolean isBroadcast) {
+            return isBroadcast ? broadcast : unicast;
+        }
+
+        private boolean isFull(long now) {
+            return unicast.isFull(now) && broadcast.isFull(now);
+        }
+    }
+
+    private volatile RateLimit connectionUnicastLimit = limitProperty("multichat.limit.connection.unicast", "200:50");
+    private volatile RateLimit connectionBroadcastLimit = limitProperty("multichat.limit.connection.broadcast", "50:20");
+    private volatile RateLimit userUnicastLimit = limitProperty("multichat.limit.user.unicast", "100:1000");
+    private volatile RateLimit userBroadcastLimit = limitProperty("multichat.limit.user.broadcast", "20:200");
+    private volatile Policy policy = policyProperty("multichat.limit.policy", Policy.REJECT);
+    private volatile long maxQueueDelayMillis = 1000;
+
+    /**
+     * Buckets of the users, kept across connections. Full buckets are evicted by {@link #evictIdleUsers()}.
+     */
+    private final Map<String, Buckets> userBuckets = new ConcurrentHashMap<>();
+
+    private final LongAdder rejectedUnicast = new LongAdder();
+    private final LongAdder rejectedBroadcast = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+
+    /**
+     * Takes a token for a message of the given connection and user. Depending on the policy, the calling thread is
+     * delayed until a token is available. Both buckets are checked before a token is taken from either, so a rejected
+     * message does not count against the limit of the other bucket.
+     *
+     * @param connectionBuckets the buckets of the connection
+     * @param userName          the user sending the message
+     * @param broadcast         true for a broadcast, false for a unicast message
+     * @throws ChatProtocolException if the message is over the limit and has to be rejected
+     */
+    void acquire(Buckets connectionBuckets, String userName, boolean broadcast) throws ChatProtocolException {
+        acquire(connectionBuckets, userName, broadcast, isQueueing());
+    }
+
+    /**
+     * Takes a token for a message of the given connection and user, like {@link #acquire(Buckets, String, boolean)},
+     * but delays the calling thread independent of the policy, if requested. Used for the chunks of a transfer in
+     * progress, as rejecting a chunk aborts the whole transfer.
+     *
+     * @param connectionBuckets the buckets of the connection
+     * @param userName          the user sending the message
+     * @param broadcast         true for a broadcast, false for a unicast message
+     * @param queue             true to wait up to the maximum queue delay for a token, false to use the policy
+     * @throws ChatProtocolException if the message is over the limit and has to be rejected
+     */
+    void acquire(Buckets connectionBuckets, String userName, boolean broadcast, boolean queue)
+        throws ChatProtocolException {
+        long delay = reserve(connectionBuckets, userName, broadcast, queue);
+        if (delay > 0) {
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    /**
+     * Takes a token for a message of the given connection and user like
+     * {@link #acquire(Buckets, String, boolean, boolean)}, but returns the delay instead of waiting. Used by the event
+     * loops, which must not wait for a single connection: the delay is served by the receiving thread of the
+     * connection, before it passes the next request to the loop.
+     *
+     * @param connectionBuckets the buckets of the connection
+     * @param userName          the user sending the message
+     * @param broadcast         true for a broadcast, false for a unicast message
+     * @param queue             true to accept a delay up to the maximum queue delay, false to use the policy
+     * @return the time in nanoseconds the connection has to wait, 0 if the token is available now
+     * @throws ChatProtocolException if the message is over the limit and has to be rejected
+     */
+    long reserve(Buckets connectionBuckets, String userName, boolean broadcast, boolean queue)
+        throws ChatProtocolException {
+        RateLimit connectionLimit = broadcast ? connectionBroadcastLimit : connectionUnicastLimit;
+        RateLimit userLimit = broadcast ? userBroadcastLimit : userUnicastLimit;
+        long maxDelay = queue ? TimeUnit.MILLISECONDS.toNanos(maxQueueDelayMillis) : 0;
+        long now = System.nanoTime();
+        TokenBucket connectionBucket = connectionLimit.isUnlimited() ? null : connectionBuckets.get(broadcast);
+        TokenBucket userBucket = userLimit.isUnlimited() ? null
+            : userBuckets.computeIfAbsent(userName, name -> new Buckets()).get(broadcast);
+        long delay = TokenBucket.REJECTED;
+        if ((connectionBucket == null || connectionBucket.isAvailable(connectionLimit, now, maxDelay))
+            && (userBucket == null || userBucket.isAvailable(userLimit, now, maxDelay))) {
+            delay = connectionBucket == null ? 0 : connectionBucket.acquire(connectionLimit, now, maxDelay);
+            if (delay != TokenBucket.REJECTED && userBucket != null) {
+                // another message of the user may have taken the token since the check
+                long userDelay = userBucket.acquire(userLimit, now, maxDelay);
+                if (userDelay == TokenBucket.REJECTED && connectionBucket != null) {
+                    connectionBucket.release(connectionLimit);
+                }
+                delay = userDelay == TokenBucket.REJECTED ? TokenBucket.REJECTED : Math.max(delay, userDelay);
+            }
+        }
+        if (delay == TokenBucket.REJECTED) {
+            (broadcast ? rejectedBroadcast : rejectedUnicast).increment();
+            throw new ChatProtocolException("Rate limit exceeded for " + (broadcast ? "broadcast" : "unicast")
+                + " messages");
+        }
+        if (delay > 0) {
+            delayed.increment();
+        }
+        return delay;
+    }
+
+    /**
+     * Checks if messages over the limit are delayed rather than rejected.
+     *
+     * @return true for the policy {@link Policy#QUEUE}
+     */
+    boolean isQueueing() {
+        return policy == Policy.QUEUE;
+    }
+
+    /**
+     * Removes the buckets of users, which have not sent any messages recently.
+     */
+    void evictIdleUsers() {
+        long now = System.nanoTime();
+        userBuckets.values().removeIf(buckets -> buckets.isFull(now));
+    }
+
+    private static RateLimit limitProperty(String property, String defaultLimit) {
+        String limit = System.getProperty(property, defaultLimit);
+        try {
+            return RateLimit.parse(limit);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring malformed property " + property + "=" + limit + ", using " + defaultLimit);
+            return RateLimit.parse(defaultLimit);
+        }
+    }
+
+    private static Policy policyProperty(String property, Policy defaultPolicy) {
+        String policy = System.getProperty(property, defaultPolicy.name());
+        try {
+            return Policy.valueOf(policy.strip().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring malformed property " + property + "=" + policy + ", using " + defaultPolicy);
+            return defaultPolicy;
+        }
+    }
+
+    @Override
+    public String getConnectionUnicastLimit() {
+        return connectionUnicastLimit.toString();
+    }
+
+    @Override
+    public void setConnectionUnicastLimit(String limit) {
+        connectionUnicastLimit = RateLimit.parse(limit);
+    }
+
+    @Override
+    public String getConnectionBroadcastLimit() {
+        return connectionBroadcastLimit.toString();
+    }
+
+    @Override
+    public void setConnectionBroadcastLimit(String limit) {
+        connectionBroadcastLimit = RateLimit.parse(limit);
+    }
+
+    @Override
+    public String getUserUnicastLimit() {
+        return userUnicastLimit.toString();
+    }
+
+    @Override
+    public void setUserUnicastLimit(String limit) {
+        userUnicastLimit = RateLimit.parse(limit);
+    }
+
+    @Override
+    public String getUserBroadcastLimit() {
+        return userBroadcastLimit.toString();
+    }
+
+    @Override
+    public void setUserBroadcastLimit(String limit) {
+        userBroadcastLimit = RateLimit.parse(limit);
+    }
+
+    @Override
+    public String getPolicy() {
+        return policy.name();
+    }
+
+    @Override
+    public void setPolicy(String policy) {
+        this.policy = Policy.valueOf(policy.strip().toUpperCase(Locale.ROOT));
+    }
+
+    @Override
+    public long getMaxQueueDelayMillis() {
+        return maxQueueDelayMillis;
+    }
+
+    @Override
+    public void setMaxQueueDelayMillis(long maxQueueDelayMillis) {
+        if (maxQueueDelayMillis < 0) {
+            throw new IllegalArgumentException("Illegal maximum queue delay: " + maxQueueDelayMillis);
+        }
+        this.maxQueueDelayMillis = maxQueueDelayMillis;
+    }
+
+    @Override
+    public long getRejectedUnicastCount() {
+        return rejectedUnicast.sum();
+    }
+
+    @Override
+    public long getRejectedBroadcastCount() {
+        return rejectedBroadcast.sum();
+    }
+
+    @Override
+    public long getDelayedCount() {
+        return delayed.sum();
+    }
+}
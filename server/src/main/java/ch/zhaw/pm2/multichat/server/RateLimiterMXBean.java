@@ -0,0 +1,116 @@
+package ch.zhaw.pm2.multichat.server;
+
+/**
+ * Management interface of the {@link RateLimiter}, to inspect the counters and change the limits at runtime
+ * (e.g. using JConsole).
+ * <p>
+ * Limits are written as {@code <rate>:<burst>}, e.g. {@code 100:500} for 100 messages per second with bursts of up
+ * to 500 messages. A rate of 0 disables the limit.
+ */
+public interface RateLimiterMXBean {
+    /**
+     * Returns the limit of unicast messages per connection.
+     *
+     * @return the limit as {@code <rate>:<burst>}
+     */
+    String getConnectionUnicastLimit();
+
+    /**
+     * Sets the limit of unicast messages per connection.
+     *
+     * @param limit the limit as {@code <rate>:<burst>}
+     */
+    void setConnectionUnicastLimit(String limit);
+
+    /**
+     * Returns the limit of broadcast messages per connection.
+     *
+     * @return the limit as {@code <rate>:<burst>}
+     */
+    String getConnectionBroadcastLimit();
+
+    /**
+     * Sets the limit of broadcast messages per connection.
+     *
+     * @param limit the limit as {@code <rate>:<burst>}
+     */
+    void setConnectionBroadcastLimit(String limit);
+
+    /**
+     * Returns the limit of unicast messages per user, across all connections of the user.
+     *
+     * @return the limit as {@code <rate>:<burst>}
+     */
+    String getUserUnicastLimit();
+
+    /**
+     * Sets the limit of unicast messages per user, across all connections of the user.
+     *
+     * @param limit the limit as {@code <rate>:<burst>}
+     */
+    void setUserUnicastLimit(String limit);
+
+    /**
+     * Returns the limit of broadcast messages per user, across all connections of the user.
+     *
+     * @return the limit as {@code <rate>:<burst>}
+     */
+    String getUserBroadcastLimit();
+
+    /**
+     * Sets the limit of broadcast messages per user, across all connections of the user.
+     *
+     * @param limit the limit as {@code <rate>:<burst>}
+     */
+    void setUserBroadcastLimit(String limit);
+
+    /**
+     * Returns the policy for messages over the limit.
+     *
+     * @return {@code REJECT} or {@code QUEUE}
+     */
+    String getPolicy();
+
+    /**
+     * Sets the policy for messages over the limit.
+     *
+     * @param policy {@code REJECT} to reply with an error, {@code QUEUE} to delay the connection until a token is
+     *               available (up to the maximum queue delay)
+     */
+    void setPolicy(String policy);
+
+    /**
+     * Returns the maximum time a message is delayed with policy {@code QUEUE}, before it is rejected.
+     *
+     * @return the maximum delay in milliseconds
+     */
+    long getMaxQueueDelayMillis();
+
+    /**
+     * Sets the maximum time a message is delayed with policy {@code QUEUE}, before it is rejected.
+     *
+     * @param maxQueueDelayMillis the maximum delay in milliseconds
+     */
+    void setMaxQueueDelayMillis(long maxQueueDelayMillis);
+
+    /**
+     * Returns the number of rejected unicast messages.
+     *
+     * @return the number of rejected unicast messages
+     */
+    long getRejectedUnicastCount();
+
+    /**
+     * Returns the number of rejected broadcast messages.
+     *
+     * @return the number of rejected broadcast messages
+     */
+    long getRejectedBroadcastCount();
+
+    /**
+     * Returns the number of messages delayed with policy {@code QUEUE}.
+     *
+     * @return the number of delayed messages
+     */
+    long getDelayedCount();
+}
@@ -0,0 +1,250 @@
+package ch.zhaw.pm2.multichat.server;
+
+import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+import ch.zhaw.pm2.multichat.protocol.RosterUpdate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static ch.zhaw.pm2.multichat.protocol.Configuration.DataType.ROSTER;
+import static ch.zhaw.pm2.multichat.protocol.ConnectionHandler.USER_ALL;
+
+/**
+ * This class publishes the list of online users (the roster) to the clients, which negotiated the roster capability.
+ * <p>
+ * A user is online while the session is attached to a connection. The connection handlers report the users, whose
+ * state may have changed (connect, disconnect, lost connection), and the changes are published in batches: the first
+ * change schedules a flush after {@link #FLUSH_DELAY_MILLIS}, which compares the state of all reported users with the
+ * last published state. So a user losing the connection and resuming the session before the flush is not published at
+ * all, and thousands of joins during a reconnect storm result in a few delta frames of up to
+ * {@link #MAX_NAMES_PER_FRAME} names per subscriber, instead of one frame per join and subscriber. A frame never
+ * exceeds the maximum frame size negotiated with the subscriber.
+ * <p>
+ * New subscribers get a snapshot of the published state with the next flush, before any delta. All frames are queued
+ * by the flush thread, so each subscriber receives the updates in the order they were published. The flush thread
+ * never writes: the frames are written by the shared writer threads (see {@link OutboundQueue}), so a subscriber not
+ * reading does not delay the others.
+ */
+class Roster {
+    /**
+     * Time changes are collected before they are published.
+     */
+    static final long FLUSH_DELAY_MILLIS = 100;
+
+    /**
+     * Maximum number of names per frame.
+     */
+    static final int MAX_NAMES_PER_FRAME = 1000;
+
+    /**
+     * Size of the first line of the text form of a snapshot, the longer one (see {@link RosterUpdate#encode()}).
+     */
+    private static final int HEADER_SIZE = "snapshot".length();
+
+    /**
+     * Size of the line break and the prefix of a name in the text form.
+     */
+    private static final int ENTRY_OVERHEAD = 2;
+
+    private final Map<String, ServerConnectionHandler> registry;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * The users published as online.
+     */
+    private final Set<String> published = new LinkedHashSet<>();
+
+    /**
+     * The users, whose state may have changed since the last flush.
+     */
+    private final Set<String> changed = new LinkedHashSet<>();
+
+    /**
+     * The subscribers, which received a snapshot, by username.
+     */
+    private final Map<String, ServerConnectionHandler> subscribers = new HashMap<>();
+
+    /**
+     * The subscribers waiting for a snapshot, by username.
+     */
+    private final Map<String, ServerConnectionHandler> newSubscribers = new HashMap<>();
+
+    /**
+     * Set while a flush is scheduled.
+     */
+    private boolean flushScheduled;
+
+    /**
+     * Creates a new roster of the users in the given registry.
+     *
+     * @param registry the registry of the connections
+     */
+    Roster(Map<String, ServerConnectionHandler> registry) {
+        this.registry = registry;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "roster-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reports a user, whose online state may have changed.
+     *
+     * @param userName the name of the user
+     */
+    synchronized void changed(String userName) {
+        changed.add(userName);
+        scheduleFlush();
+    }
+
+    /**
+     * Subscribes a connection to the roster. It receives a snapshot with the next flush and the deltas afterwards.
+     * A previous connection of the same user is unsubscribed.
+     *
+     * @param handler the connection handler of the subscriber
+     */
+    synchronized void subscribe(ServerConnectionHandler handler) {
+        subscribers.remove(handler.getUserName());
+        newSubscribers.put(handler.getUserName(), handler);
+        scheduleFlush();
+    }
+
+    /**
+     * Unsubscribes a connection from the roster, if it is still subscribed.
+     *
+     * @param handler the connection handler of the subscriber
+     */
+    synchronized void unsubscribe(ServerConnectionHandler handler) {
+        subscribers.remove(handler.getUserName(), handler);
+        newSubscribers.remove(handler.getUserName(), handler);
+    }
+
+    /**
+     * Stops publishing.
+     */
+    void shutdown() {
+        flusher.shutdownNow();
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            flusher.schedule(this::flush, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publishes the changes since the last flush to the subscribers and the snapshot to new subscribers.
+     */
+    void flush() {
+        List<ServerConnectionHandler> receivers;
+        List<ServerConnectionHandler> snapshotReceivers;
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        List<String> online;
+        synchronized (this) {
+            flushScheduled = false;
+            for (String userName : changed) {
+                if (isOnline(userName)) {
+                    if (published.add(userName)) {
+                        joined.add(userName);
+                    }
+                } else if (published.remove(userName)) {
+                    left.add(userName);
+                }
+            }
+            changed.clear();
+            receivers = new ArrayList<>(subscribers.values());
+            snapshotReceivers = new ArrayList<>(newSubscribers.values());
+            online = snapshotReceivers.isEmpty() ? List.of() : new ArrayList<>(published);
+            subscribers.putAll(newSubscribers);
+            newSubscribers.clear();
+        }
+        if (!joined.isEmpty() || !left.isEmpty()) {
+            Map<Integer, List<NetworkMessage>> deltas = new HashMap<>();
+            for (ServerConnectionHandler receiver : receivers) {
+                queue(receiver, deltas.computeIfAbsent(maxFrameSize(receiver),
+                    maxFrameSize -> frames(false, joined, left, maxFrameSize)));
+            }
+        }
+        Map<Integer, List<NetworkMessage>> snapshots = new HashMap<>();
+        for (ServerConnectionHandler receiver : snapshotReceivers) {
+            queue(receiver, snapshots.computeIfAbsent(maxFrameSize(receiver),
+                maxFrameSize -> frames(true, online, List.of(), maxFrameSize)));
+        }
+    }
+
+    /**
+     * Queues frames for a subscriber and hands them off to a writer thread. Roster frames are control frames; if the
+     * control backlog of the subscriber is exceeded, its connection is closed as a slow consumer.
+     *
+     * @param receiver the connection handler of the subscriber
+     * @param frames   the frames to queue
+     */
+    private static void queue(ServerConnectionHandler receiver, List<NetworkMessage> frames) {
+        for (NetworkMessage frame : frames) {
+            if (!receiver.enqueue(frame)) {
+                receiver.closeSlowConsumer();
+                return;
+            }
+        }
+        receiver.flushOutboundLater();
+    }
+
+    private static int maxFrameSize(ServerConnectionHandler receiver) {
+        return receiver.getCapabilities().maxFrameSize();
+    }
+
+    private boolean isOnline(String userName) {
+        ServerConnectionHandler handler = registry.get(userName);
+        return handler != null && handler.isOnline();
+    }
+
+    /**
+     * Splits an update into frames of at most {@link #MAX_NAMES_PER_FRAME} names and at most the given payload size.
+     * A frame holds at least one name, even if the name alone exceeds the size. A snapshot is continued with deltas,
+     * so the first frame replaces the roster of the client.
+     *
+     * @param snapshot     true for a snapshot, false for a delta
+     * @param joined       the users, which are online
+     * @param left         the users, which went offline
+     * @param maxFrameSize the maximum payload size of a frame in characters
+     * @return the frames, empty for an empty delta
+     */
+    private static List<NetworkMessage> frames(boolean snapshot, List<String> joined, List<String> left,
+                                               int maxFrameSize) {
+        List<NetworkMessage> frames = new ArrayList<>();
+        List<String> frameJoined = new ArrayList<>();
+        List<String> frameLeft = new ArrayList<>();
+        int size = HEADER_SIZE;
+        for (int i = 0; i < joined.size() + left.size(); i++) {
+            boolean join = i < joined.size();
+            String name = join ? joined.get(i) : left.get(i - joined.size());
+            int names = frameJoined.size() + frameLeft.size();
+            if (names > 0 && (names == MAX_NAMES_PER_FRAME || size + ENTRY_OVERHEAD + name.length() > maxFrameSize)) {
+                frames.add(frame(snapshot && frames.isEmpty(), frameJoined, frameLeft));
+                frameJoined.clear();
+                frameLeft.clear();
+                size = HEADER_SIZE;
+            }
+            (join ? frameJoined : frameLeft).add(name);
+            size += ENTRY_OVERHEAD + name.length();
+        }
+        if (!frameJoined.isEmpty() || !frameLeft.isEmpty() || (snapshot && frames.isEmpty())) {
+            frames.add(frame(snapshot && frames.isEmpty(), frameJoined, frameLeft));
+        }
+        return frames;
+    }
+
+    private static NetworkMessage frame(boolean snapshot, List<String> joined, List<String> left) {
+        return new NetworkMessage("", USER_ALL, ROSTER, new RosterUpdate(snapshot, joined, left).encode());
+    }
+}
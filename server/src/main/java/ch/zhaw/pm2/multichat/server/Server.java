@@ -2,21 +2,90 @@ package ch.zhaw.pm2.multichat.server;
 
 import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
 import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+import ch.zhaw.pm2.multichat.protocol.SocketProfile;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
-import java.util.HashMap;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The server class listens for incoming connections from clients and manages connections.
  */
 public class Server {
     /**
-     * Network server for incoming connections.
+     * Time a session of a lost connection is kept to be resumed by the client.
      */
-    private final NetworkHandler.NetworkServer<NetworkMessage> networkServer;
+    private static final long SESSION_GRACE_PERIOD_SECONDS = 30;
+
+    /**
+     * Object name of the rate limiter MBean.
+     */
+    private static final String RATE_LIMITER_NAME = "ch.zhaw.pm2.multichat:type=RateLimiter";
+
+    /**
+     * Object name of the admission control MBean.
+     */
+    private static final String ADMISSION_CONTROL_NAME = "ch.zhaw.pm2.multichat:type=AdmissionControl";
+
+    /**
+     * System property enabling the mailboxes for offline users, containing the directory of the mailbox files.
+     */
+    static final String MAILBOX_DIRECTORY_PROPERTY = "multichat.mailbox.dir";
+
+    /**
+     * Maximum number of messages per mailbox (system property {@code multichat.mailbox.capacity}). At most the replay
+     * capacity of a session, as the messages are delivered to the new session at once.
+     */
+    private static final int MAILBOX_CAPACITY = Math.min(Integer.getInteger("multichat.mailbox.capacity", 256),
+        ServerConnectionHandler.REPLAY_CAPACITY);
+
+    /**
+     * Time a message is kept in a mailbox (system property {@code multichat.mailbox.ttl.hours}).
+     */
+    private static final long MAILBOX_TTL_HOURS = Long.getLong("multichat.mailbox.ttl.hours", 7 * 24);
+
+    /**
+     * Maximum number of messages kept in the searchable message history (system property
+     * {@code multichat.history.capacity}), 0 to disable the history.
+     */
+    private static final int HISTORY_CAPACITY = Integer.getInteger("multichat.history.capacity", 0);
+
+    /**
+     * Number of event loops handling the requests (system property {@code multichat.loops}), 0 to handle the requests
+     * of each connection on its receiving thread.
+     */
+    private static final int EVENT_LOOPS = Integer.getInteger("multichat.loops", 0);
+
+    /**
+     * Number of threads accepting connections (system property {@code multichat.acceptors}). Experimental: more than
+     * one acceptor has not shown a gain in connection rate so far, so the default is a single acceptor.
+     */
+    private static final int ACCEPTORS = Integer.getInteger("multichat.acceptors", 1);
+
+    /**
+     * Maximum number of connection requests waiting to be accepted per listener
+     * (system property {@code multichat.backlog}).
+     */
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("multichat.backlog", 50);
+
+    /**
+     * Network servers for incoming connections. Several listeners bound to the same port, if multiple acceptors are
+     * configured and the platform supports {@code SO_REUSEPORT}.
+     */
+    private final List<NetworkHandler.NetworkServer<NetworkMessage>> networkServers;
 
     /**
      * Executor service for handling server connection requests in parallel.
@@ -26,12 +95,54 @@ public class Server {
     /**
      * Registry for open connections.
      */
-    private final Map<String, ServerConnectionHandler> connections = new HashMap<>();
+    private final Map<String, ServerConnectionHandler> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Scheduler removing sessions of lost connections, which have not been resumed within the grace period.
+     */
+    private final ScheduledExecutorService sessionCleaner = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Rate limiter for the messages of all connections, registered as MBean to be managed at runtime.
+     */
+    private final RateLimiter rateLimiter = new RateLimiter();
+
+    /**
+     * Store for messages to offline users, null if not enabled with {@link #MAILBOX_DIRECTORY_PROPERTY}.
+     */
+    private final MailboxStore mailboxStore;
+
+    /**
+     * Cache of the host names of the clients, resolved in the background.
+     */
+    private final HostNameCache hostNames;
+
+    /**
+     * Roster publishing the online users to the clients.
+     */
+    private final Roster roster = new Roster(connections);
+
+    /**
+     * History of the routed messages, null if not enabled with {@link #HISTORY_CAPACITY}.
+     */
+    private final MessageHistory history = HISTORY_CAPACITY > 0 ? new MessageHistory(HISTORY_CAPACITY) : null;
+
+    /**
+     * Event loops handling the requests, null if not enabled with {@link #EVENT_LOOPS}.
+     */
+    private final EventLoopGroup loops = EVENT_LOOPS > 0 ? new EventLoopGroup(EVENT_LOOPS) : null;
+
+    /**
+     * Admission control deciding which accepted connections are served, registered as MBean to be managed at runtime.
+     */
+    private final AdmissionControl admissionControl;
 
     /**
      * Main method for starting the server.
      * It will open a network server on the given port and wait for incoming connections.
      * If no port is specified, the default port is used (@see NetworkHandler#DEFAULT_PORT)
+     * If a key store is specified, the connections are encrypted using TLS. The password of the key store is taken
+     * from the environment variable {@value NetworkHandler#TLS_PASSWORD_VARIABLE} or read from the console.
      *
      * @param args Command line arguments.
      */
@@ -39,15 +150,26 @@ public class Server {
         Server server = null;
         try {
             int port;
+            SSLContext sslContext = null;
             switch (args.length) {
                 case 0 -> port = NetworkHandler.DEFAULT_PORT;
                 case 1 -> port = Integer.parseInt(args[0]);
+                case 2 -> {
+                    port = Integer.parseInt(args[0]);
+                    char[] password = NetworkHandler.tlsPassword("Password of the key store: ");
+                    if (password == null) {
+                        System.out.println("Password of the key store missing, set the environment variable "
+                            + NetworkHandler.TLS_PASSWORD_VARIABLE);
+                        return;
+                    }
+                    sslContext = NetworkHandler.createServerSslContext(Path.of(args[1]), password);
+                }
                 default -> {
-                    System.out.println("Illegal number of arguments:  [<ServerPort>]");
+                    System.out.println("Illegal number of arguments:  [<ServerPort> [<KeyStore>]]");
                     return;
                 }
             }
-            server = new Server(port);
+            server = new Server(port, sslContext);
             server.start();
         } catch (IOException e) {
             System.err.println("Error while starting server. " + e.getMessage());
@@ -68,10 +190,101 @@ public class Server {
      * @throws IOException If the server could not be created.
      */
     public Server(int serverPort) throws IOException {
+        this(serverPort, null);
+    }
+
+    /**
+     * Create a new server instance.
+     *
+     * @param serverPort Port to listen on.
+     * @param sslContext TLS context to encrypt the connections, null for unencrypted connections.
+     * @throws IOException If the server could not be created.
+     */
+    public Server(int serverPort, SSLContext sslContext) throws IOException {
+        this(serverPort, sslContext, new HostNameCache());
+    }
+
+    /**
+     * Create a new server instance.
+     * The sockets of the connections are tuned with the profile selected by the system property
+     * {@value SocketProfile#PROPERTY} (see {@link SocketProfile}).
+     *
+     * @param serverPort Port to listen on.
+     * @param sslContext TLS context to encrypt the connections, null for unencrypted connections.
+     * @param hostNames  Cache resolving the host names of the clients.
+     * @throws IOException If the server could not be created.
+     */
+    Server(int serverPort, SSLContext sslContext, HostNameCache hostNames) throws IOException {
+        this(NetworkHandler.createServers(serverPort, sslContext, ACCEPTORS, ACCEPT_BACKLOG,
+            SocketProfile.configured()), hostNames);
+    }
+
+    /**
+     * Create a new server instance accepting the connections of the given network server, e.g. an in-memory server
+     * (see {@link NetworkHandler#createInMemoryServer(int)}) to run server and clients in the same JVM.
+     *
+     * @param networkServer Network server to accept the connections on.
+     * @throws IOException If the server could not be created.
+     */
+    public Server(NetworkHandler.NetworkServer<NetworkMessage> networkServer) throws IOException {
+        this(List.of(networkServer), new HostNameCache());
+    }
+
+    /**
+     * Create a new server instance.
+     *
+     * @param networkServers Network servers to accept the connections on, at least one.
+     * @param hostNames      Cache resolving the host names of the clients.
+     * @throws IOException If the server could not be created.
+     */
+    private Server(List<NetworkHandler.NetworkServer<NetworkMessage>> networkServers, HostNameCache hostNames)
+        throws IOException {
         System.out.println("Create server connection");
+        this.hostNames = hostNames;
+        this.networkServers = networkServers;
         executorService = Executors.newCachedThreadPool();
-        networkServer = NetworkHandler.createServer(serverPort);
-        System.out.printf("Listening on %s:%d%n", networkServer.getHostAddress(), networkServer.getHostPort());
+        admissionControl = new AdmissionControl(executorService, this::serve, sessionCleaner);
+        long gracePeriodNanos = TimeUnit.SECONDS.toNanos(SESSION_GRACE_PERIOD_SECONDS);
+        sessionCleaner.scheduleWithFixedDelay(
+            () -> connections.values().removeIf(handler -> handler.isSessionExpired(gracePeriodNanos)),
+            1, 1, TimeUnit.SECONDS);
+        sessionCleaner.scheduleWithFixedDelay(rateLimiter::evictIdleUsers, 10, 10, TimeUnit.SECONDS);
+        sessionCleaner.scheduleWithFixedDelay(admissionControl::expireWaiting, 1, 1, TimeUnit.SECONDS);
+        sessionCleaner.scheduleWithFixedDelay(hostNames::evictExpired, 1, 1, TimeUnit.MINUTES);
+        String mailboxDirectory = System.getProperty(MAILBOX_DIRECTORY_PROPERTY);
+        if (mailboxDirectory != null) {
+            mailboxStore = new MailboxStore(Path.of(mailboxDirectory), MAILBOX_CAPACITY,
+                Duration.ofHours(MAILBOX_TTL_HOURS));
+            sessionCleaner.scheduleWithFixedDelay(() -> mailboxStore.evictExpired(connections.keySet()),
+                1, 1, TimeUnit.MINUTES);
+        } else {
+            mailboxStore = null;
+        }
+        registerMBean(rateLimiter, RATE_LIMITER_NAME);
+        registerMBean(admissionControl, ADMISSION_CONTROL_NAME);
+        NetworkHandler.NetworkServer<NetworkMessage> networkServer = networkServers.get(0);
+        System.out.printf("Listening on %s:%d with %d acceptors on %d listeners%n", networkServer.getHostAddress(),
+            networkServer.getHostPort(), ACCEPTORS, networkServers.size());
+    }
+
+    /**
+     * Registers a management bean on the platform MBean server. An already registered bean (e.g. of a previous server
+     * instance in the same JVM) is replaced.
+     *
+     * @param bean the bean to register
+     * @param name the object name of the bean
+     */
+    private static void registerMBean(Object bean, String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(bean, objectName);
+        } catch (JMException e) {
+            System.err.println("Failed to register management bean " + name + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -79,37 +292,86 @@ public class Server {
      * Closes the network server, which will terminate the server and close all connections.
      */
     public void terminate() {
-        try {
-            System.out.println("Close server connection.");
-            networkServer.close();
-        } catch (IOException e) {
-            System.err.println("Failed to close server connection: " + e.getMessage());
+        sessionCleaner.shutdownNow();
+        admissionControl.shutdown();
+        roster.shutdown();
+        if (history != null) {
+            history.shutdown();
+        }
+        if (loops != null) {
+            loops.shutdown();
+        }
+        System.out.println("Close server connection.");
+        for (NetworkHandler.NetworkServer<NetworkMessage> networkServer : networkServers) {
+            try {
+                networkServer.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close server connection: " + e.getMessage());
+            }
         }
     }
 
     /**
      * Start the server.
      * <p>
-     * Opens a network server and waits for incoming connections.
-     * For each connection a new {@link ServerConnectionHandler} is created and started in a new thread.
-     * If the network server is closed, all connections are closed and the server is stopped.
+     * Waits for incoming connections with the configured number of acceptor threads, the calling thread being one of
+     * them. The acceptors are distributed over the listeners.
+     * If the network servers are closed, all connections are closed and the server is stopped.
+     * The method returns once the server has been stopped with {@link #terminate()}.
      */
-    private void start() {
+    public void start() {
         System.out.println("Server started.");
-        while (networkServer.isAvailable()) {
+        List<Thread> acceptors = new ArrayList<>();
+        for (int i = 1; i < ACCEPTORS; i++) {
+            NetworkHandler.NetworkServer<NetworkMessage> networkServer = networkServers.get(i % networkServers.size());
+            Thread acceptor = new Thread(() -> accept(networkServer), "acceptor-" + i);
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        accept(networkServers.get(0));
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println("Server Stopped.");
+    }
+
+    /**
+     * Accepts connections on the given network server until it is closed.
+     * Each accepted connection is passed to the {@link AdmissionControl}, which hands it to a new thread setting up a
+     * {@link ServerConnectionHandler} for it, queues or rejects it, so the accepting thread is immediately ready for
+     * the next connection.
+     *
+     * @param networkServer the network server to accept connections on
+     */
+    private void accept(NetworkHandler.NetworkServer<NetworkMessage> networkServer) {
+        while (networkServer.isAvailable() && !networkServer.isClosed()) {
             try {
                 NetworkHandler.NetworkConnection<NetworkMessage> connection = networkServer.waitForConnection();
-                ServerConnectionHandler connectionHandler = new ServerConnectionHandler(connection, connections);
-                executorService.execute(connectionHandler);
-                System.out.printf("Connected new Client %s with IP:Port <%s:%d>%n",
-                    connectionHandler.getUserName(),
-                    connection.getRemoteHost(),
-                    connection.getRemotePort()
-                );
+                admissionControl.admit(connection);
             } catch (IOException e) {
                 System.out.println("Warning: Connect failed " + e.getMessage());
             }
         }
-        System.out.println("Server Stopped.");
+    }
+
+    /**
+     * Sets up the connection handler for an accepted connection and receives its requests until it is closed.
+     * The host name of the client is logged as far as it is known without blocking (see {@link HostNameCache}).
+     *
+     * @param connection the accepted connection
+     */
+    private void serve(NetworkHandler.NetworkConnection<NetworkMessage> connection) {
+        ServerConnectionHandler connectionHandler = new ServerConnectionHandler(connection, connections,
+            rateLimiter, mailboxStore, roster, history, loops);
+        System.out.printf("Connected new Client %s with IP:Port <%s:%d>%n",
+            connectionHandler.getUserName(),
+            hostNames.getHostName(connection.getRemoteAddress()),
+            connection.getRemotePort()
+        );
+        connectionHandler.run();
     }
 }
@@ -1,17 +1,34 @@
 package ch.zhaw.pm2.multichat.server;
 
+import ch.zhaw.pm2.multichat.protocol.Capabilities;
 import ch.zhaw.pm2.multichat.protocol.ChatProtocolException;
+import ch.zhaw.pm2.multichat.protocol.ChunkHeader;
 import ch.zhaw.pm2.multichat.protocol.ConnectionHandler;
+import ch.zhaw.pm2.multichat.protocol.HistoryQuery;
+import ch.zhaw.pm2.multichat.protocol.MessageTrace;
 import ch.zhaw.pm2.multichat.protocol.NetworkHandler;
 import ch.zhaw.pm2.multichat.protocol.NetworkMessage;
+import ch.zhaw.pm2.multichat.protocol.RosterUpdate;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import static ch.zhaw.pm2.multichat.protocol.Configuration.DataType;
+import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState;
 import static ch.zhaw.pm2.multichat.protocol.Configuration.DataType.*;
 import static ch.zhaw.pm2.multichat.protocol.Configuration.ProtocolState.*;
+import static ch.zhaw.pm2.multichat.protocol.NetworkMessage.NO_SEQUENCE;
 
 /**
  * This class represents the server-side connection handler for the chat application.
@@ -26,14 +43,107 @@ public class ServerConnectionHandler extends ConnectionHandler implements Runnab
      */
     private static final AtomicInteger connectionCounter = new AtomicInteger(0);
 
+    /**
+     * Prefix of the names assigned to anonymous connections.
+     */
+    static final String ANONYMOUS_PREFIX = "Anonymous-";
+
     /**
      * Reference to the registry managing all connections
      */
     private final Map<String, ServerConnectionHandler> connectionRegistry;
 
+    /**
+     * Maximum number of delivered messages kept per session to be replayed after a reconnect.
+     */
+    static final int REPLAY_CAPACITY = 1024;
+
+    /**
+     * Maximum number of control frames (confirmations, errors, roster updates, ...) waiting to be written per
+     * connection.
+     */
+    static final int MAX_CONTROL_BACKLOG = 1024;
+
+    /**
+     * Maximum number of chunked transfers a client can send at the same time.
+     */
+    static final int MAX_OPEN_TRANSFERS = 4;
+
+    /**
+     * A chunked transfer of the client, which has not been completed yet.
+     *
+     * @param receiver  the receiver of the transfer
+     * @param count     the total number of chunks
+     * @param nextIndex the index of the next expected chunk
+     * @param receivers the connection handlers receiving the chunks, by user name, fixed with the first chunk; empty
+     *                  if the transfer has been aborted and its remaining chunks are discarded
+     */
+    private record OpenTransfer(String receiver, int count, int nextIndex,
+                                Map<String, ServerConnectionHandler> receivers) {
+    }
+
+    /**
+     * The chunked transfers of the client in progress, by transfer id. Only accessed by the receiving thread.
+     * The chunks are forwarded as they arrive, so the server never holds a whole transfer.
+     */
+    private final Map<Long, OpenTransfer> openTransfers = new HashMap<>();
+
+    /**
+     * The outgoing frames of this connection, with control frames taking priority over messages.
+     */
+    private final OutboundQueue outbound;
+
+    /**
+     * The session of the registered user, null until the connect request has been handled. Volatile, as it is read by
+     * the threads delivering messages to the user, and assigned before the connection is published in the registry.
+     */
+    private volatile ClientSession session;
+
+    /**
+     * The rate limiter of the server, null if the message rate is not limited.
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * The token buckets of this connection.
+     */
+    private final RateLimiter.Buckets rateBuckets = new RateLimiter.Buckets();
+
+    /**
+     * The store for messages to offline users, null if messages to offline users are rejected.
+     */
+    private final MailboxStore mailboxStore;
+
+    /**
+     * The roster publishing the online users, null if not published.
+     */
+    private final Roster roster;
+
+    /**
+     * The history of the routed messages, null if not kept.
+     */
+    private final MessageHistory history;
+
+    /**
+     * The event loops handling the requests, null if the requests are handled by the receiving thread.
+     */
+    private final EventLoopGroup loops;
+
+    /**
+     * The event loop this connection is pinned to, set with the first request. Null without event loops.
+     */
+    private volatile EventLoopGroup.Loop loop;
+
+    /**
+     * Time ({@link System#nanoTime()}) until the receiving thread waits before it passes the next request to the
+     * event loop, set by the loop if the rate limit delays a request. Only written by the loop of this connection.
+     */
+    private volatile long pausedUntil = System.nanoTime();
+
     /**
      * Constructor for ServerConnectionHandler.
      * Initializes the ConnectionHandler superclass and sets the registry and username.
+     * The message rate is not limited.
      *
      * @param connection the network connection to be managed
      * @param registry   the registry managing all connections
@@ -41,11 +151,52 @@ public class ServerConnectionHandler extends ConnectionHandler implements Runnab
      */
     public ServerConnectionHandler(NetworkHandler.NetworkConnection<NetworkMessage> connection,
                                    Map<String, ServerConnectionHandler> registry) {
+        this(connection, registry, null);
+    }
+
+    /**
+     * Constructor for ServerConnectionHandler.
+     * Initializes the ConnectionHandler superclass and sets the registry, rate limiter and username.
+     *
+     * @param connection  the network connection to be managed
+     * @param registry    the registry managing all connections
+     * @param rateLimiter the rate limiter for the messages of the client, null for no limit
+     * @throws NullPointerException if the connection or registry is null
+     */
+    public ServerConnectionHandler(NetworkHandler.NetworkConnection<NetworkMessage> connection,
+                                   Map<String, ServerConnectionHandler> registry, RateLimiter rateLimiter) {
+        this(connection, registry, rateLimiter, null, null, null, null);
+    }
+
+    /**
+     * Constructor for ServerConnectionHandler.
+     * Initializes the ConnectionHandler superclass and sets the registry, rate limiter, mailbox store, roster, message
+     * history, event loops and username.
+     *
+     * @param connection   the network connection to be managed
+     * @param registry     the registry managing all connections
+     * @param rateLimiter  the rate limiter for the messages of the client, null for no limit
+     * @param mailboxStore the store for messages to offline users, null to reject messages to offline users
+     * @param roster       the roster publishing the online users, null if not published
+     * @param history      the history of the routed messages, null if not kept
+     * @param loops        the event loops handling the requests, null to handle them on the receiving thread
+     * @throws NullPointerException if the connection or registry is null
+     */
+    ServerConnectionHandler(NetworkHandler.NetworkConnection<NetworkMessage> connection,
+                            Map<String, ServerConnectionHandler> registry, RateLimiter rateLimiter,
+                            MailboxStore mailboxStore, Roster roster, MessageHistory history,
+                            EventLoopGroup loops) {
         super(connection);
         Objects.requireNonNull(connection, "Connection must not be null");
         Objects.requireNonNull(registry, "Registry must not be null");
         this.connectionRegistry = registry;
-        userName = "Anonymous-" + connectionCounter.incrementAndGet();
+        this.rateLimiter = rateLimiter;
+        this.mailboxStore = mailboxStore;
+        this.roster = roster;
+        this.history = history;
+        this.loops = loops;
+        outbound = new OutboundQueue(this::write, loops != null, MAX_CONTROL_BACKLOG, REPLAY_CAPACITY);
+        userName = ANONYMOUS_PREFIX + connectionCounter.incrementAndGet();
     }
 
     /**
@@ -56,31 +207,335 @@ public class ServerConnectionHandler extends ConnectionHandler implements Runnab
         startReceiving();
     }
 
+    /**
+     * Creates the ERROR frame sent to a connection rejected by the {@link AdmissionControl}, before it is closed.
+     *
+     * @param reason the reason shown to the client
+     * @return the ERROR frame
+     */
+    static NetworkMessage rejection(String reason) {
+        return new NetworkMessage(USER_NONE, USER_NONE, ERROR, reason);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * With event loops, the request is handled on the loop this connection is pinned to. The connection is pinned with
+     * its first request, by the username of the connect request or the name assigned to an anonymous connection. If
+     * the rate limit has delayed a previous request, the receiving thread waits for the delay first, so the client
+     * is slowed down without blocking the loop.
+     */
+    @Override
+    protected void processData(NetworkMessage data) {
+        if (loops == null) {
+            super.processData(data);
+            return;
+        }
+        long pause;
+        while ((pause = pausedUntil - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(pause);
+        }
+        if (loop == null) {
+            String sender = data.getSender();
+            loop = loops.loopFor(data.getType() == CONNECT && sender != null && !sender.isBlank() ? sender : userName);
+        }
+        loop.execute(() -> super.processData(data));
+    }
+
+    /**
+     * Sends the given message to the client.
+     *
+     * @param message the message to send
+     */
+    void send(NetworkMessage message) {
+        sendData(message);
+    }
+
+    /**
+     * Queues the given message without writing it. Used by the session to queue sequenced messages in order while
+     * holding its lock, see {@link #flushOutbound()}.
+     *
+     * @param message the message to queue
+     * @return true if the message has been queued, false if the outbound backlog is exceeded
+     */
+    boolean enqueue(NetworkMessage message) {
+        return outbound.enqueue(message);
+    }
+
+    /**
+     * Writes the queued messages, unless another thread is already doing so. Without event loops, they are written on
+     * the calling thread, otherwise on a writer thread (see {@link OutboundQueue}).
+     */
+    void flushOutbound() {
+        outbound.drain();
+    }
+
+    /**
+     * Writes the queued messages on a writer thread, unless another thread is already doing so. Used by threads
+     * serving all connections, which must not wait for a single client.
+     */
+    void flushOutboundLater() {
+        outbound.drainLater();
+    }
+
+    /**
+     * Closes the connection of a client not reading its messages. The session is kept, so the client can resume it
+     * and receive the buffered messages.
+     */
+    void closeSlowConsumer() {
+        System.err.println("Outbound backlog of " + userName + " exceeded, closing connection");
+        stopReceiving();
+    }
+
+    /**
+     * Ends the session of this connection: the user is removed from the registry, the client gets an error and the
+     * connection is closed, once the error has been written. The session can not be resumed.
+     *
+     * @param reason the reason sent to the client
+     */
+    void endSession(String reason) {
+        System.err.println("Ending session of " + userName + ": " + reason);
+        connectionRegistry.remove(userName, this);
+        sendData(USER_NONE, userName, ERROR, reason);
+        outbound.closeAfterControl(this::stopReceiving);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The frame is queued in the lane of its priority class (see {@link OutboundQueue}). If the client does not read
+     * its frames and the backlog of the lane is exceeded (the replay capacity for messages,
+     * {@link #MAX_CONTROL_BACKLOG} for control frames), the connection is closed. The session is kept, so the client
+     * can resume it and receive the buffered messages.
+     */
+    @Override
+    protected void sendData(NetworkMessage message) {
+        if (!outbound.offer(message)) {
+            closeSlowConsumer();
+        }
+    }
+
+    /**
+     * Takes a token from the rate limiter for a request of this connection. A delayed request waits on the receiving
+     * thread, or with event loops, which must not wait for a single connection, is handled immediately, while the
+     * receiving thread waits for the delay before it passes the next request to the loop (see
+     * {@link #processData(NetworkMessage)}).
+     *
+     * @param broadcast true for a broadcast, false for a unicast request
+     * @param queue     true to delay the request up to the maximum queue delay, false to use the policy
+     * @throws ChatProtocolException if the request is over the limit and has to be rejected
+     */
+    private void limitRate(boolean broadcast, boolean queue) throws ChatProtocolException {
+        if (loop == null) {
+            rateLimiter.acquire(rateBuckets, userName, broadcast, queue);
+            return;
+        }
+        long delay = rateLimiter.reserve(rateBuckets, userName, broadcast, queue);
+        if (delay > 0) {
+            pausedUntil = System.nanoTime() + delay;
+        }
+    }
+
+    /**
+     * Writes a frame taken from the outbound queue to the connection. Traced messages get the time of the write.
+     *
+     * @param message the frame to write
+     */
+    private void write(NetworkMessage message) {
+        MessageTrace trace = message.getTrace();
+        super.sendData(trace == null ? message : message.withTrace(trace.written(MessageTrace.now())));
+    }
+
+    /**
+     * Delivers a message to the session of this user. If the connection is currently lost, the message is buffered
+     * until the session is resumed. Traced messages get the time they have been routed to the session.
+     * With event loops, the message is delivered on the loop of this connection.
+     *
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message
+     * @param payload  the message payload
+     * @param trace    the trace of the message, null if not traced
+     */
+    void deliver(String sender, String receiver, String payload, MessageTrace trace) {
+        EventLoopGroup.Loop target = loop;
+        if (target == null) {
+            deliverToSession(sender, receiver, payload, trace);
+        } else {
+            EventLoopGroup.dispatch(target, () -> deliverToSession(sender, receiver, payload, trace));
+        }
+    }
+
+    /**
+     * Delivers a message to the session of this user on the current thread.
+     *
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message
+     * @param payload  the message payload
+     * @param trace    the trace of the message, null if not traced
+     */
+    private void deliverToSession(String sender, String receiver, String payload, MessageTrace trace) {
+        session.deliver(sender, receiver, payload, trace == null ? null : trace.routed(MessageTrace.now()));
+    }
+
+    /**
+     * Delivers a message to all users. With event loops, the receivers are grouped by their loop and each loop gets
+     * a single task delivering the message to all of its receivers.
+     *
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message, {@link #USER_ALL}
+     * @param payload  the message payload
+     * @param trace    the trace of the message, null if not traced
+     * @return the number of users the message has been delivered to
+     */
+    private int deliverToAll(String sender, String receiver, String payload, MessageTrace trace) {
+        int recipients = 0;
+        if (loops == null) {
+            for (ServerConnectionHandler handler : connectionRegistry.values()) {
+                handler.deliver(sender, receiver, payload, trace);
+                recipients++;
+            }
+            return recipients;
+        }
+        List<List<ServerConnectionHandler>> byLoop = new ArrayList<>();
+        for (int i = 0; i < loops.size(); i++) {
+            byLoop.add(new ArrayList<>());
+        }
+        for (ServerConnectionHandler handler : connectionRegistry.values()) {
+            EventLoopGroup.Loop target = handler.loop;
+            if (target == null) {
+                handler.deliverToSession(sender, receiver, payload, trace);
+            } else {
+                byLoop.get(target.index()).add(handler);
+            }
+            recipients++;
+        }
+        for (List<ServerConnectionHandler> handlers : byLoop) {
+            if (!handlers.isEmpty()) {
+                EventLoopGroup.dispatch(handlers.get(0).loop, () -> {
+                    for (ServerConnectionHandler handler : handlers) {
+                        handler.deliverToSession(sender, receiver, payload, trace);
+                    }
+                });
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Checks if the user of this handler is online, i.e. the session is attached to this handler.
+     *
+     * @return true if the user is online, false otherwise
+     */
+    boolean isOnline() {
+        ClientSession currentSession = session;
+        return currentSession != null && currentSession.isAttachedTo(this);
+    }
+
+    /**
+     * Checks if the session of this handler has lost its connection longer than the given grace period ago.
+     *
+     * @param gracePeriodNanos the grace period in nanoseconds
+     * @return true if the session is expired and the handler can be removed from the registry, false otherwise
+     */
+    boolean isSessionExpired(long gracePeriodNanos) {
+        return session != null && session.isExpired(gracePeriodNanos);
+    }
+
     /**
      * {@inheritDoc}
+     * <p>
+     * If the client presents the resume token of a session of the same user, the session is taken over and only the
+     * messages the client missed are sent again. Otherwise, a new session is registered.
+     * Messages stored in the mailbox of the user while offline are delivered in one batch with the confirmation.
+     * The user is reported to the roster, and clients supporting it are subscribed to the roster.
      */
     @Override
-    protected void handleConnect(String sender) throws ChatProtocolException {
-        if (this.protocolState != NEW) {
-            throw new ChatProtocolException("Illegal state for connect request: " + protocolState);
+    protected void handleConnect(String sender, String resumeToken, long lastSequence, Capabilities offered)
+        throws ChatProtocolException {
+        ServerEvents.Connect event = new ServerEvents.Connect();
+        event.begin();
+        boolean resumed = false;
+        boolean accepted = false;
+        try {
+            resumed = connect(sender, resumeToken, lastSequence, offered);
+            accepted = true;
+        } finally {
+            if (event.shouldCommit()) {
+                event.user = accepted || sender == null ? userName : sender;
+                event.resumed = resumed;
+                event.accepted = accepted;
+                event.capabilities = capabilities.encode();
+                event.commit();
+            }
         }
+    }
+
+    /**
+     * Registers a new session or resumes the session of the user, see {@link #handleConnect}.
+     *
+     * @param sender       the name of the user, blank for an anonymous user
+     * @param resumeToken  the resume token of the session to resume, null for a new session
+     * @param lastSequence the last sequence number received by the client in the session to resume
+     * @param offered      the capabilities offered by the client
+     * @return true if the session has been resumed, false if a new session has been registered
+     * @throws ChatProtocolException if the state, the user name or the capabilities do not allow the connection
+     */
+    private boolean connect(String sender, String resumeToken, long lastSequence, Capabilities offered)
+        throws ChatProtocolException {
+        protocolState.require(NEW, "connect request");
+        this.capabilities = Capabilities.SUPPORTED.withHistory(history != null).negotiate(offered);
+        String chosen = capabilities.encode();
         if (sender == null || sender.isBlank()) {
             sender = this.userName;
         }
-        if (connectionRegistry.containsKey(sender)) {
-            throw new ChatProtocolException("User name already taken: " + sender);
+        if (sender.contains(RECEIVER_SEPARATOR) || USER_ALL.equals(sender) || sender.contains("\n")) {
+            throw new ChatProtocolException("Illegal user name: " + sender);
+        }
+        ServerConnectionHandler previous = connectionRegistry.get(sender);
+        ClientSession previousSession = previous != null ? previous.session : null;
+        this.session = previousSession;
+        boolean resumed = previousSession != null && previousSession.matches(resumeToken)
+            && connectionRegistry.replace(sender, previous, this);
+        if (resumed) {
+            this.userName = sender;
+            ServerConnectionHandler attached = session.attach(this, lastSequence, capabilities.acknowledgements(),
+                new NetworkMessage(USER_NONE, userName, CONFIRM, "Session resumed for " + userName,
+                    session.getResumeToken(), NO_SEQUENCE, chosen));
+            if (attached != null && attached != this) {
+                attached.stopReceiving();
+            }
+        } else {
+            ClientSession newSession = new ClientSession(REPLAY_CAPACITY);
+            this.session = newSession;
+            if (connectionRegistry.putIfAbsent(sender, this) != null) {
+                this.session = null;
+                throw new ChatProtocolException("User name already taken: " + sender);
+            }
+            this.userName = sender;
+            if (mailboxStore != null && !userName.startsWith(ANONYMOUS_PREFIX)) {
+                mailboxStore.register(userName);
+                mailboxStore.drain(userName, message ->
+                    newSession.deliver(message.sender(), message.receiver(), message.payload(), null));
+            }
+            newSession.attach(this, NO_SEQUENCE, capabilities.acknowledgements(), new NetworkMessage(USER_NONE,
+                userName, CONFIRM, "Registration successful for " + userName, newSession.getResumeToken(),
+                NO_SEQUENCE, chosen));
+        }
+        protocolState.compareAndSet(NEW, CONNECTED);
+        if (roster != null) {
+            roster.changed(userName);
+            if (capabilities.roster()) {
+                roster.subscribe(this);
+            }
         }
-        this.userName = sender;
-        connectionRegistry.put(userName, this);
-        sendData(USER_NONE, userName, CONFIRM, "Registration successful for " + userName);
-        this.protocolState = CONNECTED;
+        return resumed;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected void handleConfirm(String receiver, String payload) {
+    protected void handleConfirm(String receiver, String payload, String resumeToken, Capabilities chosen) {
         System.out.println("Not expecting to receive a CONFIRM request from client");
     }
 
@@ -89,37 +544,428 @@ public class ServerConnectionHandler extends ConnectionHandler implements Runnab
      */
     @Override
     protected void handleDisconnect(String payload) throws ChatProtocolException {
-        if (protocolState == DISCONNECTED) {
-            throw new ChatProtocolException("Illegal state for disconnect request: " + protocolState);
-        }
-        if (protocolState == CONNECTED) {
-            connectionRegistry.remove(this.userName);
+        ServerEvents.Disconnect event = new ServerEvents.Disconnect();
+        event.begin();
+        ProtocolState previousState = protocolState.transitionTo(DISCONNECTED);
+        if (previousState == CONNECTED) {
+            connectionRegistry.remove(this.userName, this);
+            cancelOpenTransfers();
+            leaveRoster();
         }
         sendData(USER_NONE, userName, CONFIRM, "Confirm disconnect of " + userName);
-        this.protocolState = DISCONNECTED;
-        this.stopReceiving();
+        outbound.closeAfterControl(this::stopReceiving);
+        if (event.shouldCommit()) {
+            event.user = userName;
+            event.previousState = previousState.name();
+            event.commit();
+        }
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The receiver is either {@link #USER_ALL}, a single username or a list of usernames separated by
+     * {@link #RECEIVER_SEPARATOR}. For a list, the recipients are resolved in one pass and a single error listing all
+     * unknown users is returned.
+     * Messages over the rate limit are rejected or delayed, depending on the policy of the {@link RateLimiter}.
+     * Lists of receivers are counted as a single unicast message.
+     * Messages to known users, which are offline, are stored in their mailbox if the mailbox store is enabled.
+     * Each message is recorded as flight recorder event with its route and number of recipients, if enabled.
+     * Routed messages are queued to be kept in the message history, if enabled, with the sessions of the sender and
+     * of the receivers the message has been delivered to, which may find it there.
      */
     @Override
-    protected void handleMessage(String sender, String receiver, String payload) throws ChatProtocolException {
-        if (protocolState != CONNECTED) {
-            throw new ChatProtocolException("Illegal state for message request: " + protocolState);
+    protected void handleMessage(String sender, String receiver, String payload, long sequence, MessageTrace trace)
+        throws ChatProtocolException {
+        if (trace != null) {
+            trace = trace.received(MessageTrace.now());
         }
-        if (USER_ALL.equals(receiver)) {
-            for (ServerConnectionHandler handler : connectionRegistry.values()) {
-                handler.sendData(sender, receiver, MESSAGE, payload);
+        ServerEvents.Route event = new ServerEvents.Route();
+        event.begin();
+        int recipients = -1;
+        try {
+            List<ClientSession> receivingSessions = new ArrayList<>();
+            recipients = route(sender, receiver, payload, trace, receivingSessions);
+            if (history != null && recipients > 0) {
+                history.record(sender, receiver, payload, sessionIds(session, receivingSessions));
             }
+        } finally {
+            if (event.shouldCommit()) {
+                event.sender = userName;
+                event.receiver = receiver;
+                event.route = recipients < 0 ? ServerEvents.ROUTE_REJECTED
+                    : USER_ALL.equals(receiver) ? ServerEvents.ROUTE_BROADCAST
+                    : receiver != null && receiver.contains(RECEIVER_SEPARATOR) ? ServerEvents.ROUTE_LIST
+                    : ServerEvents.ROUTE_DIRECT;
+                event.recipients = Math.max(0, recipients);
+                event.payloadLength = payload == null ? 0 : payload.length();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Routes a message to its receivers, see {@link #handleMessage}.
+     *
+     * @param sender   the sender of the message
+     * @param receiver {@link #USER_ALL}, a single username or a list of usernames
+     * @param payload  the message payload
+     * @param trace    the trace of the message, null if not traced
+     * @param sessions collects the sessions the message has been delivered to, except for a broadcast
+     * @return the number of users the message has been delivered to or stored for
+     * @throws ChatProtocolException if the message is rejected
+     */
+    private int route(String sender, String receiver, String payload, MessageTrace trace,
+                      List<ClientSession> sessions) throws ChatProtocolException {
+        protocolState.require(CONNECTED, "message request");
+        if (payload != null && payload.length() > capabilities.maxFrameSize()) {
+            throw new ChatProtocolException("Message exceeds maximum size of " + capabilities.maxFrameSize());
+        }
+        if (rateLimiter != null) {
+            limitRate(USER_ALL.equals(receiver), rateLimiter.isQueueing());
+        }
+        if (USER_ALL.equals(receiver)) {
+            return deliverToAll(sender, receiver, payload, trace);
+        } else if (receiver != null && receiver.contains(RECEIVER_SEPARATOR)) {
+            return deliverToList(sender, receiver, payload, trace, sessions);
         } else {
             ServerConnectionHandler handler = connectionRegistry.get(receiver);
             if (handler != null) {
-                handler.sendData(sender, receiver, MESSAGE, payload);
-            } else {
+                handler.deliver(sender, receiver, payload, trace);
+                addSession(handler, sessions);
+            } else if (!storeForOfflineUser(receiver, sender, receiver, payload)) {
                 this.sendData(USER_NONE, userName, ERROR, "Unknown User: " + receiver);
+                return 0;
+            }
+            return 1;
+        }
+    }
+
+    /**
+     * Delivers a message to a list of receivers. Duplicate names are delivered once, unknown users are reported to
+     * the sender in a single error message.
+     *
+     * @param sender    the sender of the message
+     * @param receivers the receivers separated by {@link #RECEIVER_SEPARATOR}
+     * @param payload   the message payload
+     * @param trace     the trace of the message, null if not traced
+     * @param sessions  collects the sessions the message has been delivered to
+     * @return the number of users the message has been delivered to or stored for
+     */
+    private int deliverToList(String sender, String receivers, String payload, MessageTrace trace,
+                              List<ClientSession> sessions) {
+        Set<String> names = parseReceivers(receivers);
+        List<String> unknownUsers = new ArrayList<>();
+        for (String name : names) {
+            ServerConnectionHandler handler = connectionRegistry.get(name);
+            if (handler != null) {
+                handler.deliver(sender, receivers, payload, trace);
+                addSession(handler, sessions);
+            } else if (!storeForOfflineUser(name, sender, receivers, payload)) {
+                unknownUsers.add(name);
+            }
+        }
+        if (!unknownUsers.isEmpty()) {
+            this.sendData(USER_NONE, userName, ERROR, "Unknown Users: " + String.join(", ", unknownUsers));
+        }
+        return names.size() - unknownUsers.size();
+    }
+
+    private static void addSession(ServerConnectionHandler handler, List<ClientSession> sessions) {
+        ClientSession receivingSession = handler.session;
+        if (receivingSession != null) {
+            sessions.add(receivingSession);
+        }
+    }
+
+    /**
+     * Returns the ids of the sessions, which may find a message in the history.
+     *
+     * @param sender    the session of the sender
+     * @param receivers the sessions the message has been delivered to
+     * @return the ids of the sessions
+     */
+    private static long[] sessionIds(ClientSession sender, List<ClientSession> receivers) {
+        long[] ids = new long[receivers.size() + 1];
+        ids[0] = sender.getId();
+        for (int i = 0; i < receivers.size(); i++) {
+            ids[i + 1] = receivers.get(i).getId();
+        }
+        return ids;
+    }
+
+    /**
+     * Splits a list of receivers into the distinct usernames.
+     *
+     * @param receivers the receivers separated by {@link #RECEIVER_SEPARATOR}
+     * @return the usernames in the order of the list, without duplicates
+     */
+    private static Set<String> parseReceivers(String receivers) {
+        Set<String> names = new LinkedHashSet<>();
+        if (receivers != null) {
+            for (String name : receivers.split(RECEIVER_SEPARATOR)) {
+                if (!name.isBlank()) {
+                    names.add(name.strip());
+                }
             }
         }
+        return names;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The chunks are forwarded to the receivers immediately and in order, as frames outside the sequence of the
+     * receiving sessions, so a transfer does not fill their replay buffers. The receivers are fixed with the first
+     * chunk: users connecting later do not get the remaining chunks. If a receiver loses its connection during the
+     * transfer, the transfer is cancelled for that receiver only, with a cancel chunk in the sequence of its session.
+     * Receivers, which are unknown, offline or do not support chunked transfer, are reported once for the first chunk.
+     * <p>
+     * Each chunk counts against the rate limit. Chunks after the first one are delayed rather than rejected (see
+     * {@link RateLimiter#acquire(RateLimiter.Buckets, String, boolean, boolean)}); if the limit can not be met within
+     * the maximum delay, the transfer is aborted and its remaining chunks are discarded.
+     */
+    @Override
+    protected void handleChunk(String sender, String receiver, String payload, ChunkHeader chunk, long sequence)
+        throws ChatProtocolException {
+        protocolState.require(CONNECTED, "chunk request");
+        if (capabilities.chunkSize() == 0) {
+            throw new ChatProtocolException("Chunked transfer has not been negotiated");
+        }
+        long transferId = chunk.transferId();
+        OpenTransfer transfer = openTransfers.get(transferId);
+        if (chunk.isCancel()) {
+            if (transfer != null) {
+                openTransfers.remove(transferId);
+                forwardChunk(sender, transfer, null, chunk);
+            }
+            return;
+        }
+        if (payload == null || payload.length() > capabilities.chunkSize()) {
+            throw new ChatProtocolException("Chunk exceeds chunk size of " + capabilities.chunkSize());
+        }
+        boolean broadcast = USER_ALL.equals(receiver);
+        List<String> unreachable = List.of();
+        if (transfer == null) {
+            if (chunk.index() != 0) {
+                throw new ChatProtocolException("Unknown transfer: " + transferId);
+            }
+            if (chunk.count() < 1 || (long) chunk.count() * capabilities.chunkSize() > ChunkHeader.MAX_TRANSFER_SIZE) {
+                throw new ChatProtocolException("Transfer exceeds maximum size of " + ChunkHeader.MAX_TRANSFER_SIZE);
+            }
+            if (openTransfers.size() >= MAX_OPEN_TRANSFERS) {
+                throw new ChatProtocolException("Too many transfers in progress");
+            }
+            if (rateLimiter != null) {
+                limitRate(broadcast, rateLimiter.isQueueing());
+            }
+            Map<String, ServerConnectionHandler> receivers = new LinkedHashMap<>();
+            unreachable = resolveChunkReceivers(receiver, receivers);
+            transfer = new OpenTransfer(receiver, chunk.count(), 0, receivers);
+        } else if (chunk.index() != transfer.nextIndex() || chunk.count() != transfer.count()
+            || !Objects.equals(receiver, transfer.receiver())) {
+            openTransfers.remove(transferId);
+            forwardChunk(sender, transfer, null, ChunkHeader.cancel(transferId));
+            throw new ChatProtocolException("Unexpected chunk " + chunk.index() + " of transfer " + transferId);
+        } else if (rateLimiter != null && !transfer.receivers().isEmpty()) {
+            try {
+                limitRate(broadcast, true);
+            } catch (ChatProtocolException e) {
+                forwardChunk(sender, transfer, null, ChunkHeader.cancel(transferId));
+                openTransfers.put(transferId,
+                    new OpenTransfer(receiver, transfer.count(), chunk.index() + 1, Map.of()));
+                throw new ChatProtocolException(e.getMessage() + ", large message to " + receiver + " aborted");
+            }
+        }
+        if (chunk.isLast()) {
+            openTransfers.remove(transferId);
+        } else {
+            openTransfers.put(transferId,
+                new OpenTransfer(receiver, transfer.count(), chunk.index() + 1, transfer.receivers()));
+        }
+        forwardChunk(sender, transfer, payload, chunk);
+        if (!unreachable.isEmpty()) {
+            this.sendData(USER_NONE, userName, ERROR,
+                "Users unknown, offline or not supporting large messages: " + String.join(", ", unreachable));
+        }
+    }
+
+    /**
+     * Resolves the receivers of a new transfer: all online users supporting chunked transfer for a broadcast, the
+     * listed users otherwise.
+     *
+     * @param receiver  {@link #USER_ALL}, a single username or a list of usernames
+     * @param receivers the map to add the connection handlers of the receivers to, by user name
+     * @return the names of the listed receivers, which are unknown, offline or do not support chunked transfer
+     */
+    private List<String> resolveChunkReceivers(String receiver, Map<String, ServerConnectionHandler> receivers) {
+        boolean broadcast = USER_ALL.equals(receiver);
+        Collection<String> names = broadcast ? connectionRegistry.keySet() : parseReceivers(receiver);
+        List<String> unreachable = new ArrayList<>();
+        for (String name : names) {
+            ServerConnectionHandler handler = connectionRegistry.get(name);
+            if (handler != null && handler.capabilities.chunkSize() > 0 && handler.isOnline()) {
+                receivers.put(name, handler);
+            } else if (!broadcast) {
+                unreachable.add(name);
+            }
+        }
+        return unreachable;
+    }
+
+    /**
+     * Forwards a chunk to the receivers of a transfer. Receivers, whose connection has changed since the first chunk,
+     * get a cancel chunk in the sequence of their session instead and are removed from the transfer.
+     *
+     * @param sender   the sender of the chunk
+     * @param transfer the transfer of the chunk
+     * @param payload  the chunk of the payload, null for a cancel chunk
+     * @param chunk    the header of the chunk
+     */
+    private void forwardChunk(String sender, OpenTransfer transfer, String payload, ChunkHeader chunk) {
+        NetworkMessage frame = new NetworkMessage(sender, transfer.receiver(), payload, NO_SEQUENCE, chunk);
+        Iterator<Map.Entry<String, ServerConnectionHandler>> receivers = transfer.receivers().entrySet().iterator();
+        while (receivers.hasNext()) {
+            Map.Entry<String, ServerConnectionHandler> entry = receivers.next();
+            ServerConnectionHandler handler = entry.getValue();
+            if (!chunk.isCancel() && connectionRegistry.get(entry.getKey()) == handler && handler.isOnline()) {
+                handler.send(frame);
+                continue;
+            }
+            receivers.remove();
+            ServerConnectionHandler current = connectionRegistry.get(entry.getKey());
+            ClientSession currentSession = current != null ? current.session : null;
+            if (currentSession != null) {
+                currentSession.deliverChunk(sender, transfer.receiver(), null,
+                    ChunkHeader.cancel(chunk.transferId()));
+            }
+        }
+    }
+
+    /**
+     * Cancels all transfers of the client in progress at their receivers, e.g. because the client disconnected.
+     */
+    private void cancelOpenTransfers() {
+        openTransfers.forEach((transferId, transfer) ->
+            forwardChunk(userName, transfer, null, ChunkHeader.cancel(transferId)));
+        openTransfers.clear();
+    }
+
+    /**
+     * Unsubscribes this connection from the roster and reports the user, who may have gone offline.
+     */
+    private void leaveRoster() {
+        if (roster != null) {
+            roster.unsubscribe(this);
+            roster.changed(userName);
+        }
+    }
+
+    /**
+     * Stores a message in the mailbox of an offline user. Errors storing the message are reported to the sender.
+     *
+     * @param name     the name of the offline user
+     * @param sender   the sender of the message
+     * @param receiver the receiver of the message, as sent by the sender
+     * @param payload  the message payload
+     * @return true if the user is known to the mailbox store, false otherwise
+     */
+    private boolean storeForOfflineUser(String name, String sender, String receiver, String payload) {
+        if (mailboxStore == null) {
+            return false;
+        }
+        try {
+            MailboxStore.Result result = mailboxStore.store(name, sender, receiver, payload, connectionRegistry);
+            if (result == MailboxStore.Result.FULL) {
+                this.sendData(USER_NONE, userName, ERROR, "Mailbox full: " + name);
+            }
+            return result != MailboxStore.Result.UNKNOWN;
+        } catch (IOException e) {
+            System.err.println("Failed to store message for " + name + ": " + e.getMessage());
+            this.sendData(USER_NONE, userName, ERROR, "Message could not be stored for: " + name);
+            return true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The event is forwarded to the connected receivers supporting events, but not to the sender itself. One frame is
+     * shared by all receivers, it is neither sequenced nor kept for replay or in a mailbox, and each connection only
+     * keeps the latest waiting event per sender and receiver (see {@link OutboundQueue}). Unknown or offline receivers
+     * are ignored.
+     */
+    @Override
+    protected void handleEvent(String sender, String receiver, String payload) throws ChatProtocolException {
+        protocolState.require(CONNECTED, "event request");
+        if (!capabilities.events()) {
+            throw new ChatProtocolException("Events have not been negotiated");
+        }
+        if (payload != null && payload.length() > MAX_EVENT_SIZE) {
+            throw new ChatProtocolException("Event exceeds maximum size of " + MAX_EVENT_SIZE);
+        }
+        NetworkMessage event = new NetworkMessage(sender, receiver, EVENT, payload);
+        Collection<ServerConnectionHandler> handlers = USER_ALL.equals(receiver)
+            ? connectionRegistry.values()
+            : parseReceivers(receiver).stream().map(connectionRegistry::get).filter(Objects::nonNull).toList();
+        for (ServerConnectionHandler handler : handlers) {
+            if (handler != this && handler.capabilities.events()) {
+                handler.sendEvent(event);
+            }
+        }
+    }
+
+    /**
+     * Sends an event to the client, if the session is attached to this connection.
+     *
+     * @param event the event to send
+     */
+    private void sendEvent(NetworkMessage event) {
+        if (isOnline()) {
+            sendData(event);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The query counts against the rate limit for direct messages. It is run on the query thread of the
+     * {@link MessageHistory}, which sends the page of results. Only messages to all users and messages of the session
+     * of this connection are found, not those of an earlier user of the same name.
+     */
+    @Override
+    protected void handleHistory(String payload) throws ChatProtocolException {
+        protocolState.require(CONNECTED, "history request");
+        if (!capabilities.history()) {
+            throw new ChatProtocolException("Message history has not been negotiated");
+        }
+        HistoryQuery query = HistoryQuery.parse(payload);
+        if (rateLimiter != null) {
+            limitRate(false, rateLimiter.isQueueing());
+        }
+        String user = userName;
+        history.search(session.getId(), query, capabilities.maxFrameSize(),
+            page -> sendData(new NetworkMessage(USER_NONE, user, HISTORY, page.encode())));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void handleRoster(RosterUpdate update) throws ChatProtocolException {
+        throw new ChatProtocolException("Illegal roster request from client");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void handleAcknowledge(long sequence) throws ChatProtocolException {
+        protocolState.require(CONNECTED, "acknowledge request");
+        if (!capabilities.acknowledgements()) {
+            throw new ChatProtocolException("Acknowledgements have not been negotiated");
+        }
+        session.acknowledge(sequence);
     }
 
     /**
@@ -140,9 +986,32 @@ public class ServerConnectionHandler extends ConnectionHandler implements Runnab
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The session of a connected user stays registered and buffers messages, so it can be resumed by the client.
+     * It is removed by the server after the grace period has expired.
+     * With event loops, the session is detached on the loop of this connection, after the requests received before.
      */
     @Override
     protected void onInterrupted() {
-        connectionRegistry.remove(userName);
+        EventLoopGroup.Loop target = loop;
+        if (target == null) {
+            detachSession();
+        } else {
+            target.execute(this::detachSession);
+        }
+    }
+
+    /**
+     * Cancels the transfers of the lost connection and detaches the session, or removes the handler from the
+     * registry if the user has not been connected.
+     */
+    private void detachSession() {
+        cancelOpenTransfers();
+        if (protocolState.is(CONNECTED) && session != null) {
+            session.detach(this);
+            leaveRoster();
+        } else {
+            connectionRegistry.remove(userName, this);
+        }
     }
 }
@@ -0,0 +1,110 @@
+package ch.zhaw.pm2.multichat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * This class holds the JDK Flight Recorder events of the server connection handlers.
+ * <p>
+ * Like the events of the connections, they are disabled by default and only cost a check of a flag while disabled.
+ * Each event covers the handling of one request, so a recording shows which users and which broadcasts take long.
+ */
+final class ServerEvents {
+    /**
+     * Route of a message to all users.
+     */
+    static final String ROUTE_BROADCAST = "broadcast";
+
+    /**
+     * Route of a message to a list of users.
+     */
+    static final String ROUTE_LIST = "list";
+
+    /**
+     * Route of a message to a single user.
+     */
+    static final String ROUTE_DIRECT = "direct";
+
+    /**
+     * Route of a message, which has been rejected (e.g. over the rate limit or too large).
+     */
+    static final String ROUTE_REJECTED = "rejected";
+
+    private ServerEvents() {
+    }
+
+    /**
+     * A CONNECT request handled, registering a new session or resuming an existing one.
+     */
+    @Name("ch.zhaw.pm2.multichat.Connect")
+    @Label("Connect")
+    @Category({"MultiChat", "Server"})
+    @Description("A connect request handled by the server")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Connect extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Resumed")
+        @Description("Whether an existing session has been resumed")
+        boolean resumed;
+
+        @Label("Accepted")
+        boolean accepted;
+
+        @Label("Capabilities")
+        @Description("The capabilities negotiated for the connection")
+        String capabilities;
+    }
+
+    /**
+     * A DISCONNECT request handled.
+     */
+    @Name("ch.zhaw.pm2.multichat.Disconnect")
+    @Label("Disconnect")
+    @Category({"MultiChat", "Server"})
+    @Description("A disconnect request handled by the server")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Disconnect extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Previous State")
+        String previousState;
+    }
+
+    /**
+     * A MESSAGE request routed to its receivers, including the time waiting for the rate limit.
+     */
+    @Name("ch.zhaw.pm2.multichat.Route")
+    @Label("Route Message")
+    @Category({"MultiChat", "Server"})
+    @Description("A message routed by the server to its receivers")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Route extends Event {
+        @Label("Sender")
+        String sender;
+
+        @Label("Receiver")
+        String receiver;
+
+        @Label("Route")
+        @Description("broadcast, list, direct or rejected")
+        String route;
+
+        @Label("Recipients")
+        @Description("Number of users the message has been delivered to or stored for")
+        int recipients;
+
+        @Label("Payload Length")
+        int payloadLength;
+    }
+}
@@ -0,0 +1,83 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class is an unbounded queue for exactly one producer thread and one consumer thread, without locks.
+ * <p>
+ * The queue is a linked list: the producer appends a node behind the tail and publishes it with a volatile write of
+ * the link, the consumer follows the links from the head. Head and tail are each only accessed by one thread, so
+ * neither side needs a compare-and-set. The volatile write also orders the append before the check whether the
+ * consumer is sleeping, so a consumer going to sleep does not miss it. The queue never blocks the producer, which
+ * matters for the event loops sending to each other (see {@link EventLoopGroup}): a bounded queue could let two loops
+ * wait for each other.
+ *
+ * @param <E> the type of the elements
+ */
+final class SpscQueue<E> {
+    /**
+     * A node of the list, linked to the next one by the producer.
+     */
+    private static final class Node<E> extends AtomicReference<Node<E>> {
+        private static final long serialVersionUID = 1L;
+
+        private transient E value;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * The last node taken (consumer side), its successor holds the next element.
+     */
+    private Node<E> head;
+
+    /**
+     * The last node appended (producer side).
+     */
+    private Node<E> tail;
+
+    /**
+     * Creates an empty queue.
+     */
+    SpscQueue() {
+        head = tail = new Node<>(null);
+    }
+
+    /**
+     * Appends an element. Must only be called by the producer thread.
+     *
+     * @param value the element, not null
+     */
+    void offer(E value) {
+        Node<E> node = new Node<>(value);
+        tail.set(node);
+        tail = node;
+    }
+
+    /**
+     * Takes the next element. Must only be called by the consumer thread.
+     *
+     * @return the next element, null if the queue is empty
+     */
+    E poll() {
+        Node<E> next = head.get();
+        if (next == null) {
+            return null;
+        }
+        E value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Checks if the queue is empty. Must only be called by the consumer thread.
+     *
+     * @return true if there is no element to take
+     */
+    boolean isEmpty() {
+        return head.get() == null;
+    }
+}
@@ -0,0 +1,82 @@
+package ch.zhaw.pm2.multichat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, implemented as generic cell rate algorithm.
+ * <p>
+ * Instead of a token count, the bucket only stores the theoretical arrival time of the next frame: each granted frame
+ * moves it one interval ({@code 1 / rate}) into the future. A frame is granted, as long as the theoretical arrival
+ * time is not further ahead than the burst size allows. Like this, acquiring a token is a single compare-and-set
+ * and the limit can be changed at any time without resetting the bucket.
+ */
+class TokenBucket {
+    /**
+     * Returned by {@link #acquire(RateLimiter.RateLimit, long, long)} if no token is available.
+     */
+    static final long REJECTED = -1;
+
+    /**
+     * The theoretical arrival time ({@link System#nanoTime()}) of the next frame.
+     */
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+    /**
+     * Tries to take a token from the bucket.
+     *
+     * @param limit         the rate limit of the bucket
+     * @param now           the current time in nanoseconds ({@link System#nanoTime()})
+     * @param maxDelayNanos the maximum time the caller is willing to wait for a token
+     * @return 0 if a token is available immediately, the time to wait for the reserved token in nanoseconds, or
+     * {@link #REJECTED} if no token is available within the maximum delay
+     */
+    long acquire(RateLimiter.RateLimit limit, long now, long maxDelayNanos) {
+        long interval = limit.intervalNanos();
+        long capacity = interval * limit.burst();
+        while (true) {
+            long current = theoreticalArrival.get();
+            long next = (current - now < 0 ? now : current) + interval;
+            long delay = next - now - capacity;
+            if (delay > maxDelayNanos) {
+                return REJECTED;
+            }
+            if (theoreticalArrival.compareAndSet(current, next)) {
+                return Math.max(delay, 0);
+            }
+        }
+    }
+
+    /**
+     * Checks if a token could be taken from the bucket, without taking it.
+     *
+     * @param limit         the rate limit of the bucket
+     * @param now           the current time in nanoseconds ({@link System#nanoTime()})
+     * @param maxDelayNanos the maximum time the caller is willing to wait for a token
+     * @return true if a token is available within the maximum delay, false otherwise
+     */
+    boolean isAvailable(RateLimiter.RateLimit limit, long now, long maxDelayNanos) {
+        long interval = limit.intervalNanos();
+        long current = theoreticalArrival.get();
+        return (current - now < 0 ? now : current) + interval - now - interval * limit.burst() <= maxDelayNanos;
+    }
+
+    /**
+     * Returns a token taken with {@link #acquire(RateLimiter.RateLimit, long, long)} to the bucket, e.g. because the
+     * message has been rejected by another bucket.
+     *
+     * @param limit the rate limit the token has been taken with
+     */
+    void release(RateLimiter.RateLimit limit) {
+        theoreticalArrival.addAndGet(-limit.intervalNanos());
+    }
+
+    /**
+     * Checks if the bucket is full, i.e. it behaves like a new bucket and can be discarded.
+     *
+     * @param now the current time in nanoseconds ({@link System#nanoTime()})
+     * @return true if the bucket is full, false otherwise
+     */
+    boolean isFull(long now) {
+        return theoreticalArrival.get() - now <= 0;
+    }
+}